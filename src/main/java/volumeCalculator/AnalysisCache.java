@@ -0,0 +1,211 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * The networks analyzed in this session, kept so that analyzing an image
+ * again costs no more than drawing its network: a user flipping between
+ * several stacks is not made to wait for the skeletonization, the analysis
+ * and the blobs each time. What is kept for a frame is its EdgeTable, as it
+ * was built, and its VolumeEngine. A run does not count with the kept
+ * engine itself but with VolumeEngine.reuse(): what an engine learns while
+ * counting depends on the edges counted and their order, the blobs do not.
+ * </p><p>
+ * An analysis is found again by the image (its ID), a fingerprint of all its
+ * pixels, so that an image that was changed is analyzed anew, the region
+ * and frame (MaskBuilder.getKey()) and the options
+ * (AnalysisOptions.getAnalysisKey()).
+ * </p><p>
+ * The analyses used last are held, up to a budget of a fraction of the
+ * heap. The older ones let go of their engine, which may keep its blobs in
+ * a temporary file (see VolumeEngine.close()), and only their network is
+ * held, softly, for as long as the garbage collector does not need the
+ * memory: analyzing the image again picks up after the skeletonization.
+ * The hits and misses are shown in the status bar.
+ * </p><p>
+ * The skeleton of an analysis that was cancelled afterwards (see
+ * AnalysisStage) is held softly in the same way.
+ * </p>
+ */
+final class AnalysisCache {
+
+    /* The part of the heap that the analyses used last may take */
+    private static final double HEAP_FRACTION = 0.25;
+
+    /**
+     * A frame analyzed before.
+     */
+    static final class Entry {
+        /* Neither traversed nor picked: copy() it before use */
+        final EdgeTable edgeTable;
+        final VolumeEngine engine;
+        long bytes;
+
+        private Entry(EdgeTable edgeTable, VolumeEngine engine) {
+            this.edgeTable = edgeTable;
+            this.engine = engine;
+        }
+
+        private long estimateMemory() {
+            return edgeTable.estimateMemory() + engine.estimateMemory();
+        }
+    }
+
+    /* Least recently used first */
+    private static final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    /* The skeletons of the analyses that were cancelled or pushed out */
+    private static final Map<String, SoftReference<EdgeTable>> skeletons =
+            new HashMap<String, SoftReference<EdgeTable>>();
+    private static long bytes = 0;
+    private static int hits = 0;
+    private static int misses = 0;
+
+    private AnalysisCache() {
+    }
+
+    /**
+     * @param imagePlus The user's image
+     * @param region The part of the image, and the frame, analyzed
+     * @param options The choices the user made
+     * @return the key of the analysis
+     */
+    static String key(ImagePlus imagePlus, MaskBuilder region, AnalysisOptions options) {
+        return imagePlus.getID() + " " + Long.toHexString(region.fingerprint(imagePlus))
+                + " " + region.getKey() + " " + options.getAnalysisKey();
+    }
+
+    /**
+     * @param key
+     * @return whether the analysis is kept, without counting a hit or miss
+     */
+    static synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * @param key
+     * @return the analysis, or null if it is not kept. Its engine is
+     * retained for the caller, who closes it once it has reused it.
+     */
+    static synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        // A lazy engine grows as it is used
+        bytes -= entry.bytes;
+        entry.bytes = entry.estimateMemory();
+        bytes += entry.bytes;
+        // Not closed by a trim() before the caller is done with it
+        entry.engine.retain();
+        trim();
+        return entry;
+    }
+
+    /**
+     * Keep an analysis. The engine is retained, and closed when the
+     * analysis is pushed out.
+     *
+     * @param key
+     * @param edgeTable The network, neither traversed nor picked
+     * @param engine Its volume engine
+     */
+    static synchronized void put(String key, EdgeTable edgeTable, VolumeEngine engine) {
+        engine.retain();
+        Entry entry = new Entry(edgeTable, engine);
+        entry.bytes = entry.estimateMemory();
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            bytes -= old.bytes;
+            old.engine.close();
+        }
+        skeletons.remove(key);
+        bytes += entry.bytes;
+        trim();
+    }
+
+    /**
+     * Keep the skeleton of an analysis that is cancelled.
+     *
+     * @param key
+     * @param edgeTable The network, neither traversed nor picked
+     */
+    static synchronized void putSkeleton(String key, EdgeTable edgeTable) {
+        skeletons.put(key, new SoftReference<EdgeTable>(edgeTable));
+    }
+
+    /**
+     * Take back the skeleton of an analysis that was cancelled.
+     *
+     * @param key
+     * @return the network, neither traversed nor picked, or null if it is
+     * not kept
+     */
+    static synchronized EdgeTable takeSkeleton(String key) {
+        SoftReference<EdgeTable> reference = skeletons.remove(key);
+        return (reference != null) ? reference.get() : null;
+    }
+
+    /*
+     * Push out the analyses used least recently until the rest fit in the
+     * budget: their engines are closed and their networks held softly. The
+     * one used last is always held.
+     */
+    private static void trim() {
+        long budget = (long) (Runtime.getRuntime().maxMemory() * HEAP_FRACTION);
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (bytes > budget && entries.size() > 1) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            skeletons.put(eldest.getKey(), new SoftReference<EdgeTable>(eldest.getValue().edgeTable));
+            eldest.getValue().engine.close();
+            bytes -= eldest.getValue().bytes;
+            iterator.remove();
+        }
+        // Forget the networks that the garbage collector took
+        Iterator<SoftReference<EdgeTable>> references = skeletons.values().iterator();
+        while (references.hasNext()) {
+            if (references.next().get() == null) {
+                references.remove();
+            }
+        }
+    }
+
+    /**
+     * Show the hits and misses, and the memory held, in the status bar.
+     */
+    static synchronized void showStatus() {
+        IJ.showStatus("Analyses kept: " + hits + " hits, " + misses + " misses, "
+                + (bytes >> 20) + " MB");
+    }
+}
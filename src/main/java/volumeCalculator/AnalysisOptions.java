@@ -0,0 +1,462 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+
+import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
+
+/**
+ * <p>
+ * The choices the user makes before the analysis starts. They are asked for
+ * in a GenericDialog so that they are recorded by, and can be given in,
+ * macros.
+ * </p>
+ */
+class AnalysisOptions {
+
+    /*
+     * How the voxels of the original image are shared out amongst the edges.
+     * See VolumeEngine.
+     */
+    static final int BLOBS = 0;
+    static final int NEAREST_EDGE = 1;
+    private static final String[] VOLUME_METHODS = {"Blobs", "Nearest edge"};
+    /*
+     * When the blob engine links blobs to edges, see BlobVolumeEngine.
+     */
+    private static final String[] BLOB_LINKING = {
+        "All at start", "On first pick", "On first pick, warm nearby"};
+    /*
+     * What to do with the trees that have fewer edges, or less length, than
+     * asked for.
+     */
+    static final int DRAW_SMALL_TREES = 0;
+    static final int POINTS_FOR_SMALL_TREES = 1;
+    static final int HIDE_SMALL_TREES = 2;
+    private static final String[] SMALL_TREES = {"Draw", "As points", "Hide"};
+    /*
+     * A quick look at the network, made from a downsampled mask, while the
+     * full resolution one is worked out. Indexed by log2 of the factor.
+     */
+    private static final String[] PREVIEWS = {"None", "2x smaller", "4x smaller"};
+    /*
+     * AnalyzeSkeleton's cycle pruning. The intensity based modes make no
+     * sense on the binary images that are skeletonized, so they are not
+     * offered.
+     */
+    private static final String[] PRUNE_CYCLES = {
+        AnalyzeSkeleton_.pruneCyclesModes[AnalyzeSkeleton_.NONE],
+        AnalyzeSkeleton_.pruneCyclesModes[AnalyzeSkeleton_.SHORTEST_BRANCH]};
+
+    private int volumeMethod = BLOBS;
+    private boolean spillBlobs = false;
+    private int blobLinking = BlobVolumeEngine.EAGER;
+    /* Let MemoryPlanner check the memory and pick the blob modes that fit */
+    private boolean planMemory = true;
+    private int preview = 0;
+    private boolean levelOfDetail = false;
+    private int smallTrees = DRAW_SMALL_TREES;
+    private int minTreeEdges = 3;
+    private double minTreeLength = 20;
+    private int pruneCycles = AnalyzeSkeleton_.NONE;
+    private boolean pruneEnds = false;
+    private double minBranchLength = 0;
+    private int minTreeSize = 0;
+    private MaskBuilder maskBuilder;
+    private int channels = 1;
+    private int frames = 1;
+    private boolean allFrames = true;
+    private int framesAtOnce = 1;
+    /* Split into this many shards, each analyzed by a worker JVM, if > 1 */
+    private int shards = 1;
+    private int shardOverlap = 16;
+    private int workersAtOnce = 2;
+    private int workerMemory = 1024;
+
+    /**
+     * Ask the user for the options. The region analyzed defaults to the box
+     * around the image's ROI, if it has one, and to the whole image
+     * otherwise.
+     *
+     * @param imagePlus The user's image
+     * @return false if the user canceled
+     */
+    boolean showDialog(ImagePlus imagePlus) {
+        Roi roi = imagePlus.getRoi();
+        if (roi != null && !roi.isArea()) {
+            roi = null;
+        }
+        Rectangle box = (roi != null) ? roi.getBounds()
+                : new Rectangle(0, 0, imagePlus.getWidth(), imagePlus.getHeight());
+
+        GenericDialog gd = new GenericDialog("Volume Calculator");
+        gd.addNumericField("Box X", box.x, 0);
+        gd.addNumericField("Box Y", box.y, 0);
+        gd.addNumericField("Box width", box.width, 0);
+        gd.addNumericField("Box height", box.height, 0);
+        gd.addNumericField("First slice", 1, 0);
+        gd.addNumericField("Last slice", imagePlus.getNSlices(), 0);
+        if (roi != null) {
+            gd.addCheckbox("Clear outside ROI", true);
+        }
+        // 16-bit and 32-bit images are thresholded as the mask is made. The
+        // image's own threshold, if it has one, is the default.
+        boolean threshold = imagePlus.getBitDepth() == 16 || imagePlus.getBitDepth() == 32;
+        if (threshold) {
+            ImageProcessor ip = imagePlus.getProcessor();
+            double lower = 1;
+            double upper = (imagePlus.getBitDepth() == 16) ? 65535 : Float.MAX_VALUE;
+            if (ip.getMinThreshold() != ImageProcessor.NO_THRESHOLD) {
+                lower = ip.getMinThreshold();
+                upper = ip.getMaxThreshold();
+            }
+            gd.addNumericField("Lower threshold", lower, 2);
+            gd.addNumericField("Upper threshold", upper, 2);
+        }
+        // The frames of a hyperstack - its channels and time points - are
+        // analyzed one by one, several at once. Each frame in the works
+        // holds a mask of the box, so no more are run than fit in memory.
+        boolean hyperstack = imagePlus.getNChannels() * imagePlus.getNFrames() > 1;
+        if (hyperstack) {
+            long boxBytes = (long) box.width * box.height * imagePlus.getNSlices();
+            long fit = Runtime.getRuntime().maxMemory() / Math.max(1, 4 * boxBytes);
+            int atOnce = (int) Math.max(1, Math.min(Prefs.getThreads(), fit));
+            gd.addCheckbox("All channels and frames", allFrames);
+            gd.addNumericField("Frames at once", atOnce, 0);
+        }
+        // A stack too big for this JVM may be split into shards of slices,
+        // each analyzed by a JVM of its own. The workers open the image's
+        // file, so the image must have one.
+        boolean shardable = ShardCoordinator.getImagePath(imagePlus) != null;
+        if (shardable) {
+            workerMemory = (int) Math.max(workerMemory, Runtime.getRuntime().maxMemory() >> 20);
+            gd.addNumericField("Shards", shards, 0, 6, "worker JVMs, 1 for none");
+            gd.addNumericField("Shard overlap", shardOverlap, 0, 6, "slices");
+            gd.addNumericField("Workers at once", workersAtOnce, 0);
+            gd.addNumericField("Worker memory", workerMemory, 0, 6, "MB");
+        }
+        gd.addChoice("Preview", PREVIEWS, PREVIEWS[preview]);
+        gd.addChoice("Prune cycle method", PRUNE_CYCLES, PRUNE_CYCLES[pruneCycles]);
+        gd.addCheckbox("Prune ends", pruneEnds);
+        gd.addNumericField("Minimum branch length", minBranchLength, 2, 6, "calibrated units");
+        gd.addNumericField("Minimum tree size", minTreeSize, 0, 6, "skeleton voxels");
+        gd.addChoice("Volume method", VOLUME_METHODS, VOLUME_METHODS[volumeMethod]);
+        gd.addChoice("Link blobs", BLOB_LINKING, BLOB_LINKING[blobLinking]);
+        gd.addCheckbox("Keep blobs on disk", spillBlobs);
+        gd.addCheckbox("Plan memory use", planMemory);
+        gd.addCheckbox("Simplify distant edges", levelOfDetail);
+        gd.addChoice("Small trees", SMALL_TREES, SMALL_TREES[smallTrees]);
+        gd.addNumericField("Small tree edges", minTreeEdges, 0, 6, "fewer than");
+        gd.addNumericField("Small tree length", minTreeLength, 1, 6, "pixels, less than");
+        gd.showDialog();
+        if (gd.wasCanceled()) return false;
+        int x = (int) gd.getNextNumber();
+        int y = (int) gd.getNextNumber();
+        int width = (int) gd.getNextNumber();
+        int height = (int) gd.getNextNumber();
+        int firstSlice = (int) gd.getNextNumber();
+        int lastSlice = (int) gd.getNextNumber();
+        boolean clearOutside = (roi != null) && gd.getNextBoolean();
+        double lower = threshold ? gd.getNextNumber() : 0;
+        double upper = threshold ? gd.getNextNumber() : 0;
+        allFrames = hyperstack && gd.getNextBoolean();
+        framesAtOnce = hyperstack ? Math.max(1, (int) gd.getNextNumber()) : 1;
+        if (gd.invalidNumber() || width < 1 || height < 1 || lastSlice < firstSlice) {
+            IJ.showMessage("Volume Calculator", "The box to analyze is empty.");
+            return false;
+        }
+        maskBuilder = new MaskBuilder(imagePlus, x, y, firstSlice - 1,
+                width, height, lastSlice - firstSlice + 1, clearOutside ? roi : null);
+        if (threshold) {
+            maskBuilder.setThreshold(lower, upper);
+        }
+        if (allFrames) {
+            channels = imagePlus.getNChannels();
+            frames = imagePlus.getNFrames();
+        } else {
+            channels = 1;
+            frames = 1;
+            maskBuilder = maskBuilder.forFrame(imagePlus.getChannel(), imagePlus.getFrame());
+        }
+        if (shardable) {
+            shards = Math.max(1, (int) gd.getNextNumber());
+            shardOverlap = Math.max(0, (int) gd.getNextNumber());
+            workersAtOnce = Math.max(1, (int) gd.getNextNumber());
+            workerMemory = Math.max(64, (int) gd.getNextNumber());
+        } else {
+            shards = 1;
+        }
+        preview = gd.getNextChoiceIndex();
+        pruneCycles = gd.getNextChoiceIndex();
+        pruneEnds = gd.getNextBoolean();
+        minBranchLength = gd.getNextNumber();
+        minTreeSize = (int) gd.getNextNumber();
+        volumeMethod = gd.getNextChoiceIndex();
+        blobLinking = gd.getNextChoiceIndex();
+        spillBlobs = gd.getNextBoolean();
+        planMemory = gd.getNextBoolean();
+        levelOfDetail = gd.getNextBoolean();
+        smallTrees = gd.getNextChoiceIndex();
+        minTreeEdges = (int) gd.getNextNumber();
+        minTreeLength = gd.getNextNumber();
+        return true;
+    }
+
+    /**
+     * @return how many times smaller the preview's mask is: 1 if there is to
+     * be no preview
+     */
+    int getPreviewFactor() {
+        return 1 << preview;
+    }
+
+    /**
+     * Analyze all of the current frame of an image, without asking. This is
+     * how scripts set the options, see VolumeAnalysis.
+     *
+     * @param imagePlus The user's image
+     * @param lower The lowest foreground value of a 16-bit or 32-bit image
+     * @param upper The highest foreground value of a 16-bit or 32-bit image
+     */
+    void setImage(ImagePlus imagePlus, double lower, double upper) {
+        maskBuilder = MaskBuilder.wholeImage(imagePlus)
+                .forFrame(imagePlus.getChannel(), imagePlus.getFrame());
+        maskBuilder.setThreshold(lower, upper);
+        channels = 1;
+        frames = 1;
+    }
+
+    /**
+     * Analyze a region without asking, see ShardWorker.
+     *
+     * @param region The box and frame of the image
+     */
+    void setRegion(MaskBuilder region) {
+        maskBuilder = region;
+        channels = 1;
+        frames = 1;
+    }
+
+    /**
+     * @param pruneCycles AnalyzeSkeleton_.NONE or AnalyzeSkeleton_.SHORTEST_BRANCH
+     * @param pruneEnds
+     * @param minBranchLength calibrated
+     * @param minTreeSize skeleton voxels
+     */
+    void setPruning(int pruneCycles, boolean pruneEnds, double minBranchLength, int minTreeSize) {
+        this.pruneCycles = pruneCycles;
+        this.pruneEnds = pruneEnds;
+        this.minBranchLength = minBranchLength;
+        this.minTreeSize = minTreeSize;
+    }
+
+    /**
+     * @param volumeMethod BLOBS or NEAREST_EDGE
+     */
+    void setVolumeMethod(int volumeMethod) {
+        this.volumeMethod = volumeMethod;
+    }
+
+    /**
+     * @return what sets an analysis with these options apart from one with
+     * other options, the region aside (see MaskBuilder.getKey())
+     */
+    String getAnalysisKey() {
+        return "prune " + pruneCycles + "," + pruneEnds + "," + minBranchLength + "," + minTreeSize
+                + " volumes " + volumeMethod + "," + spillBlobs + "," + blobLinking
+                + " shards " + shards + "," + shardOverlap;
+    }
+
+    /**
+     * @return the number of shards a frame is split into, 1 if it is
+     * analyzed in this JVM
+     */
+    int getShards() {
+        return shards;
+    }
+
+    /**
+     * @return how many slices a shard reaches into its neighbors
+     */
+    int getShardOverlap() {
+        return shardOverlap;
+    }
+
+    int getWorkersAtOnce() {
+        return workersAtOnce;
+    }
+
+    /**
+     * @return the heap of a worker JVM, in MB
+     */
+    int getWorkerMemory() {
+        return workerMemory;
+    }
+
+    /**
+     * @return AnalyzeSkeleton_.NONE or AnalyzeSkeleton_.SHORTEST_BRANCH
+     */
+    int getPruneCycles() {
+        return pruneCycles;
+    }
+
+    /**
+     * @return true if AnalyzeSkeleton is to prune all the end branches
+     */
+    boolean isPruneEnds() {
+        return pruneEnds;
+    }
+
+    /**
+     * @return the length (calibrated) below which end branches are dropped
+     */
+    double getMinBranchLength() {
+        return minBranchLength;
+    }
+
+    /**
+     * @return the number of skeleton voxels below which trees are dropped
+     */
+    int getMinTreeSize() {
+        return minTreeSize;
+    }
+
+    /**
+     * @return what part of the user's image is analyzed
+     */
+    MaskBuilder getMaskBuilder() {
+        return maskBuilder;
+    }
+
+    /**
+     * @return the number of channels analyzed: 1 unless all the frames of a
+     * hyperstack are
+     */
+    int getChannels() {
+        return channels;
+    }
+
+    /**
+     * @return the number of time points analyzed: 1 unless all the frames of
+     * a hyperstack are
+     */
+    int getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return how many frames of a hyperstack may be analyzed at the same time
+     */
+    int getFramesAtOnce() {
+        return framesAtOnce;
+    }
+
+    int getVolumeMethod() {
+        return volumeMethod;
+    }
+
+    /**
+     * @return true if the blob engine is to keep its blobs in a temporary
+     * file rather than in memory
+     */
+    boolean isSpillBlobs() {
+        return spillBlobs;
+    }
+
+    /**
+     * @return BlobVolumeEngine.EAGER, LAZY or LAZY_WARM
+     */
+    int getBlobLinking() {
+        return blobLinking;
+    }
+
+    /**
+     * @return true if the memory an analysis takes is to be checked before
+     * it is taken, and the blob modes picked to fit (see MemoryPlanner)
+     */
+    boolean isPlanMemory() {
+        return planMemory;
+    }
+
+    /**
+     * @return true if the edges are to be drawn with less detail the
+     * further away they are
+     */
+    boolean isLevelOfDetail() {
+        return levelOfDetail;
+    }
+
+    /**
+     * @return one of DRAW_SMALL_TREES, POINTS_FOR_SMALL_TREES or HIDE_SMALL_TREES
+     */
+    int getSmallTrees() {
+        return smallTrees;
+    }
+
+    int getMinTreeEdges() {
+        return minTreeEdges;
+    }
+
+    double getMinTreeLength() {
+        return minTreeLength;
+    }
+
+    /**
+     * Build the volume engine that the user chose. The engines take the
+     * mask (the original image prior to skeletonization) a slice at a time
+     * straight from the user's image. The blobs are kept the way the user
+     * chose, or, if the memory is planned, the way nearest to it that fits.
+     *
+     * @param imagePlus The user's image
+     * @param region The part of the image (and the frame) that was analyzed
+     * @param edgeTable The edges of the analyzed graph
+     * @return the engine
+     * @throws IllegalStateException if the memory is planned and the engine
+     * does not fit
+     */
+    VolumeEngine createVolumeEngine(ImagePlus imagePlus, MaskBuilder region, EdgeTable edgeTable) {
+        AnalysisStage.begin(AnalysisStage.VOLUMES);
+        boolean spill = spillBlobs;
+        int linking = blobLinking;
+        if (planMemory) {
+            MemoryPlanner.Mode mode = new MemoryPlanner(imagePlus, region, this).planVolumes(edgeTable);
+            spill = mode.spill;
+            linking = mode.linking;
+        }
+        ImageStack mask = region.maskStack(imagePlus);
+        switch (volumeMethod) {
+            case NEAREST_EDGE:
+                return new NearestEdgeEngine(mask, imagePlus.getCalibration(), edgeTable);
+            default:
+                return new BlobVolumeEngine(mask, edgeTable, spill, linking);
+        }
+    }
+}
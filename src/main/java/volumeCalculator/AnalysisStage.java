@@ -0,0 +1,96 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import ij.IJ;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * <p>
+ * The stages of an analysis - the mask, the skeleton, the network and the
+ * volumes - and the points where it may be cancelled. A stage shows what it
+ * is doing in the status bar and how far it got in the progress bar, and
+ * looks now and then whether the user pressed Esc or the thread was
+ * interrupted. If so it throws a CancellationException, and what the stage
+ * held is let go as the exception unwinds it.
+ * </p><p>
+ * The skeletonization and the analysis of the skeleton are done by plugins
+ * that cannot be stopped halfway: the analysis is cancelled before or after
+ * them. A finished skeleton is kept (see AnalysisCache) so that analyzing
+ * the image again picks up from it.
+ * </p>
+ */
+final class AnalysisStage {
+
+    static final String MASK = "Making the mask";
+    static final String SKELETON = "Skeletonizing";
+    static final String NETWORK = "Building the network";
+    static final String VOLUMES = "Measuring the volumes";
+
+    /* The progress bar is updated, and Esc looked at, every so many steps */
+    private static final int STEPS = 16;
+
+    private AnalysisStage() {
+    }
+
+    /**
+     * Start a stage.
+     *
+     * @param stage MASK, SKELETON...
+     */
+    static void begin(String stage) {
+        checkCanceled();
+        IJ.showStatus(stage + "... (Esc to cancel)");
+        IJ.showProgress(0.0);
+    }
+
+    /**
+     * Show how far a stage got and give the user a chance to cancel it.
+     *
+     * @param done The steps done
+     * @param total All the steps of the stage
+     */
+    static void progress(int done, int total) {
+        if (done % STEPS != 0 && done != total) return;
+        checkCanceled();
+        IJ.showProgress(done, total);
+    }
+
+    /**
+     * End a stage.
+     */
+    static void end() {
+        IJ.showProgress(1.0);
+        IJ.showStatus("");
+    }
+
+    /**
+     * @throws CancellationException if the user pressed Esc or the thread
+     * was interrupted
+     */
+    static void checkCanceled() {
+        if (IJ.escapePressed() || Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("The analysis was cancelled.");
+        }
+    }
+}
@@ -48,45 +48,51 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 import ij3d.Utils;
 import sc.fiji.skeletonize3D.Skeletonize3D_;
 import ij.ImagePlus;
-import ij.process.ImageProcessor;
 
 import java.awt.Color;
-import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.Set;
 import java.util.Stack;
 
 import org.jogamp.java3d.Appearance;
+import org.jogamp.java3d.BoundingSphere;
 import org.jogamp.java3d.BranchGroup;
 import org.jogamp.java3d.ColoringAttributes;
+import org.jogamp.java3d.DistanceLOD;
 import org.jogamp.java3d.Group;
 import org.jogamp.java3d.LineArray;
 import org.jogamp.java3d.LineAttributes;
 import org.jogamp.java3d.Node;
+import org.jogamp.java3d.PointArray;
 import org.jogamp.java3d.PointAttributes;
 import org.jogamp.java3d.Shape3D;
+import org.jogamp.java3d.Switch;
 import org.jogamp.vecmath.Color3f;
+import org.jogamp.vecmath.Point3d;
 import org.jogamp.vecmath.Point3f;
 
 import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
-import sc.fiji.analyzeSkeleton.Edge;
-import sc.fiji.analyzeSkeleton.Graph;
-import sc.fiji.analyzeSkeleton.Point;
 import sc.fiji.analyzeSkeleton.SkeletonResult;
-import sc.fiji.analyzeSkeleton.Vertex;
 
 /**
  * <p>
  * A Java 3D representation (sceneGraph) of an Analyzed image of (typically)
  * a vessel network.
  * </p><p>
- * AnalyzeSkeleton has created a forest of trees (graphs). We traverse all the
- * edges in all the trees and create a Java 3D representation of those edges
- * using the LineArray Shape.
+ * AnalyzeSkeleton has created a forest of trees (graphs). It is copied into a
+ * compact EdgeTable right away so that the SkeletonResult can be let go. We
+ * traverse all the edges in all the trees of that table and create a Java 3D
+ * representation of those edges using the LineArray Shape.
+ * </p><p>
+ * With level of detail, every edge also gets simplified versions of its
+ * line (see simplify()) and a Switch picks the one to draw. The Switches of
+ * a tree are driven by one DistanceLOD for the tree: the further away the
+ * tree is, the coarser its edges. The full detail line is the edge's shape
+ * as far as selection and volumes are concerned.
+ * </p><p>
+ * The trees that are too small to matter - usually noise - need not be
+ * drawn: they can be left out or shown all together as one cloud of points.
+ * They are still typed and measured, and any of them can be drawn later on.
  * </p>
  * @author p c marks - Maine Medical Center Research Institute www.mcri.org
  *
@@ -105,34 +111,56 @@ class AnalyzedGraph {
     private static float   EDGE_THICKNESS = 2.0f;
     private static float   VERTEX_THICKNESS = 2.0f;
     private static String  STATUS_BEGIN_CREATE_GRAPHIC = "Begin creating 3D graphic.";
+    /* Level of detail: the tolerances (in pixels) of the simplified lines
+     * and the viewing distances from which they are drawn. */
+    private static double[] LOD_TOLERANCES = {1.0, 3.0};
+    private static float[]  LOD_DISTANCES = {INITIAL_SCALE, 2 * INITIAL_SCALE};
 
-    /* Handles the image that is being picked */
-    private ImageProcessor ip;
-    /* The two plugins that we use to do the skeletonization and analysis */
-    private Skeletonize3D_ skeletonizer;
-    private AnalyzeSkeleton_ analyzeSkeleton;
-    //
-    SkeletonResult skeletonResult;
     /*
-     * AnalyzeSkeleton_ produces this graphical representation of the
-     * vasculature. Many trees in this forest.
+     * AnalyzeSkeleton_ produces a graphical representation of the
+     * vasculature - many trees in a forest. This is a compact copy of it
+     * with every edge numbered with a dense id, see EdgeTable.
      */
-    public SkeletonResult getSkeletonResult() {
-        return skeletonResult;
+    private EdgeTable edgeTable;
+
+    public EdgeTable getEdgeTable() {
+        return edgeTable;
     }
-    private Graph[] forest;
     /**
      * This is the Java 3D scene tree and a subclass of 3D Viewer ContentNode
      **/
     private GraphContentNode sceneGraph;
     private BranchGroup treeBG;
+    /*
+     * For every edge that is drawn: its shape, the tree it belongs to and the
+     * edge drawn just above it (the one whose Group holds its Group),
+     * NO_EDGE at the top of a tree. Edges that are not drawn have no shape.
+     * The upper vertex of an edge is the one it shares with its parent.
+     */
+    private Shape3D[] edgeShapes;
+    private int[] parentEdge;
+    private int[] upperVertex;
+    private int[] edgeTree;
+    /*
+     * The state of the traversal, kept for drawing small trees later.
+     */
+    private boolean[] visited;
+    private int[] predecessor;
+    /*
+     * Small trees: which are drawn, and the cloud of points of those that
+     * are not, with the tree of every point.
+     */
+    private boolean[] treeDrawn;
+    private BranchGroup smallTreesBG;
+    private Shape3D cloudShape;
+    private int[] cloudTrees;
 
-    private Map<Integer,Set<Edge>> sliceGuide = new HashMap<Integer,Set<Edge>>();
+    private SliceIndex sliceGuide;
 
     /**
-     *
+     * Which edges pass through a slice or a range of slices.
      */
-    public Map<Integer,Set<Edge>> getSliceGuide() {
+    public SliceIndex getSliceGuide() {
         return sliceGuide;
     }
     /**
@@ -145,6 +173,13 @@ class AnalyzedGraph {
     private float width;
     private float height;
     private float depth;
+    private int offsetX, offsetY, offsetZ;
+    /* How many pixels of the user's image a pixel of the analyzed image is */
+    private int scale = 1;
+    private boolean levelOfDetail;
+    private int smallTrees;
+    private int minTreeEdges;
+    private double minTreeLength;
 
     /**
      * Constructor
@@ -159,26 +194,99 @@ class AnalyzedGraph {
      * a Java 3D scene tree (BranchGroup).
      *
      * @param imagePlus The image with which to initialize this instance.
+     * @param options The choices the user made
+     */
+    void init(ImagePlus imagePlus, AnalysisOptions options) {
+        init(imagePlus, options, options.getMaskBuilder());
+    }
+
+    /**
+     * Initialize this instance with one frame of a hyperstack.
+     *
+     * @param imagePlus The mask of the frame
+     * @param options The choices the user made
+     * @param region The part of the user's image, and the frame, in the mask
      */
-    void init(ImagePlus imagePlus) {
+    void init(ImagePlus imagePlus, AnalysisOptions options, MaskBuilder region) {
+        init(imagePlus, options, region, 1);
+    }
+
+    /**
+     * Initialize this instance with a downsampled mask, for a preview. The
+     * network is drawn at the size of the user's image.
+     *
+     * @param imagePlus The mask, downsampled
+     * @param options The choices the user made
+     * @param region The part of the user's image, and the frame, in the mask
+     * @param scale How many times smaller the mask is
+     */
+    void init(ImagePlus imagePlus, AnalysisOptions options, MaskBuilder region, int scale) {
+        init(analyzeSkeleton(imagePlus, options), options, region, scale);
+    }
+
+    /**
+     * Initialize this instance with a network that is analyzed already, one
+     * that was kept from an earlier run (see AnalysisCache). Only the scene
+     * is built.
+     *
+     * @param edgeTable The network, neither traversed nor picked yet
+     * @param options The choices the user made
+     * @param region The part of the user's image, and the frame, analyzed
+     * @param scale How many times smaller the analyzed mask was
+     */
+    void init(EdgeTable edgeTable, AnalysisOptions options, MaskBuilder region, int scale) {
+        this.scale = scale;
+        levelOfDetail = options.isLevelOfDetail();
+        smallTrees = options.getSmallTrees();
+        minTreeEdges = options.getMinTreeEdges();
+        minTreeLength = options.getMinTreeLength();
 
         // use the image dimensions for the canvas. Very important. These values
         // are used to scale the image appropriately. See point2point3f()
-        width = imagePlus.getWidth();
-        height = imagePlus.getHeight();
-        depth = imagePlus.getStackSize();
+        // The analyzed image may be a box cut out of the user's image: it is
+        // drawn where it lies in the user's image.
+        width = region.getSourceWidth();
+        height = region.getSourceHeight();
+        depth = region.getSourceDepth();
+        offsetX = region.getX();
+        offsetY = region.getY();
+        offsetZ = region.getZ();
+
+        this.edgeTable = edgeTable;
+        AnalysisStage.checkCanceled();
+        ij.IJ.showStatus(STATUS_BEGIN_CREATE_GRAPHIC);
+        construct(edgeTable);
+        sliceGuide = new SliceIndex(edgeTable);
+        ij.IJ.showStatus("");
 
-        skeletonizer = new Skeletonize3D_();
+    }
+
+    /**
+     * Skeletonize a mask and analyze the skeleton. Nothing is drawn: this is
+     * all a script needs (see VolumeAnalysis).
+     *
+     * @param imagePlus The mask; it is skeletonized in place
+     * @param options The choices the user made
+     * @return the edges of the skeleton
+     */
+    static EdgeTable analyzeSkeleton(ImagePlus imagePlus, AnalysisOptions options) {
+        // The two plugins that we use to do the skeletonization and analysis.
+        // Neither is kept: once the EdgeTable is built they and their
+        // results can be garbage collected.
+        AnalysisStage.begin(AnalysisStage.SKELETON);
+        Skeletonize3D_ skeletonizer = new Skeletonize3D_();
         skeletonizer.setup("none", imagePlus);
-        skeletonizer.run(ip);
+        skeletonizer.run(imagePlus.getProcessor());
+        // Neither plugin can be stopped halfway; between them it can
+        AnalysisStage.checkCanceled();
 
-        analyzeSkeleton = new AnalyzeSkeleton_();
+        AnalyzeSkeleton_ analyzeSkeleton = new AnalyzeSkeleton_();
         analyzeSkeleton.setup("none", imagePlus);
         // There are two run()'s in analyze skeleton; We use the non-UI one.
-        skeletonResult =
+        SkeletonResult skeletonResult =
                 analyzeSkeleton.run(
-                    AnalyzeSkeleton_.NONE,          // Prune Index
-                    false,                          // prune ends?
+                    options.getPruneCycles(),       // Prune Index
+                    options.isPruneEnds(),          // prune ends?
                     false,                          // shortest path?
                     imagePlus,                      // The image to work on
                     true,                           // silent mode?
@@ -188,201 +296,701 @@ class AnalyzedGraph {
 
         // The SkeletonAnalyzer has tree graphs from which we will create
         // all of our Scene components.
-        forest = skeletonResult.getGraph();
-        ij.IJ.showStatus(STATUS_BEGIN_CREATE_GRAPHIC);
-        construct(forest);
-        constructSliceGuide(forest);
-        ij.IJ.showStatus("");
-
+        // Spurs and small trees are dropped here, before anything is built
+        // for them.
+        return new EdgeTable(skeletonResult.getGraph(),
+                options.getMinBranchLength(), options.getMinTreeSize());
     }
 
-    void construct(Graph[] forest) {
+    void construct(EdgeTable edgeTable) {
         // The SkeletonAnalyzer has made tree graph structures from which
         // we will create all of our Scene components.
         // Create a scene tree and fill it up one tree at a time.
         sceneGraph = new GraphContentNode();
         // Do this so that the sceneGraph can return SceneGraphPaths
         sceneGraph.setCapability(BranchGroup.ENABLE_PICK_REPORTING);
-        int graphCount = 0;
+        // Small trees may be drawn later, once the scene is live
+        sceneGraph.setCapability(Group.ALLOW_CHILDREN_EXTEND);
+        sceneGraph.setCapability(Group.ALLOW_CHILDREN_WRITE);
 
-        // Traverse all the edges in all the trees.
-        // The following algorithm is based on a similar algorithm that
-        // appears in the AnalyzeSkeleton plugin by Ignacio Carrero
-        for (Graph tree : forest) {
+        // Mark all vertices as non-visited and without a predecessor. The
+        // trees do not share vertices so this is done once for the forest.
+        visited = new boolean[edgeTable.vertexCount()];
+        predecessor = new int[edgeTable.vertexCount()];
+        Arrays.fill(predecessor, EdgeTable.NO_EDGE);
+        edgeShapes = new Shape3D[edgeTable.size()];
+        parentEdge = new int[edgeTable.size()];
+        upperVertex = new int[edgeTable.size()];
+        edgeTree = new int[edgeTable.size()];
+        treeDrawn = new boolean[edgeTable.treeCount()];
 
-            // Skip those trees with no (zero) edges
-            if (tree.getEdges().size() < 1) {
-                continue;
-            }
-//            // Skip those trees with one or less vertices
-//            if (tree.getVertices().size() < 1) {
-//                continue;
-//            }
-            graphCount++;
-            int vcount = 0;
-            int ecount = 0;
-            // Create empty stacks
-            Stack<Vertex> stack = new Stack<Vertex>();
-            Stack<Group> groupStack = new Stack<Group>(); // Java 3D Groups
-            // Mark all vertices as non-visited
-            for (final Vertex v : tree.getVertices()) {
-                v.setVisited(false);
-            }
-            // Push the root onto the stack
-            stack.push(tree.getEdges().get(0).getV1());
+        // Traverse all the edges in all the trees. Small trees are
+        // traversed (so that their edges are typed) but not drawn.
+        for (int tree = 0; tree < edgeTable.treeCount(); tree++) {
+            AnalysisStage.progress(tree + 1, edgeTable.treeCount());
+            boolean draw = smallTrees == AnalysisOptions.DRAW_SMALL_TREES || !isSmallTree(tree);
+            traverse(tree, draw);
+        }
+        smallTreesBG = buildSmallTrees();
+        if (smallTreesBG != null) {
+            sceneGraph.addChild(smallTreesBG);
+        }
+    }
+
+    /**
+     * Traverse the edges of a tree, marking them as TREE or BACK and, if it
+     * is to be drawn, building the Java 3D branch graph of the tree: a
+     * Group per vertex and per edge, and a Shape3D for each edge.
+     * The following algorithm is based on a similar algorithm that
+     * appears in the AnalyzeSkeleton plugin by Ignacio Carrero
+     *
+     * @param tree The tree number in the EdgeTable
+     * @param draw Whether to build the tree's branch graph
+     */
+    private void traverse(int tree, boolean draw) {
+
+        // Create empty stacks
+        Stack<Integer> stack = new Stack<Integer>();
+        Stack<Group> groupStack = new Stack<Group>(); // Java 3D Groups
+        // Push the root onto the stack
+        stack.push(edgeTable.getV1(edgeTable.treeStart(tree)));
 
-            // Create and push a BranchGroup for the tree onto its own stack
-            // and enable the ability to return itself in a SceneGraphPath
+        // Create and push a BranchGroup for the tree onto its own stack
+        // and enable the ability to return itself in a SceneGraphPath.
+        // Trees that are not drawn have no Groups at all.
+        DistanceLOD treeLOD = null;
+        if (draw) {
             treeBG = new BranchGroup();
             treeBG.setCapability(BranchGroup.ENABLE_PICK_REPORTING);
-            sceneGraph.addChild(treeBG);
-            groupStack.push(treeBG);
-            int visitOrder = 0;
-            // Follow all the vertices and edges building the sceneGraph
-            // as we go.
-            while (!stack.empty()) {
-                Vertex vertex = stack.pop();
-                Group vertexGroup = groupStack.pop();
-                // Has it been visited yet?
-                if (!vertex.isVisited()) {
-
-                    // If the vertex has not been visited yet, then
-                    // the edge from the predecessor to this vertex
-                    // is marked as TREE
-                    // A vertex will be represented by a Group Node
-                    UserData ud = new UserData(vertex);
+            if (levelOfDetail) {
+                treeLOD = new DistanceLOD(LOD_DISTANCES, treeCenter(tree));
+                treeLOD.setSchedulingBounds(new BoundingSphere(new Point3d(), Double.MAX_VALUE));
+            }
+        }
+        groupStack.push(draw ? treeBG : null);
+        // Follow all the vertices and edges building the sceneGraph
+        // as we go.
+        while (!stack.empty()) {
+            int vertex = stack.pop();
+            Group vertexGroup = groupStack.pop();
+            // Has it been visited yet?
+            if (!visited[vertex]) {
+
+                // If the vertex has not been visited yet, then
+                // the edge from the predecessor to this vertex
+                // is marked as TREE
+                // A vertex will be represented by a Group Node
+                if (vertexGroup != null) {
+                    UserData ud = new UserData();
                     vertexGroup.setUserData(ud);
+                }
 
-                    PointAttributes attr = new PointAttributes();
-                    attr.setPointSize(VERTEX_THICKNESS);
-                    PointAttributes treePointAttr = new PointAttributes();
-                    treePointAttr.setPointSize(TREE_POINT_THICKNESS);
-                    Appearance appear = new Appearance();
-                    appear.setPointAttributes(attr);
+                if (predecessor[vertex] != EdgeTable.NO_EDGE) {
+                    edgeTable.setType(predecessor[vertex], EdgeTable.TREE);
+                }
+                // mark as visited
+                visited[vertex] = true;
 
-                    if (vertex.getPredecessor() != null) {
-                        vertex.getPredecessor().setType(Edge.TREE);
-                    }
-                    // mark as visited
-                    vertex.setVisited(true, visitOrder++);
-                    vcount++;
-
-                    ArrayList<Edge> previousEdges = new ArrayList<Edge>();
-
-                    edgeLoop:
-                    for (final Edge edge : vertex.getBranches()) {
-                        /*
-                         * Look for duplicate, triplicate, ... branches leaving this
-                         * vertex. Permit only one or we'll have identical Java 3D
-                         * LineArray's and we won't be able to distinguish one from
-                         * the other when the user picks one.
-                         */
-                        for (Edge previousEdge : previousEdges) {
-                            if (edge.equals(previousEdge)) {
-                                continue edgeLoop;
-                            }
-                            if (edge.getV1().equals(previousEdge.getV1()) &&
-                                    edge.getV2().equals(previousEdge.getV2())) {
-                                continue edgeLoop;
-                            }
+                int firstBranch = edgeTable.branchStart(vertex);
+                edgeLoop:
+                for (int b = firstBranch; b < edgeTable.branchEnd(vertex); b++) {
+                    int edge = edgeTable.getBranch(b);
+                    if (edge == EdgeTable.NO_EDGE) continue;
+                    /*
+                     * Look for duplicate, triplicate, ... branches leaving this
+                     * vertex. Permit only one or we'll have identical Java 3D
+                     * LineArray's and we won't be able to distinguish one from
+                     * the other when the user picks one.
+                     */
+                    for (int p = firstBranch; p < b; p++) {
+                        int previousEdge = edgeTable.getBranch(p);
+                        if (edge == previousEdge) {
+                            continue edgeLoop;
+                        }
+                        if (previousEdge != EdgeTable.NO_EDGE &&
+                                edgeTable.getV1(edge) == edgeTable.getV1(previousEdge) &&
+                                edgeTable.getV2(edge) == edgeTable.getV2(previousEdge)) {
+                            continue edgeLoop;
                         }
-                        previousEdges.add(edge);
-
-                        // For the undefined branches:
-                        // We push the unvisited vertices on the stack,
-                        // and mark the edge to the others as BACK
-                        if (edge.getType() != Edge.BACK) {
-                            Vertex oppVertex = edge.getOppositeVertex(vertex);
-                            if (!oppVertex.isVisited()) {
-                                ecount++;
-
-                                Vertex v1 = edge.getV1();
-                                Vertex v2 = edge.getV2();
-                                Group edgeGroup = new Group();
-                                // Enable the ability to return itself in a SceneGraphPath
-                                edgeGroup.setCapability(BranchGroup.ENABLE_PICK_REPORTING);
-
-                                vertexGroup.addChild(edgeGroup);
-
-                                int numberOfEdges  = 1 + edge.getSlabs().size();
-                                int numberOfPoints = 2 * numberOfEdges;
-
-                                LineArray la = new LineArray(numberOfPoints, LineArray.COORDINATES);
-                                la.setCoordinate(0, point2point3f(v1.getPoints().get(0)));
-                                for (int edgePoint = 0; edgePoint < edge.getSlabs().size();edgePoint++) {
-                                    Point point = edge.getSlabs().get(edgePoint);
-                                    la.setCoordinate((2*edgePoint)+1, point2point3f(point));
-                                    la.setCoordinate((2*edgePoint)+2, point2point3f(point));
-                                }
-                                la.setCoordinate(numberOfPoints-1, point2point3f(v2.getPoints().get(0)));
-
-//                                LineArray la = new LineArray(2, LineArray.COORDINATES);
-//                                la.setCoordinate(0, point2point3f(v1.getPoints().get(0)));
-//                                la.setCoordinate(1, point2point3f(v2.getPoints().get(0)));
-//++
-                                la.setCapability(LineArray.ALLOW_COLOR_READ);
-                                la.setCapability(LineArray.ALLOW_COLOR_WRITE);
-//++
-                                Appearance appearance = new Appearance();
-                                appearance.setCapability(Appearance.ALLOW_COLORING_ATTRIBUTES_READ);
-                                appearance.setCapability(Appearance.ALLOW_COLORING_ATTRIBUTES_WRITE);
-
-                                LineAttributes lineAttributes = new LineAttributes();
-                                lineAttributes.setLineWidth(EDGE_THICKNESS);
-                                appearance.setLineAttributes(lineAttributes);
-
-                                ColoringAttributes colorAttributes = new ColoringAttributes();
-                                colorAttributes.setCapability(ColoringAttributes.ALLOW_COLOR_READ);
-                                colorAttributes.setCapability(ColoringAttributes.ALLOW_COLOR_WRITE);
-                                colorAttributes.setColor(EDGE_COLOR_3f);
-                                appearance.setColoringAttributes(colorAttributes);
-
-                                // Build a shape to represent the edge
-                                Shape3D edgeShape = new Shape3D(la, appearance);
-
-                                edgeShape.setCapability(Shape3D.ALLOW_APPEARANCE_READ);
-                                edgeShape.setCapability(Shape3D.ALLOW_APPEARANCE_WRITE);
-
-                                ud = new UserData(edge);
-                                edgeShape.setUserData(ud);
-
-                                edgeGroup.addChild(edgeShape);
-
-
-                                groupStack.push(edgeGroup);
-                                stack.push(oppVertex);
-                                oppVertex.setPredecessor(edge);
-                            } else {
-                                edge.setType(Edge.BACK);
+                    }
+
+                    // For the undefined branches:
+                    // We push the unvisited vertices on the stack,
+                    // and mark the edge to the others as BACK
+                    if (edgeTable.getType(edge) != EdgeTable.BACK) {
+                        int oppVertex = edgeTable.getOppositeVertex(edge, vertex);
+                        if (!visited[oppVertex]) {
+                            Group edgeGroup = null;
+                            if (vertexGroup != null) {
+                                edgeGroup = drawEdge(edge, vertexGroup, treeLOD);
                             }
+                            parentEdge[edge] = predecessor[vertex];
+                            upperVertex[edge] = vertex;
+                            edgeTree[edge] = tree;
+
+                            groupStack.push(edgeGroup);
+                            stack.push(oppVertex);
+                            predecessor[oppVertex] = edge;
+                        } else {
+                            edgeTable.setType(edge, EdgeTable.BACK);
                         }
                     }
                 }
             }
         }
+        if (draw) {
+            if (treeLOD != null && treeLOD.numSwitches() > 0) {
+                treeBG.addChild(treeLOD);
+            }
+            sceneGraph.addChild(treeBG);
+            treeDrawn[tree] = true;
+        }
+    }
+
+    /**
+     * Build the Group and the Shape3D of an edge below the Group of the
+     * vertex it leaves from.
+     *
+     * @return the Group of the edge, under which its lower vertex goes
+     */
+    private Group drawEdge(int edge, Group vertexGroup, DistanceLOD treeLOD) {
+        int v1 = edgeTable.getV1(edge);
+        int v2 = edgeTable.getV2(edge);
+        Group edgeGroup = new Group();
+        // Enable the ability to return itself in a SceneGraphPath
+        edgeGroup.setCapability(BranchGroup.ENABLE_PICK_REPORTING);
+
+        vertexGroup.addChild(edgeGroup);
+
+        int numberOfEdges  = 1 + edgeTable.getSlabCount(edge);
+        int numberOfPoints = 2 * numberOfEdges;
+
+        LineArray la = new LineArray(numberOfPoints, LineArray.COORDINATES);
+        la.setCoordinate(0, vertex2point3f(v1));
+        int edgePoint = 0;
+        for (int slab = edgeTable.slabStart(edge); slab < edgeTable.slabEnd(edge); slab++) {
+            Point3f point = point2point3f(
+                    edgeTable.getSlabX(slab),
+                    edgeTable.getSlabY(slab),
+                    edgeTable.getSlabZ(slab));
+            la.setCoordinate((2*edgePoint)+1, point);
+            la.setCoordinate((2*edgePoint)+2, point);
+            edgePoint++;
+        }
+        la.setCoordinate(numberOfPoints-1, vertex2point3f(v2));
+
+        la.setCapability(LineArray.ALLOW_COLOR_READ);
+        la.setCapability(LineArray.ALLOW_COLOR_WRITE);
+
+        Appearance appearance = new Appearance();
+        appearance.setCapability(Appearance.ALLOW_COLORING_ATTRIBUTES_READ);
+        appearance.setCapability(Appearance.ALLOW_COLORING_ATTRIBUTES_WRITE);
+
+        LineAttributes lineAttributes = new LineAttributes();
+        lineAttributes.setLineWidth(EDGE_THICKNESS);
+        appearance.setLineAttributes(lineAttributes);
+
+        ColoringAttributes colorAttributes = new ColoringAttributes();
+        colorAttributes.setCapability(ColoringAttributes.ALLOW_COLOR_READ);
+        colorAttributes.setCapability(ColoringAttributes.ALLOW_COLOR_WRITE);
+        colorAttributes.setColor(EDGE_COLOR_3f);
+        appearance.setColoringAttributes(colorAttributes);
+
+        // Build a shape to represent the edge
+        Shape3D edgeShape = new Shape3D(la, appearance);
+
+        edgeShape.setCapability(Shape3D.ALLOW_APPEARANCE_READ);
+        edgeShape.setCapability(Shape3D.ALLOW_APPEARANCE_WRITE);
+
+        UserData ud = new UserData(null, edge);
+        edgeShape.setUserData(ud);
+
+        if (treeLOD != null) {
+            edgeGroup.addChild(levelsOfDetail(edge, edgeShape, treeLOD));
+        } else {
+            edgeGroup.addChild(edgeShape);
+        }
+        edgeShapes[edge] = edgeShape;
+        return edgeGroup;
+    }
+
+    /**
+     * A tree is small if it has fewer edges, or its edges are shorter in
+     * all (in pixels), than the user asked for.
+     */
+    private boolean isSmallTree(int tree) {
+        if (edgeTable.treeEnd(tree) - edgeTable.treeStart(tree) < minTreeEdges) {
+            return true;
+        }
+        double length = 0;
+        for (int edge = edgeTable.treeStart(tree); edge < edgeTable.treeEnd(tree); edge++) {
+            int previous = -1;
+            for (int index = 0; index <= edgeTable.getSlabCount(edge) + 1; index++) {
+                int[] point = linePixel(edge, index);
+                if (previous >= 0) {
+                    int[] last = linePixel(edge, previous);
+                    double dx = point[0] - last[0];
+                    double dy = point[1] - last[1];
+                    double dz = point[2] - last[2];
+                    length += Math.sqrt(dx * dx + dy * dy + dz * dz);
+                }
+                previous = index;
+            }
+            if (length * scale >= minTreeLength) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * A point of the line of an edge in pixels: 0 is V1, 1 .. n the slabs,
+     * n+1 V2.
+     */
+    private int[] linePixel(int edge, int index) {
+        if (index == 0) {
+            int v1 = edgeTable.getV1(edge);
+            return new int[]{edgeTable.getVertexX(v1), edgeTable.getVertexY(v1), edgeTable.getVertexZ(v1)};
+        }
+        if (index > edgeTable.getSlabCount(edge)) {
+            int v2 = edgeTable.getV2(edge);
+            return new int[]{edgeTable.getVertexX(v2), edgeTable.getVertexY(v2), edgeTable.getVertexZ(v2)};
+        }
+        int slab = edgeTable.slabStart(edge) + index - 1;
+        return new int[]{edgeTable.getSlabX(slab), edgeTable.getSlabY(slab), edgeTable.getSlabZ(slab)};
+    }
+
+    /**
+     * The trees that are not drawn are shown, if the user wants, as one
+     * cloud of points: the vertices and slabs of all of them in a single
+     * PointArray. Which tree each point belongs to is kept so that clicking
+     * a point can draw its tree.
+     *
+     * @return the BranchGroup holding the cloud, or null if there is nothing
+     * to show
+     */
+    private BranchGroup buildSmallTrees() {
+        if (smallTrees != AnalysisOptions.POINTS_FOR_SMALL_TREES) {
+            return null;
+        }
+        int nPoints = 0;
+        for (int tree = 0; tree < edgeTable.treeCount(); tree++) {
+            if (treeDrawn[tree]) continue;
+            for (int edge = edgeTable.treeStart(tree); edge < edgeTable.treeEnd(tree); edge++) {
+                nPoints += edgeTable.getSlabCount(edge) + 2;
+            }
+        }
+        if (nPoints == 0) {
+            cloudTrees = new int[0];
+            return null;
+        }
+        PointArray cloud = new PointArray(nPoints, PointArray.COORDINATES);
+        cloudTrees = new int[nPoints];
+        int next = 0;
+        for (int tree = 0; tree < edgeTable.treeCount(); tree++) {
+            if (treeDrawn[tree]) continue;
+            for (int edge = edgeTable.treeStart(tree); edge < edgeTable.treeEnd(tree); edge++) {
+                for (int index = 0; index <= edgeTable.getSlabCount(edge) + 1; index++) {
+                    cloud.setCoordinate(next, linePoint(edge, index));
+                    cloudTrees[next++] = tree;
+                }
+            }
+        }
+        Appearance appearance = new Appearance();
+        PointAttributes pointAttributes = new PointAttributes();
+        pointAttributes.setPointSize(TREE_POINT_THICKNESS);
+        appearance.setPointAttributes(pointAttributes);
+        ColoringAttributes colorAttributes = new ColoringAttributes();
+        colorAttributes.setColor(TREE_POINT_COLOR);
+        appearance.setColoringAttributes(colorAttributes);
+        cloudShape = new Shape3D(cloud, appearance);
+        cloudShape.setUserData(new UserData());
+
+        BranchGroup cloudBG = new BranchGroup();
+        cloudBG.setCapability(BranchGroup.ALLOW_DETACH);
+        cloudBG.addChild(cloudShape);
+        return cloudBG;
+    }
+
+    /**
+     * @param node a picked node
+     * @return true if it is the cloud of points of the small trees
+     */
+    boolean isSmallTreeCloud(Node node) {
+        return node != null && node == cloudShape;
+    }
+
+    /**
+     * Draw the small tree that a point of the cloud belongs to.
+     *
+     * @param point the index of a point of the cloud
+     */
+    void drawSmallTreeAt(int point) {
+        if (cloudTrees != null && point >= 0 && point < cloudTrees.length) {
+            drawSmallTrees(cloudTrees[point], cloudTrees[point] + 1);
+        }
+    }
+
+    /**
+     * Draw all the trees that were left out because they are small.
+     */
+    void drawAllSmallTrees() {
+        drawSmallTrees(0, edgeTable.treeCount());
+    }
+
+    /*
+     * Build the branch graphs of the undrawn trees in [fromTree, toTree),
+     * add them to the live scene and rebuild the cloud without them. Their
+     * edges are traversed again, exactly as when they were first typed.
+     */
+    private synchronized void drawSmallTrees(int fromTree, int toTree) {
+        boolean changed = false;
+        for (int tree = fromTree; tree < toTree; tree++) {
+            if (treeDrawn[tree]) continue;
+            for (int edge = edgeTable.treeStart(tree); edge < edgeTable.treeEnd(tree); edge++) {
+                edgeTable.setType(edge, EdgeTable.UNDEFINED);
+                for (int vertex : new int[]{edgeTable.getV1(edge), edgeTable.getV2(edge)}) {
+                    visited[vertex] = false;
+                    predecessor[vertex] = EdgeTable.NO_EDGE;
+                }
+            }
+            traverse(tree, true);
+            changed = true;
+        }
+        if (changed && smallTreesBG != null) {
+            smallTreesBG.detach();
+            smallTreesBG = buildSmallTrees();
+            if (smallTreesBG != null) {
+                sceneGraph.addChild(smallTreesBG);
+            }
+        }
+    }
+
+    /**
+     * The Switch with the full detail shape of an edge and its simplified
+     * versions, one for each LOD_TOLERANCES, all sharing its Appearance.
+     * The Switch is driven by the tree's DistanceLOD. An edge that cannot be
+     * simplified keeps just its shape.
+     *
+     * @return the node that draws the edge
+     */
+    private Node levelsOfDetail(int edge, Shape3D edgeShape, DistanceLOD treeLOD) {
+        int fullCount = edgeTable.getSlabCount(edge) + 2;
+        int[] kept = simplify(edge, LOD_TOLERANCES[0]);
+        if (kept.length == fullCount) {
+            return edgeShape;
+        }
+        Switch levels = new Switch(0);
+        levels.setCapability(Switch.ALLOW_SWITCH_WRITE);
+        levels.setUserData(edgeShape.getUserData());
+        levels.addChild(edgeShape);
+        LineArray geometry = null;
+        int geometryCount = fullCount;
+        for (int level = 0; level < LOD_TOLERANCES.length; level++) {
+            if (level > 0) {
+                kept = simplify(edge, LOD_TOLERANCES[level]);
+            }
+            // Geometry is shared when simplifying any further does nothing
+            if (kept.length < geometryCount) {
+                geometry = new LineArray(2 * (kept.length - 1), LineArray.COORDINATES);
+                for (int k = 0; k + 1 < kept.length; k++) {
+                    geometry.setCoordinate(2 * k, linePoint(edge, kept[k]));
+                    geometry.setCoordinate(2 * k + 1, linePoint(edge, kept[k + 1]));
+                }
+                geometryCount = kept.length;
+            }
+            Shape3D levelShape = new Shape3D(geometry, edgeShape.getAppearance());
+            levelShape.setCapability(Shape3D.ALLOW_APPEARANCE_READ);
+            levelShape.setUserData(edgeShape.getUserData());
+            levels.addChild(levelShape);
+        }
+        treeLOD.addSwitch(levels);
+        return levels;
+    }
+
+    /**
+     * <p>
+     * Douglas-Peucker simplification of the line of an edge: V1, its slabs,
+     * V2. The end points are kept; then, within a stretch, the point furthest
+     * from the straight line between the stretch's ends is kept if it is
+     * further away than the tolerance, splitting the stretch in two.
+     * </p>
+     *
+     * @param edge
+     * @param tolerance in pixels
+     * @return the points kept (0 is V1, 1 .. n the slabs, n+1 V2), in order
+     */
+    int[] simplify(int edge, double tolerance) {
+        int n = edgeTable.getSlabCount(edge) + 2;
+        int[] x = new int[n];
+        int[] y = new int[n];
+        int[] z = new int[n];
+        int v1 = edgeTable.getV1(edge);
+        int v2 = edgeTable.getV2(edge);
+        x[0] = edgeTable.getVertexX(v1);
+        y[0] = edgeTable.getVertexY(v1);
+        z[0] = edgeTable.getVertexZ(v1);
+        for (int slab = edgeTable.slabStart(edge), i = 1; slab < edgeTable.slabEnd(edge); slab++, i++) {
+            x[i] = edgeTable.getSlabX(slab);
+            y[i] = edgeTable.getSlabY(slab);
+            z[i] = edgeTable.getSlabZ(slab);
+        }
+        x[n - 1] = edgeTable.getVertexX(v2);
+        y[n - 1] = edgeTable.getVertexY(v2);
+        z[n - 1] = edgeTable.getVertexZ(v2);
+
+        boolean[] keep = new boolean[n];
+        keep[0] = true;
+        keep[n - 1] = true;
+        int count = 2;
+        // The stretches still to be looked at, as (first, last) pairs
+        int[] stretches = new int[2 * n];
+        int top = 0;
+        stretches[top++] = 0;
+        stretches[top++] = n - 1;
+        double limit = tolerance * tolerance;
+        while (top > 0) {
+            int last = stretches[--top];
+            int first = stretches[--top];
+            double dx = x[last] - x[first];
+            double dy = y[last] - y[first];
+            double dz = z[last] - z[first];
+            double length2 = dx * dx + dy * dy + dz * dz;
+            double furthest = limit;
+            int split = -1;
+            for (int i = first + 1; i < last; i++) {
+                double px = x[i] - x[first];
+                double py = y[i] - y[first];
+                double pz = z[i] - z[first];
+                double t = (length2 == 0) ? 0
+                        : Math.max(0, Math.min(1, (px * dx + py * dy + pz * dz) / length2));
+                double ex = px - t * dx;
+                double ey = py - t * dy;
+                double ez = pz - t * dz;
+                double distance2 = ex * ex + ey * ey + ez * ez;
+                if (distance2 > furthest) {
+                    furthest = distance2;
+                    split = i;
+                }
+            }
+            if (split >= 0) {
+                keep[split] = true;
+                count++;
+                stretches[top++] = first;
+                stretches[top++] = split;
+                stretches[top++] = split;
+                stretches[top++] = last;
+            }
+        }
+        int[] kept = new int[count];
+        for (int i = 0, k = 0; i < n; i++) {
+            if (keep[i]) kept[k++] = i;
+        }
+        return kept;
+    }
+
+    /*
+     * A point of the line of an edge: 0 is V1, 1 .. n the slabs, n+1 V2.
+     */
+    private Point3f linePoint(int edge, int index) {
+        if (index == 0) {
+            return vertex2point3f(edgeTable.getV1(edge));
+        }
+        if (index > edgeTable.getSlabCount(edge)) {
+            return vertex2point3f(edgeTable.getV2(edge));
+        }
+        int slab = edgeTable.slabStart(edge) + index - 1;
+        return point2point3f(edgeTable.getSlabX(slab), edgeTable.getSlabY(slab), edgeTable.getSlabZ(slab));
+    }
+
+    /*
+     * The middle of the box around the vertices of a tree, where its
+     * DistanceLOD measures the viewing distance from.
+     */
+    private Point3f treeCenter(int tree) {
+        int[] low = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE};
+        int[] high = {Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+        for (int edge = edgeTable.treeStart(tree); edge < edgeTable.treeEnd(tree); edge++) {
+            for (int vertex : new int[]{edgeTable.getV1(edge), edgeTable.getV2(edge)}) {
+                int[] point = {edgeTable.getVertexX(vertex), edgeTable.getVertexY(vertex),
+                    edgeTable.getVertexZ(vertex)};
+                for (int d = 0; d < 3; d++) {
+                    low[d] = Math.min(low[d], point[d]);
+                    high[d] = Math.max(high[d], point[d]);
+                }
+            }
+        }
+        return point2point3f((low[0] + high[0]) / 2, (low[1] + high[1]) / 2, (low[2] + high[2]) / 2);
+    }
+
+    /**
+     * The full detail shape of the edge drawn by a node of the scene: the
+     * node itself if it is an edge shape or, with level of detail, the edge
+     * shape of its Switch.
+     *
+     * @param node a node of the scene graph
+     * @return the edge shape or null if the node does not draw an edge
+     */
+    Shape3D edgeShapeOf(Node node) {
+        if (node instanceof Shape3D) {
+            return (Shape3D) node;
+        }
+        if (node instanceof Switch && node.getUserData() instanceof UserData) {
+            return edgeShapes[((UserData) node.getUserData()).getEdgeId()];
+        }
+        return null;
+    }
+
+    /**
+     * The slab of an edge closest to a point on its line, for instance where
+     * it was picked.
+     *
+     * @param id an edge id
+     * @param point in the coordinates of the lines
+     * @return the slab number (0 .. n-1, 0 if the edge has no slabs)
+     */
+    int nearestSlab(int id, Point3d point) {
+        int nearest = 0;
+        double nearestDistance = Double.MAX_VALUE;
+        for (int slab = edgeTable.slabStart(id); slab < edgeTable.slabEnd(id); slab++) {
+            Point3f slabPoint = point2point3f(
+                    edgeTable.getSlabX(slab), edgeTable.getSlabY(slab), edgeTable.getSlabZ(slab));
+            double dx = slabPoint.x - point.x;
+            double dy = slabPoint.y - point.y;
+            double dz = slabPoint.z - point.z;
+            double distance = dx * dx + dy * dy + dz * dz;
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearest = slab - edgeTable.slabStart(id);
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * @param id an edge id
+     * @return the shape that draws the edge or null if it is not drawn
+     */
+    Shape3D getEdgeShape(int id) {
+        return edgeShapes[id];
+    }
+
+    /**
+     * Paint an edge, if it is drawn. Its simplified lines share its
+     * appearance and follow.
+     *
+     * @param id The edge
+     * @param color The color, or null for the color of edges not selected
+     */
+    void paintEdge(int id, Color3f color) {
+        Shape3D shape = edgeShapes[id];
+        if (shape == null) return;
+        ColoringAttributes ca = shape.getAppearance().getColoringAttributes();
+        ca.setColor(color == null ? EDGE_COLOR_3f : color);
+    }
+
+    /**
+     * Find the edges that join two drawn edges, the same ones that are
+     * selected when the two edges are clicked in the 3D view: the edges
+     * below the deepest shared edge on both sides, or - if one edge lies
+     * above the other - that edge and the ones below it down to the other.
+     *
+     * @param first an edge id
+     * @param second an edge id
+     * @return the ids of the edges on the path, or null if the edges are in
+     *         different trees.
+     */
+    int[] getPathBetween(int first, int second) {
+        if (edgeShapes[first] == null || edgeShapes[second] == null
+                || edgeTree[first] != edgeTree[second]) {
+            return null;
+        }
+        int[] path1 = pathFromTop(first);
+        int[] path2 = pathFromTop(second);
+        int common = 0;
+        while (common < path1.length && common < path2.length
+                && path1[common] == path2[common]) {
+            common++;
+        }
+        int[] path = new int[path1.length + path2.length];
+        int count = 0;
+        if (path1.length > common) {
+            for (int i = common; i < path1.length; i++) path[count++] = path1[i];
+        } else {
+            path[count++] = path1[common - 1];
+        }
+        if (first != second) {
+            if (path2.length > common) {
+                for (int i = common; i < path2.length; i++) path[count++] = path2[i];
+            } else {
+                path[count++] = path2[common - 1];
+            }
+        }
+        return Arrays.copyOf(path, count);
+    }
+
+    /**
+     * @param id a drawn edge
+     * @return the vertex that the edge shares with the edge above it
+     */
+    int getUpperVertex(int id) {
+        return upperVertex[id];
+    }
+
+    /**
+     * @param id a drawn edge
+     * @param other a drawn edge
+     * @return true if other lies below the edge, in the same tree
+     */
+    boolean isAbove(int id, int other) {
+        for (int e = parentEdge[other]; e != EdgeTable.NO_EDGE; e = parentEdge[e]) {
+            if (e == id) return true;
+        }
+        return false;
+    }
+
+    /*
+     * The edges from the top of the tree down to this edge.
+     */
+    private int[] pathFromTop(int id) {
+        int depth = 0;
+        for (int e = id; e != EdgeTable.NO_EDGE; e = parentEdge[e]) depth++;
+        int[] path = new int[depth];
+        for (int e = id; e != EdgeTable.NO_EDGE; e = parentEdge[e]) path[--depth] = e;
+        return path;
     }
 
     /**
      * A little function that translates an analysis point to
      * an AWT point.
      *
-     * @param point - Analysis point
+     * @param px, py, pz - Analysis point
      * @return Point3f - AWT point
      */
-    private Point3f point2point3f(Point point) {
+    private Point3f point2point3f(int px, int py, int pz) {
         float x, y, z;
-//        x = (point.x - (width / 2.0f)) / width;
-//        y = (point.y - (height / 2.0f)) / height;
-//        z = (point.z - (depth / 2.0f)) / depth;
-        x = (point.x) / width;
-        y = (point.y) / height;
-//        z = (point.z) / depth;
-        z = (point.z) / height;
+//        x = (px - (width / 2.0f)) / width;
+//        y = (py - (height / 2.0f)) / height;
+//        z = (pz - (depth / 2.0f)) / depth;
+        x = (px * scale + offsetX) / width;
+        y = (py * scale + offsetY) / height;
+//        z = (pz) / depth;
+        z = (pz * scale + offsetZ) / height;
         Point3f point3f = new Point3f(x, y, z);
         point3f.scale(INITIAL_SCALE);
         return point3f;
     }
 
+    /**
+     * The AWT point of a vertex: its first point.
+     */
+    private Point3f vertex2point3f(int vertex) {
+        return point2point3f(
+                edgeTable.getVertexX(vertex),
+                edgeTable.getVertexY(vertex),
+                edgeTable.getVertexZ(vertex));
+    }
+
     void resetColorAtGroup(Group startGroup, Color3f edgeColor) {
         Color3f currentColor = new Color3f();
         Color3f resetColor = Utils.toColor3f(EDGE_COLOR);
@@ -400,17 +1008,14 @@ class AnalyzedGraph {
                     }
                     ca.setColor(resetColor);
                     appearance.setColoringAttributes(ca);
-                    LineArray segments = (LineArray) shape.getGeometry();
-                    int nSegs = segments.getVertexCount();
-                    for (int i = 0; i < nSegs; i++) {
-                        UserData ud = (UserData) (shape.getUserData());
-                        ud.setColorIndex(99);
-                    }
+                    UserData ud = (UserData) (shape.getUserData());
+                    edgeTable.setColorIndex(ud.getEdgeId(), UserData.INITIAL_COLOR_INDEX);
+                    edgeTable.setVoxelCount(ud.getEdgeId(), 0);
                 }
 
-            } else {
-                // Assume this node is a Group and recurse - follow the
-                // branches.
+            } else if (node instanceof Group) {
+                // This node is a Group (or a level of detail Switch) -
+                // recurse and follow the branches.
                 resetColorAtGroup((Group) node, edgeColor);
 
             }
@@ -425,51 +1030,4 @@ class AnalyzedGraph {
     void resetColor(Color3f edgeColor) {
         resetColorAtGroup(sceneGraph, edgeColor);
     }
-
-
-    private void constructSliceGuide(Graph[] forest) {
-        for (Graph tree: forest) {
-            for (Edge edge : tree.getEdges()) {
-                saveSliceInfo(edge.getV1().getPoints().get(0).z, edge);
-                saveSliceInfo(edge.getV2().getPoints().get(0).z, edge);
-                for (Point point : edge.getSlabs()) {
-                    saveSliceInfo(point.z, edge);
-                }
-            }
-        }
-    }
-    private void saveSliceInfo(Integer slice, Edge edge) {
-        if (sliceGuide.containsKey(slice)) {
-            sliceGuide.get(slice).add(edge);
-        } else {
-            Set<Edge> newSet = new HashSet<Edge>();
-            newSet.add(edge);
-            sliceGuide.put(slice, newSet);
-        }
-
-    }
-
-    private void constructEdgeGuide(Graph[] forest) {
-        for (Graph tree : forest) {
-            for (Edge edge : tree.getEdges()) {
-                saveEdgeInfo(edge.getV1().getPoints().get(0), edge);
-                saveEdgeInfo(edge.getV2().getPoints().get(0), edge);
-            }
-        }
-    }
-
-    private static Map<Point, Set<Edge>> edgeGuide = new HashMap<Point, Set<Edge>>();
-
-    public Map<Point, Set<Edge>> getEdgeGuide() {
-        return edgeGuide;
-    }
-    private void saveEdgeInfo(Point point, Edge edge) {
-        if (edgeGuide.containsKey(point)) {
-            edgeGuide.get(point).add(edge);
-        } else {
-            Set<Edge> newSet = new HashSet<Edge>();
-            newSet.add(edge);
-            edgeGuide.put(point, newSet);
-        }
-    }
 }
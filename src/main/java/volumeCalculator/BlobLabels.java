@@ -0,0 +1,575 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import ij.ImageStack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * All the blobs of an image and how they overlap from slice to slice.
+ * </p><p>
+ * A blob is a set of contiguous (8-connected) foreground pixels in one slice,
+ * foreground meaning a pixel value of 255. Every slice is labeled once, in
+ * one pass over the image, and its blobs are kept as runs of pixels: for each
+ * row the runs [start, end] of foreground pixels and the blob that each run
+ * belongs to. Blobs are numbered with dense ids, slice after slice, and the
+ * number of pixels in each blob is kept.
+ * </p><p>
+ * A blob in slice z overlaps a blob in slice z+1 if one of its pixels touches
+ * (26-connectivity) a pixel of the other. These overlaps form a graph that is
+ * kept in packed arrays: for every blob the blobs it overlaps in the slice
+ * above and in the slice below. Following the vessel from slice to slice is a
+ * walk in this graph; no pixels need to be looked at again.
+ * </p><p>
+ * The slices are labeled as they are read (see SliceStream): the image is
+ * never in memory, only the slice being labeled and the few read ahead. The
+ * runs and overlaps of the slices may also be spilled to a temporary file,
+ * each slice as soon as it is finished - that is, once the slice above it is
+ * labeled and linked to it. They are then read back when they are needed and
+ * only the last MAX_CACHED_SLICES of them are kept; what stays in memory is
+ * a few numbers per blob.
+ * </p>
+ */
+class BlobLabels {
+
+    static final int NO_BLOB = -1;
+    /* The number of spilled slices kept in memory */
+    static final int MAX_CACHED_SLICES = 32;
+
+    private final int width;
+    private final int height;
+    private final Slice[] slices;
+
+    /* The spill file, or null if the slices are all kept in memory */
+    private FileChannel spill;
+    /* Where each spilled slice is in the file and how many ints it is */
+    private long[] spillOffset;
+    private int[] spillLength;
+    private long spillEnd = 0;
+    /* The engines that read the blobs: the spill file is closed after the last */
+    private int holders = 0;
+    private final Map<Integer, Slice> cache =
+            new LinkedHashMap<Integer, Slice>(MAX_CACHED_SLICES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Slice> eldest) {
+                    return size() > MAX_CACHED_SLICES;
+                }
+            };
+
+    /* Per blob */
+    private int[] blobSlice = new int[1024];
+    private int[] blobSize = new int[1024];
+    private int blobCount = 0;
+
+    /**
+     * The runs of one slice and its overlaps with the slices above and below.
+     * Its blobs have the ids [base, base + count).
+     */
+    private static class Slice {
+        int base;
+        int count;
+        /* The runs of row y are [rowOffsets[y], rowOffsets[y+1]) */
+        int[] rowOffsets;
+        int[] runStart;
+        int[] runEnd;           // inclusive
+        int[] runBlob;          // blob id of each run
+        /* Overlapping blobs in slice z+1 (up) and z-1 (down), by local blob */
+        int[] upOffsets;
+        int[] up;
+        int[] downOffsets;
+        int[] down;
+
+        /* The number of ints it holds */
+        long length() {
+            return rowOffsets.length + runStart.length + runEnd.length + runBlob.length
+                    + upOffsets.length + up.length + downOffsets.length + down.length;
+        }
+    }
+
+    /**
+     * Label all the slices of a stack of 8-bit images and work out the
+     * overlaps between neighboring slices.
+     *
+     * @param stack the original, unskeletonized image
+     */
+    BlobLabels(ImageStack stack) {
+        this(stack, false);
+    }
+
+    /**
+     * Label all the slices of a stack of 8-bit images and work out the
+     * overlaps between neighboring slices.
+     *
+     * @param stack the original, unskeletonized image
+     * @param spill true to keep the slices in a temporary file rather than
+     * in memory
+     */
+    BlobLabels(ImageStack stack, boolean spill) {
+        this.width = stack.getWidth();
+        this.height = stack.getHeight();
+        this.slices = new Slice[stack.getSize()];
+        if (spill) {
+            openSpill();
+        }
+        SliceStream stream = new SliceStream(stack);
+        try {
+            for (int z = 0; z < slices.length; z++) {
+                AnalysisStage.progress(z + 1, slices.length);
+                slices[z] = labelSlice(z, (byte[]) stream.next());
+                if (z == 0) {
+                    // No overlaps below the first slice
+                    slices[0].downOffsets = new int[slices[0].count + 1];
+                    slices[0].down = new int[0];
+                } else {
+                    linkSlices(z - 1, z);
+                    spill(z - 1);
+                }
+            }
+        } catch (RuntimeException e) {
+            // Cancelled, most likely: the file is not needed any more
+            closeSpill();
+            throw e;
+        } finally {
+            stream.close();
+        }
+        // No overlaps above the last slice
+        if (slices.length > 0) {
+            Slice last = slices[slices.length - 1];
+            last.upOffsets = new int[last.count + 1];
+            last.up = new int[0];
+            spill(slices.length - 1);
+        }
+    }
+
+    private void openSpill() {
+        try {
+            File file = File.createTempFile("vocal-blobs", ".bin");
+            file.deleteOnExit();
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            // The file need not be seen again once it is open
+            file.delete();
+            spill = randomAccessFile.getChannel();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        spillOffset = new long[slices.length];
+        spillLength = new int[slices.length];
+    }
+
+    private void closeSpill() {
+        if (spill == null) return;
+        try {
+            spill.close();
+        } catch (IOException e) {
+            // It was deleted when it was opened
+        }
+        spill = null;
+    }
+
+    /*
+     * Write a finished slice to the spill file, if there is one, and let it
+     * go. The file holds ints: base, count, then each array as its length
+     * followed by its values.
+     */
+    private void spill(int z) {
+        if (spill == null) return;
+        Slice slice = slices[z];
+        int[][] arrays = {slice.rowOffsets, slice.runStart, slice.runEnd, slice.runBlob,
+            slice.upOffsets, slice.up, slice.downOffsets, slice.down};
+        int length = 2;
+        for (int[] array : arrays) {
+            length += 1 + array.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4 * length);
+        IntBuffer ints = buffer.asIntBuffer();
+        ints.put(slice.base).put(slice.count);
+        for (int[] array : arrays) {
+            ints.put(array.length).put(array);
+        }
+        try {
+            while (buffer.hasRemaining()) {
+                spill.write(buffer, spillEnd + buffer.position());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        spillOffset[z] = spillEnd;
+        spillLength[z] = length;
+        spillEnd += 4L * length;
+        slices[z] = null;
+    }
+
+    /*
+     * The slice z, from memory or read back from the spill file.
+     */
+    private Slice slice(int z) {
+        Slice slice = slices[z];
+        if (slice != null) {
+            return slice;
+        }
+        synchronized (cache) {
+            slice = cache.get(z);
+            if (slice == null) {
+                slice = readSpilled(z);
+                cache.put(z, slice);
+            }
+        }
+        return slice;
+    }
+
+    private Slice readSpilled(int z) {
+        if (spill == null) {
+            throw new IllegalStateException("The blobs were let go of");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4 * spillLength[z]);
+        try {
+            while (buffer.hasRemaining()) {
+                if (spill.read(buffer, spillOffset[z] + buffer.position()) < 0) {
+                    throw new IOException("The blob spill file is truncated");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffer.flip();
+        IntBuffer ints = buffer.asIntBuffer();
+        Slice slice = new Slice();
+        slice.base = ints.get();
+        slice.count = ints.get();
+        slice.rowOffsets = readArray(ints);
+        slice.runStart = readArray(ints);
+        slice.runEnd = readArray(ints);
+        slice.runBlob = readArray(ints);
+        slice.upOffsets = readArray(ints);
+        slice.up = readArray(ints);
+        slice.downOffsets = readArray(ints);
+        slice.down = readArray(ints);
+        return slice;
+    }
+
+    private static int[] readArray(IntBuffer ints) {
+        int[] array = new int[ints.get()];
+        ints.get(array);
+        return array;
+    }
+
+    /*
+     * Find the runs of a slice and give them blob ids: the runs of
+     * neighboring rows that touch belong to the same blob (union-find).
+     */
+    private Slice labelSlice(int z, byte[] pixels) {
+        Slice slice = new Slice();
+        slice.rowOffsets = new int[height + 1];
+        int[] starts = new int[64];
+        int[] ends = new int[64];
+        int nRuns = 0;
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            int x = 0;
+            while (x < width) {
+                if (pixels[offset + x] != (byte) 255) {
+                    x++;
+                    continue;
+                }
+                int start = x;
+                while (x < width && pixels[offset + x] == (byte) 255) {
+                    x++;
+                }
+                if (nRuns == starts.length) {
+                    starts = Arrays.copyOf(starts, 2 * nRuns);
+                    ends = Arrays.copyOf(ends, 2 * nRuns);
+                }
+                starts[nRuns] = start;
+                ends[nRuns] = x - 1;
+                nRuns++;
+            }
+            slice.rowOffsets[y + 1] = nRuns;
+        }
+        slice.runStart = Arrays.copyOf(starts, nRuns);
+        slice.runEnd = Arrays.copyOf(ends, nRuns);
+
+        int[] parent = new int[nRuns];
+        for (int r = 0; r < nRuns; r++) {
+            parent[r] = r;
+        }
+        for (int y = 1; y < height; y++) {
+            int i = slice.rowOffsets[y - 1];
+            int iEnd = slice.rowOffsets[y];
+            int j = iEnd;
+            int jEnd = slice.rowOffsets[y + 1];
+            while (i < iEnd && j < jEnd) {
+                if (slice.runEnd[i] + 1 < slice.runStart[j]) {
+                    i++;
+                } else if (slice.runEnd[j] + 1 < slice.runStart[i]) {
+                    j++;
+                } else {
+                    union(parent, i, j);
+                    if (slice.runEnd[i] < slice.runEnd[j]) i++; else j++;
+                }
+            }
+        }
+
+        // Number the blobs of this slice in the order they are met
+        slice.base = blobCount;
+        slice.runBlob = new int[nRuns];
+        int[] local = new int[nRuns];
+        Arrays.fill(local, -1);
+        int count = 0;
+        for (int r = 0; r < nRuns; r++) {
+            int root = find(parent, r);
+            if (local[root] < 0) {
+                local[root] = count++;
+            }
+            slice.runBlob[r] = slice.base + local[root];
+        }
+        slice.count = count;
+        ensureBlobCapacity(blobCount + count);
+        for (int b = slice.base; b < slice.base + count; b++) {
+            blobSlice[b] = z;
+        }
+        for (int r = 0; r < nRuns; r++) {
+            blobSize[slice.runBlob[r]] += slice.runEnd[r] - slice.runStart[r] + 1;
+        }
+        blobCount += count;
+        return slice;
+    }
+
+    private static int find(int[] parent, int r) {
+        while (parent[r] != r) {
+            parent[r] = parent[parent[r]];
+            r = parent[r];
+        }
+        return r;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        if (rootA < rootB) {
+            parent[rootB] = rootA;
+        } else if (rootB < rootA) {
+            parent[rootA] = rootB;
+        }
+    }
+
+    private void ensureBlobCapacity(int capacity) {
+        if (capacity > blobSize.length) {
+            int newLength = Math.max(capacity, 2 * blobSize.length);
+            blobSize = Arrays.copyOf(blobSize, newLength);
+            blobSlice = Arrays.copyOf(blobSlice, newLength);
+        }
+    }
+
+    /*
+     * Work out which blobs of slice z overlap which blobs of slice z+1. A run
+     * in row y of z+1 is compared with the runs in rows y-1, y and y+1 of z.
+     */
+    private void linkSlices(int z, int zUp) {
+        Slice lower = slices[z];
+        Slice upper = slices[zUp];
+        // Each pair is (local blob below << 32 | local blob above)
+        long[] pairs = new long[64];
+        int nPairs = 0;
+        for (int y = 0; y < height; y++) {
+            int jStart = upper.rowOffsets[y];
+            int jEnd = upper.rowOffsets[y + 1];
+            if (jStart == jEnd) continue;
+            for (int yy = Math.max(0, y - 1); yy <= Math.min(height - 1, y + 1); yy++) {
+                int i = lower.rowOffsets[yy];
+                int iEnd = lower.rowOffsets[yy + 1];
+                int j = jStart;
+                while (i < iEnd && j < jEnd) {
+                    if (lower.runEnd[i] + 1 < upper.runStart[j]) {
+                        i++;
+                    } else if (upper.runEnd[j] + 1 < lower.runStart[i]) {
+                        j++;
+                    } else {
+                        if (nPairs == pairs.length) {
+                            pairs = Arrays.copyOf(pairs, 2 * nPairs);
+                        }
+                        pairs[nPairs++] = ((long) (lower.runBlob[i] - lower.base) << 32)
+                                | (upper.runBlob[j] - upper.base);
+                        if (lower.runEnd[i] < upper.runEnd[j]) i++; else j++;
+                    }
+                }
+            }
+        }
+        Arrays.sort(pairs, 0, nPairs);
+        int unique = 0;
+        for (int p = 0; p < nPairs; p++) {
+            if (unique == 0 || pairs[p] != pairs[unique - 1]) {
+                pairs[unique++] = pairs[p];
+            }
+        }
+
+        // Pairs are sorted by the blob below: its "up" lists come out in order
+        lower.upOffsets = new int[lower.count + 1];
+        lower.up = new int[unique];
+        upper.downOffsets = new int[upper.count + 1];
+        upper.down = new int[unique];
+        for (int p = 0; p < unique; p++) {
+            lower.upOffsets[(int) (pairs[p] >>> 32) + 1]++;
+            upper.downOffsets[(int) pairs[p] + 1]++;
+        }
+        for (int b = 0; b < lower.count; b++) {
+            lower.upOffsets[b + 1] += lower.upOffsets[b];
+        }
+        for (int b = 0; b < upper.count; b++) {
+            upper.downOffsets[b + 1] += upper.downOffsets[b];
+        }
+        int[] next = Arrays.copyOf(upper.downOffsets, upper.count);
+        for (int p = 0; p < unique; p++) {
+            int below = (int) (pairs[p] >>> 32);
+            int above = (int) pairs[p];
+            lower.up[p] = upper.base + above;
+            upper.down[next[above]++] = lower.base + below;
+        }
+    }
+
+    /**
+     * @return about how many bytes the labels hold in memory: the slices
+     * that are not spilled, those that are cached and the blobs
+     */
+    long estimateMemory() {
+        long ints = blobSlice.length + blobSize.length;
+        for (Slice slice : slices) {
+            if (slice != null) {
+                ints += slice.length();
+            }
+        }
+        synchronized (cache) {
+            for (Slice slice : cache.values()) {
+                ints += slice.length();
+            }
+        }
+        return 4 * ints;
+    }
+
+    /**
+     * Take the blobs for one more engine.
+     */
+    void retain() {
+        synchronized (cache) {
+            holders++;
+        }
+    }
+
+    /**
+     * Let go of the blobs for an engine. Once the last one does, the spill
+     * file is closed and the spilled slices cannot be read any more.
+     */
+    void release() {
+        synchronized (cache) {
+            if (--holders == 0) {
+                closeSpill();
+                cache.clear();
+            }
+        }
+    }
+
+    /**
+     * @return the number of blobs in the image
+     */
+    int size() {
+        return blobCount;
+    }
+
+    /**
+     * @param blob a blob id
+     * @return the number of pixels in the blob
+     */
+    int getSize(int blob) {
+        return blobSize[blob];
+    }
+
+    /**
+     * @param blob a blob id
+     * @return the slice (0 based) of the blob
+     */
+    int getSlice(int blob) {
+        return blobSlice[blob];
+    }
+
+    /**
+     * @return the blob that holds the pixel or NO_BLOB if it is background
+     *         or outside the image
+     */
+    int blobAt(int x, int y, int z) {
+        if (z < 0 || z >= slices.length || y < 0 || y >= height || x < 0 || x >= width) {
+            return NO_BLOB;
+        }
+        Slice slice = slice(z);
+        // The last run of the row that starts at or before x
+        int low = slice.rowOffsets[y];
+        int high = slice.rowOffsets[y + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (slice.runStart[mid] <= x) {
+                if (x <= slice.runEnd[mid]) {
+                    return slice.runBlob[mid];
+                }
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return NO_BLOB;
+    }
+
+    /**
+     * @return the number of blobs that the blob overlaps in the slices
+     *         above and below
+     */
+    int neighborCount(int blob) {
+        Slice slice = slice(blobSlice[blob]);
+        int local = blob - slice.base;
+        return slice.upOffsets[local + 1] - slice.upOffsets[local]
+                + slice.downOffsets[local + 1] - slice.downOffsets[local];
+    }
+
+    /**
+     * @param blob a blob id
+     * @param index 0 .. neighborCount(blob)-1
+     * @return one of the blobs that the blob overlaps; first those above,
+     *         then those below.
+     */
+    int getNeighbor(int blob, int index) {
+        Slice slice = slice(blobSlice[blob]);
+        int local = blob - slice.base;
+        int upCount = slice.upOffsets[local + 1] - slice.upOffsets[local];
+        if (index < upCount) {
+            return slice.up[slice.upOffsets[local] + index];
+        }
+        return slice.down[slice.downOffsets[local] + index - upCount];
+    }
+}
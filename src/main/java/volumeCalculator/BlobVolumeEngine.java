@@ -0,0 +1,607 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import ij.ImageStack;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+
+/**
+ * <p>
+ * The original way of counting the voxels of an edge: whole blobs (contiguous
+ * pixels in a slice) are credited to the edges that pass through them.
+ * </p><p>
+ * A blob shared by several edges is divided evenly amongst them. Blobs that
+ * no edge passes through because the skeletonization ate them away are
+ * recovered, the first time an edge or one of its neighbors is counted, by
+ * walking from the edge's blobs to the blobs that overlap them in the slices
+ * above and below.
+ * </p><p>
+ * The links between edges and blobs may be made all at once, when the
+ * engine is built, or lazily, when an edge is first counted: most sessions
+ * measure a handful of the edges. A blob's share depends on every edge that
+ * passes through it, and whether an eroded blob is free to be recovered on
+ * every edge in its slice, so the lazy links are made slice by slice: before
+ * a blob is looked at, all the edges that touch its slice (see SliceIndex)
+ * are linked. The counts are then the same as if all had been linked at the
+ * start. The slices near the edge last counted may also be linked ahead of
+ * time, in the background ("warming"), so that the next pick nearby finds
+ * them ready.
+ * </p><p>
+ * Which edge recovers an eroded blob depends on which was counted first.
+ * The edges of a path, or of the whole network, are recovered in parallel
+ * (see prepare()) with the same result as one after the other: each walk
+ * only reads the links, and the walks are then committed in order. A walk
+ * that would claim a blob claimed by an edge before it is done again.
+ * </p>
+ */
+class BlobVolumeEngine implements VolumeEngine {
+
+    /*
+     * When the links between blobs and edges are made.
+     */
+    static final int EAGER = 0;
+    static final int LAZY = 1;
+    static final int LAZY_WARM = 2;
+    /* How many slices above and below an edge are warmed */
+    private static final int WARM_SLICES = 8;
+    /*
+     * Links the slices near the edges last counted. One daemon thread is
+     * shared by all the warming engines, so that an engine that is dropped
+     * leaves no thread behind.
+     */
+    private static final ExecutorService WARMER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Volume Calculator blob warming");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final EdgeTable edgeTable;
+    /**
+     * All the blobs (contiguous pixels in a slice) of the original image and
+     * how they overlap from slice to slice. See BlobLabels.
+     */
+    private BlobLabels blobs;
+    /**
+     * For each blob, the ids of the edges that pass through it. Most blobs
+     * have one to three edges. A blob without edges has not been claimed by
+     * an edge (yet): it was eroded away by the skeletonization.
+     * The edges of blob b are blobEdges[b][0 .. blobEdgeCount[b]).
+     */
+    private int[][] blobEdges;
+    private int[] blobEdgeCount;
+    /**
+     * edgeBlobs represents all the blobs that make up this edge, sometimes in the
+     * same slice - usually through several slices.
+     *
+     * Indexed by edge id (see EdgeTable). The blobs of edge e are
+     * edgeBlobs[e][0 .. edgeBlobCount[e]).
+     */
+    private int[][] edgeBlobs;
+    private int[] edgeBlobCount;
+    /**
+     * The edges whose eroded blobs have been recovered already.
+     */
+    private BitSet recovered;
+    /**
+     * In lazy mode, the edges whose points have been linked to their blobs,
+     * the slices all of whose edges have and the edges of each slice.
+     */
+    private BitSet linkedEdges;
+    private BitSet linkedSlices;
+    private SliceIndex sliceIndex;
+    private final int depth;
+    private final int linking;
+    /* Whether the slices near the last edge counted are linked ahead */
+    private boolean warm;
+    /* Bumped by every count: a warming that is behind stops */
+    private volatile int warmGeneration = 0;
+    /* The holders of the engine (see retain()); at none the blobs are let go of */
+    private int holders = 1;
+    private boolean closed = false;
+
+    /**
+     * The image is labeled (see BlobLabels) and then, given the graph (really
+     * a forest of trees) created by the AnalyzeSkeleton plugin, every blob that
+     * a skeleton point of an edge falls in is linked to that edge.
+     *
+     * @param mask The original image (prior to skeletonization)
+     * @param edgeTable The edges of the analyzed graph
+     * @param spill true to keep the blobs' runs on disk, see BlobLabels
+     * @param linking EAGER, LAZY or LAZY_WARM
+     */
+    BlobVolumeEngine(ImageStack mask, EdgeTable edgeTable, boolean spill, int linking) {
+        this(new BlobLabels(mask, spill), mask.getSize(), edgeTable, linking);
+    }
+
+    /**
+     * Link the blobs of an image that was labeled already to the edges.
+     *
+     * @param blobs The blobs of the original image
+     * @param depth Its number of slices
+     * @param edgeTable The edges of the analyzed graph
+     * @param linking EAGER, LAZY or LAZY_WARM
+     */
+    private BlobVolumeEngine(BlobLabels blobs, int depth, EdgeTable edgeTable, int linking) {
+        this.edgeTable = edgeTable;
+        this.blobs = blobs;
+        this.depth = depth;
+        this.linking = linking;
+        blobs.retain();
+        blobEdges = new int[blobs.size()][];
+        blobEdgeCount = new int[blobs.size()];
+        edgeBlobs = new int[edgeTable.size()][];
+        edgeBlobCount = new int[edgeTable.size()];
+        recovered = new BitSet(edgeTable.size());
+        if (linking != EAGER) {
+            linkedEdges = new BitSet(edgeTable.size());
+            linkedSlices = new BitSet(depth);
+            sliceIndex = new SliceIndex(edgeTable);
+            warm = linking == LAZY_WARM;
+            return;
+        }
+        // The edge table holds the edges of all the trees that have at least
+        // one edge, in the order of the forest.
+        try {
+            for (int edgeId = 0; edgeId < edgeTable.size(); edgeId++) {
+                AnalysisStage.progress(edgeId + 1, edgeTable.size());
+                linkEdge(edgeId);
+            }
+        } catch (RuntimeException e) {
+            // Cancelled, say: no one is left to close the engine
+            blobs.release();
+            throw e;
+        }
+    }
+
+    /**
+     * The blobs are labeled once; the links, and which edge recovered which
+     * eroded blob, are made anew, so that the counts of the new run do not
+     * depend on the edges counted by this one.
+     */
+    @Override
+    public VolumeEngine reuse(EdgeTable edgeTable) {
+        return new BlobVolumeEngine(blobs, depth, edgeTable, linking);
+    }
+
+    @Override
+    public synchronized void retain() {
+        holders++;
+    }
+
+    /**
+     * After the last holder a warming under way is stopped, and no other
+     * one touches the blobs.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed || --holders > 0) return;
+        closed = true;
+        warmGeneration++;
+        blobs.release();
+    }
+
+    /**
+     * Link the blobs that the points of an edge fall in to the edge.
+     */
+    private void linkEdge(int edgeId) {
+        if (edgeTable.getType(edgeId) == EdgeTable.UNDEFINED) return;
+        int v1 = edgeTable.getV1(edgeId);
+        for (int p = edgeTable.pointStart(v1); p < edgeTable.pointEnd(v1); p++) {
+            putBlobAtPoint(edgeTable.getPointX(p),
+                    edgeTable.getPointY(p), edgeTable.getPointZ(p), edgeId);
+        }
+        int v2 = edgeTable.getV2(edgeId);
+        for (int p = edgeTable.pointStart(v2); p < edgeTable.pointEnd(v2); p++) {
+            putBlobAtPoint(edgeTable.getPointX(p),
+                    edgeTable.getPointY(p), edgeTable.getPointZ(p), edgeId);
+        }
+        for (int slab = edgeTable.slabStart(edgeId); slab < edgeTable.slabEnd(edgeId); slab++) {
+            putBlobAtPoint(edgeTable.getSlabX(slab),
+                    edgeTable.getSlabY(slab), edgeTable.getSlabZ(slab), edgeId);
+        }
+    }
+
+    /**
+     * In lazy mode, make sure that every edge that touches the slices is
+     * linked to its blobs: the blobs of these slices then know all of their
+     * edges.
+     */
+    private void linkSlices(int fromSlice, int toSlice) {
+        if (linkedSlices == null) return;
+        fromSlice = Math.max(0, fromSlice);
+        toSlice = Math.min(depth - 1, toSlice);
+        for (int z = linkedSlices.nextClearBit(fromSlice); z <= toSlice;
+                z = linkedSlices.nextClearBit(z + 1)) {
+            for (int edgeId : sliceIndex.getEdgesAt(z)) {
+                if (!linkedEdges.get(edgeId)) {
+                    linkedEdges.set(edgeId);
+                    linkEdge(edgeId);
+                }
+            }
+            linkedSlices.set(z);
+        }
+    }
+
+    /**
+     * Link, in the background, the slices around an edge that has just been
+     * counted. One slice is linked at a time so that a count that comes in
+     * meanwhile does not wait long; a later warming takes over from this one.
+     */
+    private void warmAround(int edgeId) {
+        if (!warm || closed) return;
+        final int generation = ++warmGeneration;
+        final int from = edgeTable.getZMin(edgeId) - WARM_SLICES;
+        final int to = edgeTable.getZMax(edgeId) + WARM_SLICES;
+        WARMER.submit(() -> {
+            for (int z = from; z <= to; z++) {
+                synchronized (this) {
+                    // Taken over, or closed, while waiting for the lock
+                    if (closed || generation != warmGeneration) return;
+                    linkSlices(z, z);
+                }
+            }
+        });
+    }
+
+    /**
+     * Voxels may have been "eaten" away by the skeletonization: the edge
+     * passes through a blob in one slice but not through the blobs that
+     * continue the vessel in the slices above and below it. These eroded
+     * blobs belong to the edge.
+     *
+     * Starting with the blobs of the edge, the blob overlap graph is walked
+     * breadth first. Every blob reached that has not been claimed by an edge
+     * is claimed for this edge and the walk goes on from there; blobs that
+     * belong to an edge already stop the walk.
+     *
+     * @param edgeId
+     */
+    void recoverErodedBlobs(int edgeId) {
+        if (edgeId == EdgeTable.NO_EDGE || recovered.get(edgeId)) return;
+        recovered.set(edgeId);
+        // In lazy mode this is where the edge, and all that share its
+        // slices, are linked to their blobs
+        linkSlices(edgeTable.getZMin(edgeId), edgeTable.getZMax(edgeId));
+        // The blob list of the edge is the queue: claimed blobs are appended
+        // to it as they are found.
+        for (int i = 0; i < edgeBlobCount[edgeId]; i++) {
+            int blob = edgeBlobs[edgeId][i];
+            int nNeighbors = blobs.neighborCount(blob);
+            for (int n = 0; n < nNeighbors; n++) {
+                int neighbor = blobs.getNeighbor(blob, n);
+                // Whether the neighbor is free is only known once its slice
+                // is linked
+                int z = blobs.getSlice(neighbor);
+                linkSlices(z, z);
+                if (blobEdgeCount[neighbor] == 0) {
+                    putBlobAtEdge(neighbor, edgeId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Recover the eroded blobs of edges about to be counted in this order,
+     * and of their neighbors, on the common pool: the walks run in parallel
+     * and are committed in the order counting would have done them.
+     *
+     * @param edgeIds
+     */
+    @Override
+    public void prepare(int[] edgeIds) {
+        int[] order;
+        synchronized (this) {
+            order = recoveryOrder(edgeIds);
+        }
+        // One edge is recovered as well when it is counted
+        if (order.length < 2) return;
+        int[][] claims = new int[order.length][];
+        IntStream.range(0, order.length).parallel().forEach(i -> claims[i] = walk(order[i]));
+        synchronized (this) {
+            for (int i = 0; i < order.length; i++) {
+                commit(order[i], claims[i]);
+            }
+        }
+    }
+
+    /*
+     * The edges that recoverAround() would recover, counting the edges one
+     * after the other, in the order it would recover them.
+     */
+    private int[] recoveryOrder(int[] edgeIds) {
+        BitSet seen = (BitSet) recovered.clone();
+        int[] order = null;
+        int count = 0;
+        for (int edgeId : edgeIds) {
+            if (edgeId == EdgeTable.NO_EDGE) continue;
+            int v1 = edgeTable.getV1(edgeId);
+            int v2 = edgeTable.getV2(edgeId);
+            int[] around = new int[1 + edgeTable.branchEnd(v1) - edgeTable.branchStart(v1)
+                    + edgeTable.branchEnd(v2) - edgeTable.branchStart(v2)];
+            int n = 0;
+            around[n++] = edgeId;
+            for (int b = edgeTable.branchStart(v1); b < edgeTable.branchEnd(v1); b++) {
+                around[n++] = edgeTable.getBranch(b);
+            }
+            for (int b = edgeTable.branchStart(v2); b < edgeTable.branchEnd(v2); b++) {
+                around[n++] = edgeTable.getBranch(b);
+            }
+            for (int edge : around) {
+                if (edge == EdgeTable.NO_EDGE || seen.get(edge)) continue;
+                seen.set(edge);
+                order = append(order, count++, edge);
+            }
+        }
+        return (count == 0) ? new int[0] : Arrays.copyOf(order, count);
+    }
+
+    /*
+     * The walk of recoverErodedBlobs(), done on the links as they are: the
+     * blobs that it would claim are returned rather than claimed. Only the
+     * lazy links are made, under the engine's lock.
+     */
+    private int[] walk(int edgeId) {
+        int[] queue;
+        int count;
+        synchronized (this) {
+            linkSlices(edgeTable.getZMin(edgeId), edgeTable.getZMax(edgeId));
+            count = edgeBlobCount[edgeId];
+            queue = (count == 0) ? null : Arrays.copyOf(edgeBlobs[edgeId], count);
+        }
+        int first = count;
+        // The blobs this walk claims, by id
+        BitSet claimed = new BitSet();
+        // The slices that this walk knows to be linked already
+        BitSet linked = new BitSet();
+        for (int i = 0; i < count; i++) {
+            int blob = queue[i];
+            int nNeighbors = blobs.neighborCount(blob);
+            for (int n = 0; n < nNeighbors; n++) {
+                int neighbor = blobs.getNeighbor(blob, n);
+                int z = blobs.getSlice(neighbor);
+                if (linkedSlices != null && !linked.get(z)) {
+                    synchronized (this) {
+                        linkSlices(z, z);
+                    }
+                    linked.set(z);
+                }
+                if (blobEdgeCount[neighbor] == 0 && !claimed.get(neighbor)) {
+                    claimed.set(neighbor);
+                    queue = append(queue, count++, neighbor);
+                }
+            }
+        }
+        return (count == first) ? new int[0] : Arrays.copyOfRange(queue, first, count);
+    }
+
+    /*
+     * Claim the blobs of a walk for its edge. If an edge before it claimed
+     * one of them the walk would have stopped there: it is done again.
+     */
+    private void commit(int edgeId, int[] claims) {
+        // Counted meanwhile
+        if (recovered.get(edgeId)) return;
+        for (int blob : claims) {
+            if (blobEdgeCount[blob] != 0) {
+                recoverErodedBlobs(edgeId);
+                return;
+            }
+        }
+        recovered.set(edgeId);
+        for (int blob : claims) {
+            putBlobAtEdge(blob, edgeId);
+        }
+    }
+
+    /**
+     * Link the blob, if there is one, at this point to an edge.
+     */
+    private void putBlobAtPoint(int x, int y, int z, int edgeId) {
+        int blob = blobs.blobAt(x, y, z);
+        if (blob != BlobLabels.NO_BLOB) {
+            putBlobAtEdge(blob, edgeId);
+        }
+    }
+
+    /**
+     * Record that an edge passes through a blob; this is only recorded once.
+     * 
+     * @param blob
+     * @param edgeId
+     */
+    void putBlobAtEdge(int blob, int edgeId) {
+        int count = blobEdgeCount[blob];
+        for (int e = 0; e < count; e++) {
+            if (blobEdges[blob][e] == edgeId) return;
+        }
+        blobEdges[blob] = append(blobEdges[blob], count, edgeId);
+        blobEdgeCount[blob]++;
+        edgeBlobs[edgeId] = append(edgeBlobs[edgeId], edgeBlobCount[edgeId], blob);
+        edgeBlobCount[edgeId]++;
+    }
+
+    private static int[] append(int[] list, int count, int value) {
+        if (list == null) {
+            list = new int[2];
+        } else if (count == list.length) {
+            list = Arrays.copyOf(list, 2 * count);
+        }
+        list[count] = value;
+        return list;
+    }
+
+    int grandVoxelCount = 0;
+    double grandVoxelCountD = 0.0;
+
+    /**
+     * This method attempts to identify all the voxels from the original image
+     * that this skeletonized edge passes through.
+     *
+     * Steps:
+     * 1. Voxels may have been "eaten" away from the sides of the edge. Recover
+     * these voxels.
+     *
+     * 2. Voxels may have been "eaten" away from the ends of the vertices. Recover
+     * these voxels.
+     *
+     * 3. For this edge, retrieve all the blobs that it passes through.
+     *
+     * 4. For each blob, compute the number of voxels by dividing the size of the
+     * blob (number of Points) by the number of edges that share (pass through)
+     * this blob. Points are allocated evenly amongst the edges.
+     *
+     * @param edgeId
+     * @return the number of voxels in the original image that this edge represents.
+     */
+    @Override
+    public synchronized int getVoxelCount(int edgeId) {
+        int voxelCount = 0;
+        double voxelCountD = 0.0;
+
+        recoverAround(edgeId);
+
+        for (int i = 0; i < edgeBlobCount[edgeId]; i++) {
+            int blob = edgeBlobs[edgeId][i];
+            int size = blobs.getSize(blob);
+            voxelCountD += (double) size / blobEdgeCount[blob];
+            voxelCount += size / blobEdgeCount[blob];
+        }
+        grandVoxelCount += voxelCount;
+        grandVoxelCountD += voxelCountD;
+        warmAround(edgeId);
+
+        return voxelCount;
+
+    }
+
+    /**
+     * Steps 1 and 2 of counting an edge: recover the eroded blobs of the
+     * edge and of the edges that meet it at its vertices.
+     */
+    private void recoverAround(int edgeId) {
+        recoverErodedBlobs(edgeId);
+
+        int v1 = edgeTable.getV1(edgeId);
+        for (int b = edgeTable.branchStart(v1); b < edgeTable.branchEnd(v1); b++) {
+            recoverErodedBlobs(edgeTable.getBranch(b));
+        }
+        int v2 = edgeTable.getV2(edgeId);
+        for (int b = edgeTable.branchStart(v2); b < edgeTable.branchEnd(v2); b++) {
+            recoverErodedBlobs(edgeTable.getBranch(b));
+        }
+    }
+
+    /**
+     * The share of each blob of the edge is spread evenly over the slab
+     * points of the edge that lie in the blob. A blob with none of them -
+     * a vertex blob or a recovered one - goes to the slab points nearest to
+     * its slice.
+     */
+    @Override
+    public synchronized int[] getSlabVoxelCounts(int edgeId) {
+        int nSlabs = edgeTable.getSlabCount(edgeId);
+        int[] counts = new int[nSlabs];
+        if (nSlabs == 0) return counts;
+        recoverAround(edgeId);
+
+        // The slab points sorted by the blob they lie in
+        int first = edgeTable.slabStart(edgeId);
+        long[] byBlob = new long[nSlabs];
+        for (int k = 0; k < nSlabs; k++) {
+            int blob = blobs.blobAt(edgeTable.getSlabX(first + k),
+                    edgeTable.getSlabY(first + k), edgeTable.getSlabZ(first + k));
+            byBlob[k] = ((long) blob << 32) | k;
+        }
+        Arrays.sort(byBlob);
+
+        int[] slabs = new int[nSlabs];
+        for (int i = 0; i < edgeBlobCount[edgeId]; i++) {
+            int blob = edgeBlobs[edgeId][i];
+            int share = blobs.getSize(blob) / blobEdgeCount[blob];
+            int n = 0;
+            int k = Arrays.binarySearch(byBlob, (long) blob << 32);
+            if (k < 0) k = -k - 1;
+            while (k < nSlabs && (int) (byBlob[k] >>> 32) == blob) {
+                slabs[n++] = (int) byBlob[k++];
+            }
+            if (n == 0) {
+                int z = blobs.getSlice(blob);
+                int nearest = Integer.MAX_VALUE;
+                for (k = 0; k < nSlabs; k++) {
+                    int distance = Math.abs(edgeTable.getSlabZ(first + k) - z);
+                    if (distance < nearest) {
+                        nearest = distance;
+                        n = 0;
+                    }
+                    if (distance == nearest) slabs[n++] = k;
+                }
+            }
+            for (int j = 0; j < n; j++) {
+                counts[slabs[j]] += share / n + ((j < share % n) ? 1 : 0);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * A cross-section is all of the blobs of the edge in a slice, whole,
+     * whether or not they are shared with other edges.
+     */
+    @Override
+    public synchronized int[] getCrossSections(int edgeId) {
+        recoverAround(edgeId);
+        long[] bySlice = new long[edgeBlobCount[edgeId]];
+        for (int i = 0; i < bySlice.length; i++) {
+            int blob = edgeBlobs[edgeId][i];
+            bySlice[i] = ((long) blobs.getSlice(blob) << 32) | blobs.getSize(blob);
+        }
+        Arrays.sort(bySlice);
+        int[] sections = new int[bySlice.length];
+        int count = 0;
+        for (int i = 0; i < bySlice.length; i++) {
+            if (i > 0 && (bySlice[i] >>> 32) == (bySlice[i - 1] >>> 32)) {
+                sections[count - 1] += (int) bySlice[i];
+            } else {
+                sections[count++] = (int) bySlice[i];
+            }
+        }
+        return Arrays.copyOf(sections, count);
+    }
+
+    @Override
+    public synchronized long estimateMemory() {
+        // An array costs its ints and a header of about 16 bytes
+        long bytes = blobs.estimateMemory() + 4L * (blobEdgeCount.length + edgeBlobCount.length);
+        for (int[] edges : blobEdges) {
+            if (edges != null) bytes += 16 + 4L * edges.length;
+        }
+        for (int[] blobsOfEdge : edgeBlobs) {
+            if (blobsOfEdge != null) bytes += 16 + 4L * blobsOfEdge.length;
+        }
+        return bytes;
+    }
+}
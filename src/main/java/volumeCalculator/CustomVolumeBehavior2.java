@@ -47,7 +47,6 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 import ij.IJ;
 import ij.ImagePlus;
-import ij.process.ImageProcessor;
 import ij3d.Content;
 import ij3d.Image3DUniverse;
 import ij3d.behaviors.InteractiveBehavior;
@@ -56,15 +55,7 @@ import ij3d.behaviors.InteractiveViewPlatformTransformer;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
-import java.util.Queue;
-import java.util.Set;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.jogamp.java3d.Appearance;
 import org.jogamp.java3d.ColoringAttributes;
@@ -75,15 +66,11 @@ import org.jogamp.java3d.PickSegment;
 import org.jogamp.java3d.SceneGraphPath;
 import org.jogamp.java3d.Shape3D;
 import org.jogamp.java3d.utils.picking.PickCanvas;
+import org.jogamp.java3d.utils.picking.PickIntersection;
 import org.jogamp.java3d.utils.picking.PickResult;
 import org.jogamp.java3d.utils.picking.PickTool;
 import org.jogamp.vecmath.Color3f;
 import org.jogamp.vecmath.Point3d;
-import org.jogamp.vecmath.Point3i;
-
-import sc.fiji.analyzeSkeleton.Edge;
-import sc.fiji.analyzeSkeleton.Graph;
-import sc.fiji.analyzeSkeleton.Point;
 
 /**
  * <p>
@@ -98,8 +85,9 @@ import sc.fiji.analyzeSkeleton.Point;
  * connected between the two click points. This path is traversed calculating
  * the volume. If there is no path, the user is warned and nothing is done.
  * </p>
- * <p>For an explanation of how the voxels are counted, please see the
- * {@link reconstructEdge} method comments.
+ * <p>The voxels of an edge are counted by a VolumeEngine. For an explanation
+ * of how they are counted, please see the {@link BlobVolumeEngine} and
+ * {@link NearestEdgeEngine} comments.
  * </p>
  * <p>
  * The InteractiveBehavior of the 3D Viewer is extended so as to catch these
@@ -126,15 +114,22 @@ public class CustomVolumeBehavior2 extends InteractiveBehavior {
      */
     private SceneGraphPath firstClickSGP;
     private SceneGraphPath secondClickSGP;
+    /*
+     * With partial edges, the edge and the slab point of the first click.
+     */
+    private int firstClickEdge;
+    private int firstClickSlab;
 
     private Volumes volumes;                // Model
     private VolumesPanel volumesPanel;      // View
     private InteractiveViewPlatformTransformer viewTransformer;
-    private final ImagePlus originalImage;
+    private final VolumeEngine volumeEngine;
+    private final VoxelProfiles voxelProfiles;
     /*
-     * Properties of the original image
+     * The edges of the analyzed graph, addressed by their ids.
      */
-    private final int imageHeight, imageWidth, imageDepth;
+    private final AnalyzedGraph analyzedGraph;
+    private final EdgeTable edgeTable;
 
     /**
      * <p>Build an instance of CustomVolumeBehavior. It is a subclass of InteractiveBehavior
@@ -149,14 +144,15 @@ public class CustomVolumeBehavior2 extends InteractiveBehavior {
      * selected edges, the coordinates of the edge are used to extract the pixels
      * (present and eroded) from the original image.
      * </p><p>
-     * The so-called blob lists are built in this constructor for late use.
+     * The voxels of the original image that belong to an edge are counted
+     * by the volume engine.
      * 
      * @param universe The J3D Universe
      * @param content   A wrapper around the J3D group representing the graph
      * @param volumes A set of accumulaters for each selected color
      * @param volumesPanel Where the volumes values appear
      * @param imagePlus ImageJ structure
-     * @param originalImage The original image as an ImajeJ structure
+     * @param volumeEngine Counts the voxels of the original image of each edge
      */
     public CustomVolumeBehavior2(
             Image3DUniverse universe,
@@ -164,16 +160,13 @@ public class CustomVolumeBehavior2 extends InteractiveBehavior {
             Volumes volumes,
             VolumesPanel volumesPanel,
             ImagePlus imagePlus,
-            ImagePlus originalImage) {
+            VolumeEngine volumeEngine) {
 
         super(universe); // The InteractiveBehavior
         this.viewTransformer = universe.getViewPlatformTransformer();
         this.volumes = volumes;
         this.volumesPanel = volumesPanel;
-        this.originalImage = originalImage;
-        this.imageHeight = originalImage.getHeight();
-        this.imageWidth = originalImage.getWidth();
-        this.imageDepth = originalImage.getNSlices();
+        this.volumeEngine = volumeEngine;
         /*
          * Java 3d tools to deal with picking a 3d element.
          */
@@ -181,8 +174,9 @@ public class CustomVolumeBehavior2 extends InteractiveBehavior {
         pickCanvas.setMode(PickTool.GEOMETRY_INTERSECT_INFO);
         pickCanvas.setShape(pickSegment, new Point3d(2, 2, 2));
 
-        // create slice and edge blob lists
-        createBlobLists((AnalyzedGraph) content.getUserData());
+        this.analyzedGraph = (AnalyzedGraph) content.getUserData();
+        this.edgeTable = analyzedGraph.getEdgeTable();
+        this.voxelProfiles = new VoxelProfiles(edgeTable, volumeEngine);
 
     }
 
@@ -207,7 +201,31 @@ public class CustomVolumeBehavior2 extends InteractiveBehavior {
             // press occurred
             pickCanvas.setShapeLocation(e.getX(), e.getY());
             PickResult pickResult = pickCanvas.pickClosest();
-            if (pickResult != null) {
+            if (pickResult != null && analyzedGraph.isSmallTreeCloud(pickResult.getObject())) {
+                // A small tree drawn as points: draw it properly
+                if (pickResult.numIntersections() > 0) {
+                    analyzedGraph.drawSmallTreeAt(
+                            pickResult.getIntersection(0).getPrimitiveVertexIndices()[0]);
+                    volumesPanel.graphChanged();
+                }
+                firstPickPicked = false;
+            } else if (pickResult != null && volumesPanel.getPartialEdgesCheckBoxState()) {
+                // The ends of the path are where the edges were clicked.
+                int[] picked = pickedEdgeAndSlab(pickResult);
+                if (picked == null) {
+                    firstPickPicked = false;
+                } else if (firstPickPicked) {
+                    volumesPanel.showStatus("Second Click");
+                    firstPickPicked = false;
+                    selectPath(firstClickEdge, firstClickSlab, picked[0], picked[1]);
+                    volumesPanel.showStatus("           ");
+                } else {
+                    firstPickPicked = true;
+                    firstClickEdge = picked[0];
+                    firstClickSlab = picked[1];
+                    volumesPanel.showStatus("First Click");
+                }
+            } else if (pickResult != null) {
                 if (firstPickPicked) {
                     volumesPanel.showStatus("Second Click");
                     secondClickSGP = pickResult.getSceneGraphPath();
@@ -238,16 +256,18 @@ public class CustomVolumeBehavior2 extends InteractiveBehavior {
                         // First check and see if the two paths are exactly the
                         // same. If so, just process one path (not the second path).
                         boolean oneBranchOnly = firstClickSGP.equals(secondClickSGP);
+                        // The edges are gathered first so that the engine
+                        // can get them ready all at once
+                        List<Shape3D> shapes = new ArrayList<Shape3D>();
 
                         if (lenSGP1 > commonCount) {
                             for (int c = commonCount; c < lenSGP1; c++) {
                                 Node node = firstClickSGP.getNode(c);
                                 if (node instanceof Group) {
                                     for (int n = 0; n < ((Group) node).numChildren(); n++) {
-                                        Node childNode = ((Group) node).getChild(n);
-                                        if (childNode instanceof Shape3D) {
-                                            computeAndDisplayEdgeVolume((Shape3D) childNode);
-                                            highlightEdge((Shape3D) childNode);
+                                        Shape3D edgeShape = analyzedGraph.edgeShapeOf(((Group) node).getChild(n));
+                                        if (edgeShape != null) {
+                                            shapes.add(edgeShape);
                                         }
                                     }
                                 }
@@ -257,10 +277,9 @@ public class CustomVolumeBehavior2 extends InteractiveBehavior {
                             Node node = firstClickSGP.getNode(c);
                             if (node instanceof Group) {
                                 for (int n = 0; n < ((Group) node).numChildren(); n++) {
-                                    Node childNode = ((Group) node).getChild(n);
-                                    if (childNode instanceof Shape3D) {
-                                        computeAndDisplayEdgeVolume((Shape3D) childNode);
-                                        highlightEdge((Shape3D) childNode);
+                                    Shape3D edgeShape = analyzedGraph.edgeShapeOf(((Group) node).getChild(n));
+                                    if (edgeShape != null) {
+                                        shapes.add(edgeShape);
                                     }
                                 }
                             }
@@ -271,10 +290,9 @@ public class CustomVolumeBehavior2 extends InteractiveBehavior {
                                     Node node = secondClickSGP.getNode(c);
                                     if (node instanceof Group) {
                                         for (int n = 0; n < ((Group) node).numChildren(); n++) {
-                                            Node childNode = ((Group) node).getChild(n);
-                                            if (childNode instanceof Shape3D) {
-                                                computeAndDisplayEdgeVolume((Shape3D) childNode);
-                                                highlightEdge((Shape3D) childNode);
+                                            Shape3D edgeShape = analyzedGraph.edgeShapeOf(((Group) node).getChild(n));
+                                            if (edgeShape != null) {
+                                                shapes.add(edgeShape);
                                             }
                                         }
                                     }
@@ -284,16 +302,32 @@ public class CustomVolumeBehavior2 extends InteractiveBehavior {
                                 Node node = secondClickSGP.getNode(c);
                                 if (node instanceof Group) {
                                     for (int n = 0; n < ((Group) node).numChildren(); n++) {
-                                        Node childNode = ((Group) node).getChild(n);
-                                        if (childNode instanceof Shape3D) {
-                                            computeAndDisplayEdgeVolume((Shape3D) childNode);
-                                            highlightEdge((Shape3D) childNode);
+                                        Shape3D edgeShape = analyzedGraph.edgeShapeOf(((Group) node).getChild(n));
+                                        if (edgeShape != null) {
+                                            shapes.add(edgeShape);
                                         }
                                     }
                                 }
                             }
                         }
 
+                        int[] edgeIds = new int[shapes.size()];
+                        for (int i = 0; i < edgeIds.length; i++) {
+                            Object userData = shapes.get(i).getUserData();
+                            edgeIds[i] = (userData instanceof UserData)
+                                    ? ((UserData) userData).getEdgeId() : EdgeTable.NO_EDGE;
+                        }
+                        volumeEngine.prepare(edgeIds);
+                        // All the edges selected now are undone together.
+                        // A pick from the slice view waits for this one.
+                        synchronized (volumes) {
+                            volumes.beginPick();
+                            for (Shape3D edgeShape : shapes) {
+                                selectEdge(edgeShape);
+                            }
+                            volumes.endPick();
+                        }
+                        volumesPanel.selectionChanged();
                     }
                     firstPickPicked = false;
                     volumesPanel.showStatus("           ");
@@ -339,6 +373,119 @@ public class CustomVolumeBehavior2 extends InteractiveBehavior {
         }
     }
 
+    /**
+     * The edge that was picked and the slab point of the edge nearest to
+     * where it was picked.
+     *
+     * @param pickResult
+     * @return {edge id, slab number} or null if no edge was picked
+     */
+    private int[] pickedEdgeAndSlab(PickResult pickResult) {
+        Node node = pickResult.getObject();
+        if (!(node instanceof Shape3D) || !(node.getUserData() instanceof UserData)) {
+            return null;
+        }
+        int edgeId = ((UserData) node.getUserData()).getEdgeId();
+        if (edgeId == EdgeTable.NO_EDGE) {
+            return null;
+        }
+        // The line that was picked may be a simplified one (level of
+        // detail), so go by where it was picked rather than by its vertices.
+        int slab = 0;
+        if (pickResult.numIntersections() > 0) {
+            PickIntersection intersection = pickResult.getIntersection(0);
+            slab = analyzedGraph.nearestSlab(edgeId, intersection.getPointCoordinates());
+        }
+        return new int[]{edgeId, slab};
+    }
+
+    /**
+     * Select all the edges on the path between two edges, as if the two
+     * edges had been clicked in the 3D view. This is how the 2D slice view
+     * (see SliceOverlay) makes its selections.
+     * <p>
+     * With partial edges, only the stretches of the first and last edges
+     * between where they were clicked and the rest of the path are counted.
+     * </p>
+     *
+     * @param firstEdge id of the first edge clicked
+     * @param firstSlab the slab point of the first edge that was clicked
+     * @param secondEdge id of the second edge clicked
+     * @param secondSlab the slab point of the second edge that was clicked
+     * @return false if there is no path between the two edges
+     */
+    boolean selectPath(int firstEdge, int firstSlab, int secondEdge, int secondSlab) {
+        int[] path = analyzedGraph.getPathBetween(firstEdge, secondEdge);
+        if (path == null) {
+            IJ.showMessage(NO_PATH_MSG);
+            return false;
+        }
+        boolean partial = volumesPanel.getPartialEdgesCheckBoxState();
+        volumeEngine.prepare(path);
+        // A pick in the 3D view waits for this one, see beginPick()
+        synchronized (volumes) {
+            volumes.beginPick();
+            for (int edgeId : path) {
+                int fromSlab = 0;
+                int toSlab = edgeTable.getSlabCount(edgeId);
+                if (partial && firstEdge == secondEdge) {
+                    fromSlab = Math.min(firstSlab, secondSlab);
+                    toSlab = Math.max(firstSlab, secondSlab) + 1;
+                } else if (partial && edgeId == firstEdge) {
+                    int[] stretch = stretchTowards(firstEdge, firstSlab, secondEdge);
+                    fromSlab = stretch[0];
+                    toSlab = stretch[1];
+                } else if (partial && edgeId == secondEdge) {
+                    int[] stretch = stretchTowards(secondEdge, secondSlab, firstEdge);
+                    fromSlab = stretch[0];
+                    toSlab = stretch[1];
+                }
+                selectEdge(analyzedGraph.getEdgeShape(edgeId), fromSlab, toSlab);
+            }
+            volumes.endPick();
+        }
+        volumesPanel.selectionChanged();
+        return true;
+    }
+
+    /*
+     * The slabs of an end edge of a path from the one clicked to the vertex
+     * where the path carries on: the lower vertex if the path goes on down
+     * the tree to the other end, the upper one otherwise.
+     */
+    private int[] stretchTowards(int edgeId, int slab, int otherEnd) {
+        int upper = analyzedGraph.getUpperVertex(edgeId);
+        boolean down = analyzedGraph.isAbove(edgeId, otherEnd);
+        boolean towardsV1 = (upper == edgeTable.getV1(edgeId)) != down;
+        if (towardsV1) {
+            return new int[]{0, slab + 1};
+        } else {
+            return new int[]{slab, edgeTable.getSlabCount(edgeId)};
+        }
+    }
+
+    /**
+     * Count an edge towards the current volume color and paint it. Picks
+     * can come from the 3D view and from the 2D slice view at the same time.
+     *
+     * @param shape a Java3D shape
+     */
+    private void selectEdge(Shape3D shape) {
+        selectEdge(shape, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Count a stretch of an edge, its slabs [fromSlab, toSlab), towards the
+     * current volume color and paint the edge. The lock is that of the
+     * picks, so that an edge picked alone does not land in another's pick.
+     */
+    private void selectEdge(Shape3D shape, int fromSlab, int toSlab) {
+        synchronized (volumes) {
+            computeAndDisplayEdgeVolume(shape, fromSlab, toSlab);
+            highlightEdge(shape);
+        }
+    }
+
     /**
      * Use the currently selected color to paint an edge.
      *
@@ -360,34 +507,40 @@ public class CustomVolumeBehavior2 extends InteractiveBehavior {
 
     /**
      * Compute the volume (number of voxels) that this Java3D shape intercepts
-     * in the original image (prior to skeletonization)
+     * in the original image (prior to skeletonization), or only that of its
+     * slabs [fromSlab, toSlab).
      * 
      * @param shape
      */
-    private void computeAndDisplayEdgeVolume(Shape3D shape) {
+    private void computeAndDisplayEdgeVolume(Shape3D shape, int fromSlab, int toSlab) {
         // Has user clicked on a J3D line?
         if (!(shape.getGeometry() instanceof LineArray)) {
             return;         // NOPE
         }
         // Does this line correspond to an Edge?
         UserData userData = (UserData) (shape.getUserData());
-        Object graphData = userData.getGraphInfo();
-        if (!(graphData instanceof Edge)) {
+        int edgeId = userData.getEdgeId();
+        if (edgeId == EdgeTable.NO_EDGE) {
             return;          // NOPE
         }
 
-        int voxelCount = reconstructEdge((Edge) graphData);
+        int voxelCount = voxelProfiles.getVoxelCount(edgeId, fromSlab, toSlab);
 
         // Initialize
-        int oldColorIndex = userData.getColorIndex();
+        int oldColorIndex = edgeTable.getColorIndex(edgeId);
         int currentColorIndex = volumes.getCurrentColorIndex();
 
-        volumes.updateVoxelCount(oldColorIndex, -voxelCount);
-        volumes.updateVoxelCount(currentColorIndex, +voxelCount);
-        // Make corresponding changes to the VolumePanel
-        volumesPanel.updateVoxelCount(oldColorIndex);
-        volumesPanel.updateVoxelCount(currentColorIndex);
-        userData.setColorIndex(currentColorIndex);
+        // Take back what was credited to the old color, which need not be
+        // what the edge counts now. The change is journaled so that the
+        // pick can be undone.
+        volumes.recordEdge(edgeId, oldColorIndex, edgeTable.getVoxelCount(edgeId),
+                currentColorIndex, voxelCount);
+        // Make corresponding changes to the VolumePanel - in one go, later,
+        // on the event dispatch thread.
+        volumesPanel.volumeChanged(oldColorIndex);
+        volumesPanel.volumeChanged(currentColorIndex);
+        edgeTable.setColorIndex(edgeId, currentColorIndex);
+        edgeTable.setVoxelCount(edgeId, voxelCount);
     }
 
     /**
@@ -402,419 +555,13 @@ public class CustomVolumeBehavior2 extends InteractiveBehavior {
 
         int voxelCount = 0;
         int edgeCount = 0;
-        for (Edge edge : edgeBlobs.keySet()) {
-            voxelCount += reconstructEdge(edge);
+        volumeEngine.prepare(edgeTable.typedEdges());
+        for (int edgeId = 0; edgeId < edgeTable.size(); edgeId++) {
+            if (edgeTable.getType(edgeId) == EdgeTable.UNDEFINED) continue;
+            voxelCount += volumeEngine.getVoxelCount(edgeId);
             edgeCount++;
         }
 //        System.out.println("Total voxelCount = "+voxelCount+" edgeCount = "+edgeCount);
         return voxelCount;
     }
-
-    /**
-     * If there are  any adjacent pixels at this checkPoint then there could also be
-     * a blob there as well. Get the biggest contiguous blob possible.
-     * 
-     * @param checkPoint
-     * @param edge
-     * @param eroded
-     * @return a new Blob or null
-     */
-    private Blob checkForBlob(Point checkPoint, Edge edge, boolean eroded) {
-        Blob newBlob = null;
-        Point3i point3i = new Point3i(checkPoint.x, checkPoint.y, checkPoint.z);
-        // Get this points adjacent pixels. There can be a maximum of eight.
-        Set<Point3i> neighbors = neighbors(point3i, 255);
-        if (!neighbors.isEmpty()) {
-            for (Point3i nPoint3i : neighbors) {
-                Point nPoint = new Point(nPoint3i.x, nPoint3i.y, nPoint3i.z);
-                newBlob = getBlobAtPoint(nPoint, eroded);
-                if (newBlob == null) {
-                    return null;
-                }
-                if (!newBlob.eroded) {
-                    return null;
-                }
-                newBlob.edges.add(edge);
-                return newBlob;
-            }
-        }
-        return newBlob;
-    }
-
-    /**
-     * A structure used to hold the points of a blob (contiguous pixels in a
-     * slice) as well as the edges that pass through it.
-     *
-     */
-    private class Blob {
-
-        Set<Point3i> points = new HashSet<Point3i>();
-        Set<Edge> edges = new HashSet<Edge>();  // that pass through
-        boolean eroded = false;             // true if blob was eroded away
-
-        Blob() {
-            this.points = new HashSet<Point3i>();
-            this.edges = new HashSet<Edge>();
-        }
-
-        Blob(Set<Point3i> points) {
-            this.points = points;
-            this.edges = new HashSet<Edge>();
-        }
-
-        int getDivisor() {
-            return edges.size();
-        }
-
-        @Override
-        public String toString() {
-            return "(" + points.size() + " / " + edges.size() + "/" + eroded + ")";
-        }
-    }
-    /**
-     * edgeBlobs represents all the blobs that make up this edge, sometimes in the
-     * same slice - usually through several slices.
-     *
-     * A map with a key of Edge - the primary structure in the AnalyzeSkeleton's
-     * graph. The value is a list of Blobs.
-     */
-    HashMap<Edge, CopyOnWriteArrayList<Blob>> edgeBlobs = new HashMap<Edge, CopyOnWriteArrayList<Blob>>();
-    /**
-     * nSliceBlobs represents a list of Blobs that can be found in each slice.
-     * 
-     * A list organized by slice number. Each slice element in this list is a
-     * list of Blobs. This list is created and updated during the construction of
-     * the edgeBlobs map. See getBlobAtPoint().
-     */
-    List<List<Blob>>nSliceBlobs;
-
-    /**
-     * Given the graph (really a forest of trees) created by the AnalyzeSkeleton
-     * plugin, a List and a Map are constructed. See above for a description of
-     * these two structures.
-     *
-     * @param graph
-     */
-    private void createBlobLists(AnalyzedGraph graph) {
-        Graph[] forest;
-        Blob v1Blob = new Blob();
-        Blob v2Blob = new Blob();
-        Blob slabBlob;
-        nSliceBlobs = new ArrayList(Collections.nCopies(imageDepth, null));
-        forest = graph.getSkeletonResult().getGraph();
-//        System.out.println("Trees in the forest: "+forest.length);
-        int treecount = 0;
-        for (Graph tree : forest) {
-            // Skip those trees with no (zero) edges
-            if (tree.getEdges().size() < 1) {
-//                if (tree.getVertices().size() > 0) {
-//                    for (Vertex v : tree.getVertices()) {
-//                        for (Point p : v.getPoints()) {
-//                            Blob pBlob = getBlobAtPoint(p, false);  // Called for the side effect
-//                        }
-//                    }
-//                }
-                continue;   // Skip this tree
-            }
-            treecount++;
-//            System.out.println("T#: "+treecount+" Edges: "+tree.getEdges().size());
-            int edgecount = 0;
-            for (Edge edge : tree.getEdges()) {
-                if (edge.getType() == -1) continue;
-//                System.out.println("     E#: "+(++edgecount));
-                for (Point v1Point : edge.getV1().getPoints()) {
-                    v1Blob = getBlobAtPoint(v1Point, false);
-                    if (v1Blob != null) {
-                        v1Blob.edges.add(edge);
-                        putBlobAtEdge(v1Blob, edge, false);
-                    }
-                }
-                for (Point v2Point : edge.getV2().getPoints()) {
-                    v2Blob = getBlobAtPoint(v2Point, false);
-                    if (v2Blob != null) {
-                        v2Blob.edges.add(edge);
-                        putBlobAtEdge(v2Blob, edge, false);
-                    }
-                }
-
-                for (Point slabPoint : edge.getSlabs()) {
-                    slabBlob = getBlobAtPoint(slabPoint, false);
-                    if (slabBlob != null) {
-                        slabBlob.edges.add(edge);
-                        putBlobAtEdge(slabBlob, edge, false);
-                    }
-                }
-            }
-        }
-//        System.out.println("Trees used: "+treecount);
-    }
-
-
-
-    /**
-     * 
-     * @param edge
-     */
-    void recoverErodedBlobs(Edge edge) {
-        Point checkPoint;
-        Blob checkBlob;
-        List<Blob> newBlobList = new LinkedList<Blob>();
-
-        List<Blob> blobList = edgeBlobs.get(edge);
-        if (null == blobList) return;
-        do {
-            newBlobList.clear();
-            ListIterator<Blob> listIter = blobList.listIterator();
-            while (listIter.hasNext()) {
-                Blob vBlob = listIter.next();
-                for (Point3i point3i : vBlob.points) {
-                    checkPoint = new Point(point3i.x, point3i.y, point3i.z);
-                    do {
-                        checkPoint.z++;
-                        checkBlob = checkForBlob(checkPoint, edge, true);
-                        if (checkBlob != null && checkBlob.eroded) {
-                            checkBlob.eroded = false;
-                            checkBlob.edges.add(edge);
-                            putBlobAtEdge(checkBlob, edge, false);
-                            newBlobList.add(checkBlob);
-                        }
-                    } while (checkBlob != null);
-                    checkPoint = new Point(point3i.x, point3i.y, point3i.z);
-                    do {
-                        checkPoint.z--;
-                        checkBlob = checkForBlob(checkPoint, edge, true);
-                        if (checkBlob != null && checkBlob.eroded) {
-                            checkBlob.eroded = false;
-                            checkBlob.edges.add(edge);
-                            putBlobAtEdge(checkBlob, edge, false);
-                            newBlobList.add(checkBlob);
-                        }
-                    } while (checkBlob != null);
-                }
-            }
-        } while (!newBlobList.isEmpty());
-
-    }
-
-    /**
-     * 
-     * @param point
-     * @param eroded
-     * @return
-     */
-    Blob getBlobAtPoint(Point point, boolean eroded) {
-        Point3i point3i;
-
-        point3i = new Point3i(point.x, point.y, point.z);
-        // Check the list of slice blobs first
-        List<Blob> blobList = nSliceBlobs.get(point.z);
-        if (blobList == null) {
-            // New slice encountered - add it with an empty BlobList
-            blobList = new CopyOnWriteArrayList<Blob>();
-            nSliceBlobs.set(point.z, blobList);
-        } 
-        // Run through this slice's blobs to see if one of them
-        // contains this point. If so, return that blob.
-        for (Blob blob : blobList) {
-            if (blob.points.contains(point3i)) {
-                return blob;
-            }
-        }
-        // Need to create a new blob that will contain this point,
-        // add it to this slice's blob list and return it
-        Set<Point3i> points = slabNeighbors(point3i);
-        if (points.isEmpty()) {
-            return null;
-        }
-        Blob newBlob = new Blob(points);
-        newBlob.eroded = eroded;
-        blobList.add(newBlob);
-        return newBlob;
-    }
-
-    /**
-     * 
-     * @param blob
-     * @param edge
-     * @param eroded
-     */
-    void putBlobAtEdge(Blob blob, Edge edge, boolean eroded) {
-        // See if this edge has an entry already
-        CopyOnWriteArrayList<Blob> blobList = edgeBlobs.get(edge);
-
-        if (blobList == null) {
-            // No, create a new entry with a empty blob list
-            blobList = new CopyOnWriteArrayList<Blob>();
-            edgeBlobs.put(edge, blobList);
-        }
-        // search through the list of blobs to see if it
-        // exists
-        for (Blob blob2 : blobList) {
-            if (blob2.points.equals(blob.points) && blob2.eroded == eroded) {
-                blob2.edges.add(edge);
-                return;
-            }
-        }
-        blob.edges.add(edge);
-        blobList.add(blob);
-    }
-
-    int grandVoxelCount = 0;
-    double grandVoxelCountD = 0.0;
-
-    /**
-     * This method attempts to identify all the voxels from the original image
-     * that this skeletonized edge passes through.
-     *
-     * Steps:
-     * 1. Voxels may have been "eaten" away from the sides of the edge. Recover
-     * these voxels.
-     *
-     * 2. Voxels may have been "eaten" away from the ends of the vertices. Recover
-     * these voxels.
-     *
-     * 3. For this edge, retrieve all the blobs that it passes through.
-     *
-     * 4. For each blob, compute the number of voxels by dividing the size of the
-     * blob (number of Points) by the number of edges that share (pass through)
-     * this blob. Points are allocated evenly amongst the edges.
-     *
-     * @param edge
-     * @return the number of voxels in the original image that this edge represents.
-     */
-    private int reconstructEdge(Edge edge) {
-        int voxelCount = 0;
-        double voxelCountD = 0.0;
-
-        recoverErodedBlobs(edge);
-
-        for (Edge branch : edge.getV1().getBranches()) {
-            recoverErodedBlobs(branch);
-        }
-        for (Edge branch : edge.getV2().getBranches()) {
-            recoverErodedBlobs(branch);
-        }
-
-        List<Blob> blobList = edgeBlobs.get(edge);
-
-        if (blobList == null) {
-            return voxelCount;
-        }
-        for (Blob blob : blobList) {
-            double size = blob.points.size();
-            voxelCountD += size / blob.edges.size();
-            voxelCount += blob.points.size() / blob.edges.size();
-        }
-        int v = 0;
-
-//        for (List<Blob> bList : nSliceBlobs) {
-//            if (null != bList) {
-//                for (Blob blob : bList) {
-//                    v += blob.points.size();
-//                }
-//            }
-//        }
-        grandVoxelCount += voxelCount;
-        grandVoxelCountD += voxelCountD;
-
-        return voxelCount;
-
-    }
-
-
-    /**
-     * neighbors() returns the eight surrounding points only if they are set to
-     * the target pixel value. Slice limits are checked.
-     *
-     * @param homePoint The place from which to look around
-     * @param targetPixel What the value of a pixel must be for acceptance
-     * @return Points that were found or an empty set
-     */
-    private Set<Point3i> neighbors(Point3i homePoint, int targetPixel) {
-        Set<Point3i> neighborPointSet = new HashSet<Point3i>();
-        if ((homePoint.z >= originalImage.getStackSize()) ||
-                (homePoint.z < 0)) {
-            return neighborPointSet;    // Run out of boundary
-        }
-        
-        ImageProcessor sliceProcessor =
-                originalImage.getStack().getProcessor(homePoint.z + 1);
-        
-        if (sliceProcessor.getPixel(homePoint.x, homePoint.y) == targetPixel) {
-            neighborPointSet.add(homePoint);
-        }
-
-        // Neighbors above (in the plane)
-        int x = homePoint.x;
-        int y = homePoint.y;
-
-        if (y - 1 >= 0) {
-            if (x + 1 < imageWidth) {
-                if (sliceProcessor.getPixel(x + 1, y - 1) == targetPixel) {
-                    neighborPointSet.add(new Point3i(x + 1, y - 1, homePoint.z));
-                }
-            }
-            if (x - 1 >= 0) {
-                if (sliceProcessor.getPixel(x - 1, y - 1) == targetPixel) {
-                    neighborPointSet.add(new Point3i(x - 1, y - 1, homePoint.z));
-                }
-            }
-            if (sliceProcessor.getPixel(x, y - 1) == targetPixel) {
-                neighborPointSet.add(new Point3i(x, y - 1, homePoint.z));
-            }
-        }
-        // Neighbors left and right (in this plane)
-        if (x > 0) {
-            if (sliceProcessor.getPixel(x - 1, y) == targetPixel) {
-                neighborPointSet.add(new Point3i(x - 1, y, homePoint.z));
-            }
-        }
-        if (x + 1 < imageWidth) {
-            if (sliceProcessor.getPixel(x + 1, y) == targetPixel) {
-                neighborPointSet.add(new Point3i(x + 1, y, homePoint.z));
-            }
-        }
-        // Neighbors below (in this plane)
-        if (y + 1 < imageHeight) {
-            if (x + 1 < imageWidth) {
-                if (sliceProcessor.getPixel(x + 1, y + 1) == targetPixel) {
-                    neighborPointSet.add(new Point3i(x + 1, y + 1, homePoint.z));
-                }
-            }
-            if (x - 1 >= 0) {
-                if (sliceProcessor.getPixel(x - 1, y + 1) == targetPixel) {
-                    neighborPointSet.add(new Point3i(x - 1, y + 1, homePoint.z));
-                }
-            }
-            if (sliceProcessor.getPixel(x, y + 1) == targetPixel) {
-                neighborPointSet.add(new Point3i(x, y + 1, homePoint.z));
-            }
-        }
-        return neighborPointSet;
-    }
-
-
-    /**
-     * Beginning at the startPoint, slabNeighbors will return *all* contiguous
-     * pixels - not just the immediate neighbors.
-     * 
-     * @param startPoint
-     * @return All contiguous neighboring points or empty set.
-     */
-    Set<Point3i> slabNeighbors(Point3i startPoint) {
-        Set<Point3i> slabPoints = new HashSet<Point3i>();
-        Queue<Point3i> pointQueue = new LinkedList<Point3i>();
-        Point3i checkPoint = new Point3i(startPoint.x, startPoint.y, startPoint.z);
-
-        while (null != checkPoint) {
-            Set<Point3i> slabNeighbors = neighbors(checkPoint, 255);
-            for (Point3i slabPoint : slabNeighbors) {
-                if (slabPoints.add(slabPoint)) {
-                    pointQueue.add(slabPoint);
-                }
-            }
-            checkPoint = pointQueue.poll();
-        }
-        return slabPoints;
-    }
 }
@@ -0,0 +1,62 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+
+/**
+ * <p>
+ * The VolumeCalculatorService. Analyses share nothing, so any number may be
+ * run at once.
+ * </p>
+ */
+@Plugin(type = Service.class)
+public class DefaultVolumeCalculatorService extends AbstractService
+        implements VolumeCalculatorService {
+
+    @Override
+    public VolumeAnalysis analyze(ImagePlus imagePlus) {
+        return analyze(imagePlus, new VolumeAnalysis.Settings());
+    }
+
+    @Override
+    public VolumeAnalysis analyze(ImagePlus imagePlus, VolumeAnalysis.Settings settings) {
+        if (imagePlus.getNSlices() < 2) {
+            throw new IllegalArgumentException(imagePlus.getTitle() + " is not a stack");
+        }
+        return VolumeAnalysis.analyze(imagePlus, settings);
+    }
+
+    @Override
+    public VolumeAnalysis analyze(String path, VolumeAnalysis.Settings settings) {
+        ImagePlus imagePlus = IJ.openImage(path);
+        if (imagePlus == null) {
+            throw new IllegalArgumentException("Cannot open " + path);
+        }
+        return analyze(imagePlus, settings);
+    }
+}
@@ -0,0 +1,290 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import ij.IJ;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * <p>
+ * The shape of every edge of a network, measured in one sweep over the
+ * edges in id order that also counts their volumes: the length of its
+ * skeleton, the distance between its ends and their ratio (the
+ * tortuosity), and the areas of its cross-sections - the mean, the
+ * smallest and the largest - with the radius of the circle of the mean
+ * area. The cross-sections come from the volume engine (see
+ * VolumeEngine.getCrossSections()), so the image is not read again.
+ * </p><p>
+ * The sweep counts every edge, which may change what the engine credits
+ * to the edges counted after it (see VolumeEngine.reuse()): an engine
+ * that is also picked with should not be swept, but one reused from it.
+ * </p><p>
+ * The measures are kept in columns of primitives, one value per edge id,
+ * and are written out as they are (save()). All are calibrated. The edges
+ * that are not measured (duplicates) are left out of the tables; their
+ * values are NaN. Once measured nothing changes, so the measures may be
+ * read from any thread.
+ * </p>
+ */
+public final class EdgeMorphometrics {
+
+    /** The columns of the tables, in order */
+    public static final String[] COLUMNS = {"Edge", "Tree", "Voxels", "Volume", "Length",
+        "End-to-end distance", "Tortuosity", "Cross-sections", "Mean area", "Min area",
+        "Max area", "Equivalent radius"};
+
+    private final boolean[] measured;
+    private final int[] tree;
+    private final int[] voxels;
+    private final int[] sections;
+    private final double[] length;
+    private final double[] endToEnd;
+    private final double[] meanArea;
+    private final double[] minArea;
+    private final double[] maxArea;
+    private final double voxelVolume;
+    private final String units;
+
+    /**
+     * Measure all the edges, in id order.
+     *
+     * @param edgeTable The network; its edges are typed
+     * @param engine Its volumes
+     * @param calibration The size of a voxel
+     */
+    EdgeMorphometrics(EdgeTable edgeTable, VolumeEngine engine, Calibration calibration) {
+        int size = edgeTable.size();
+        measured = new boolean[size];
+        tree = new int[size];
+        voxels = new int[size];
+        sections = new int[size];
+        length = new double[size];
+        endToEnd = new double[size];
+        meanArea = new double[size];
+        minArea = new double[size];
+        maxArea = new double[size];
+        voxelVolume = calibration.pixelWidth * calibration.pixelHeight * calibration.pixelDepth;
+        units = calibration.getUnits();
+        double pixelArea = calibration.pixelWidth * calibration.pixelHeight;
+
+        engine.prepare(edgeTable.typedEdges());
+        for (int t = 0; t < edgeTable.treeCount(); t++) {
+            for (int edge = edgeTable.treeStart(t); edge < edgeTable.treeEnd(t); edge++) {
+                tree[edge] = t;
+                if (edgeTable.getType(edge) == EdgeTable.UNDEFINED) {
+                    length[edge] = endToEnd[edge] = Double.NaN;
+                    meanArea[edge] = minArea[edge] = maxArea[edge] = Double.NaN;
+                    continue;
+                }
+                measured[edge] = true;
+                voxels[edge] = engine.getVoxelCount(edge);
+                int[] areas = engine.getCrossSections(edge);
+                sections[edge] = areas.length;
+                if (areas.length == 0) {
+                    meanArea[edge] = minArea[edge] = maxArea[edge] = 0;
+                } else {
+                    long sum = 0;
+                    int min = Integer.MAX_VALUE;
+                    int max = 0;
+                    for (int area : areas) {
+                        sum += area;
+                        min = Math.min(min, area);
+                        max = Math.max(max, area);
+                    }
+                    meanArea[edge] = sum * pixelArea / areas.length;
+                    minArea[edge] = min * pixelArea;
+                    maxArea[edge] = max * pixelArea;
+                }
+                measureSkeleton(edgeTable, edge, calibration);
+                if (size > 1000 && edge % 1000 == 0) {
+                    IJ.showProgress(edge, size);
+                }
+            }
+        }
+        IJ.showProgress(1.0);
+    }
+
+    /*
+     * The length of the line from V1 through the slab points to V2, and the
+     * distance from V1 to V2.
+     */
+    private void measureSkeleton(EdgeTable edgeTable, int edge, Calibration calibration) {
+        int v1 = edgeTable.getV1(edge);
+        int v2 = edgeTable.getV2(edge);
+        int lastX = edgeTable.getVertexX(v1);
+        int lastY = edgeTable.getVertexY(v1);
+        int lastZ = edgeTable.getVertexZ(v1);
+        double sum = 0;
+        for (int slab = edgeTable.slabStart(edge); slab <= edgeTable.slabEnd(edge); slab++) {
+            boolean end = slab == edgeTable.slabEnd(edge);
+            int x = end ? edgeTable.getVertexX(v2) : edgeTable.getSlabX(slab);
+            int y = end ? edgeTable.getVertexY(v2) : edgeTable.getSlabY(slab);
+            int z = end ? edgeTable.getVertexZ(v2) : edgeTable.getSlabZ(slab);
+            sum += distance(x - lastX, y - lastY, z - lastZ, calibration);
+            lastX = x;
+            lastY = y;
+            lastZ = z;
+        }
+        length[edge] = sum;
+        endToEnd[edge] = distance(edgeTable.getVertexX(v2) - edgeTable.getVertexX(v1),
+                edgeTable.getVertexY(v2) - edgeTable.getVertexY(v1),
+                edgeTable.getVertexZ(v2) - edgeTable.getVertexZ(v1), calibration);
+    }
+
+    private static double distance(int dx, int dy, int dz, Calibration calibration) {
+        double x = dx * calibration.pixelWidth;
+        double y = dy * calibration.pixelHeight;
+        double z = dz * calibration.pixelDepth;
+        return Math.sqrt(x * x + y * y + z * z);
+    }
+
+    public int getEdgeCount() {
+        return measured.length;
+    }
+
+    /**
+     * @param edge
+     * @return false for the edges that are not measured, see the class
+     */
+    public boolean isMeasured(int edge) {
+        return measured[edge];
+    }
+
+    public int getTree(int edge) {
+        return tree[edge];
+    }
+
+    public int getVoxelCount(int edge) {
+        return voxels[edge];
+    }
+
+    public double getVolume(int edge) {
+        return voxels[edge] * voxelVolume;
+    }
+
+    public double getLength(int edge) {
+        return length[edge];
+    }
+
+    public double getEndToEndDistance(int edge) {
+        return endToEnd[edge];
+    }
+
+    /**
+     * @param edge
+     * @return the length over the end-to-end distance, 1 for a straight
+     * edge; NaN for a loop, whose ends meet
+     */
+    public double getTortuosity(int edge) {
+        return (endToEnd[edge] > 0) ? length[edge] / endToEnd[edge] : Double.NaN;
+    }
+
+    public int getCrossSectionCount(int edge) {
+        return sections[edge];
+    }
+
+    public double getMeanArea(int edge) {
+        return meanArea[edge];
+    }
+
+    public double getMinArea(int edge) {
+        return minArea[edge];
+    }
+
+    public double getMaxArea(int edge) {
+        return maxArea[edge];
+    }
+
+    /**
+     * @param edge
+     * @return the radius of the circle whose area is the mean area
+     */
+    public double getEquivalentRadius(int edge) {
+        return Math.sqrt(meanArea[edge] / Math.PI);
+    }
+
+    /**
+     * @return the units of the lengths; areas are in these units squared
+     * and volumes cubed
+     */
+    public String getUnits() {
+        return units;
+    }
+
+    /**
+     * @return the measures of the measured edges, a row each
+     */
+    public ResultsTable toResultsTable() {
+        ResultsTable table = new ResultsTable();
+        for (int edge = 0; edge < measured.length; edge++) {
+            if (!measured[edge]) continue;
+            table.incrementCounter();
+            double[] row = row(edge);
+            for (int column = 0; column < COLUMNS.length; column++) {
+                table.addValue(COLUMNS[column], row[column]);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Write the measures of the measured edges as comma separated values,
+     * straight from the columns. This is the way out for networks too big
+     * for a ResultsTable.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        try (Writer out = new BufferedWriter(new FileWriter(file))) {
+            out.write(String.join(",", COLUMNS));
+            out.write('\n');
+            for (int edge = 0; edge < measured.length; edge++) {
+                if (!measured[edge]) continue;
+                double[] row = row(edge);
+                for (int column = 0; column < row.length; column++) {
+                    if (column > 0) out.write(',');
+                    // Ids and counts are written as whole numbers
+                    if (column < 3 || column == 7) {
+                        out.write(Long.toString((long) row[column]));
+                    } else {
+                        out.write(Double.toString(row[column]));
+                    }
+                }
+                out.write('\n');
+            }
+        }
+    }
+
+    private double[] row(int edge) {
+        return new double[]{edge, tree[edge], voxels[edge], getVolume(edge), length[edge],
+            endToEnd[edge], getTortuosity(edge), sections[edge], meanArea[edge],
+            minArea[edge], maxArea[edge], getEquivalentRadius(edge)};
+    }
+}
@@ -0,0 +1,529 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import sc.fiji.analyzeSkeleton.Edge;
+import sc.fiji.analyzeSkeleton.Graph;
+import sc.fiji.analyzeSkeleton.Point;
+import sc.fiji.analyzeSkeleton.Vertex;
+
+/**
+ * <p>
+ * A compact snapshot of the forest produced by AnalyzeSkeleton.
+ * </p><p>
+ * Every edge is given a dense integer id (0 .. size()-1) once, right after the
+ * analysis. Everything else in the plugin refers to an edge by that id instead
+ * of hashing AnalyzeSkeleton's Edge objects. The per edge data is kept in
+ * primitive arrays indexed by the id (struct of arrays): the two end vertices,
+ * the range of slices that the edge passes through, the voxel count last
+ * credited to the edge, its volume color index and its type (TREE or BACK)
+ * once the scene graph has been built.
+ * </p><p>
+ * The slab points of all the edges are packed, edge after edge, into three
+ * coordinate arrays; the slabs of an edge occupy [slabStart(id), slabEnd(id)).
+ * Vertices get dense ids as well and their points are packed the same way,
+ * as are the ids of the edges (branches) that leave each vertex. Edges are
+ * numbered tree after tree so a tree is a range of edge ids too.
+ * </p><p>
+ * Short end branches (spurs) and small trees can be left out of the table:
+ * they never become edges of the plugin at all.
+ * </p><p>
+ * Nothing in the snapshot refers back to AnalyzeSkeleton's objects, so the
+ * SkeletonResult - one Point object per skeleton voxel - and the plugins that
+ * made it can be garbage collected as soon as the snapshot is built.
+ * </p>
+ */
+class EdgeTable {
+
+    static final int NO_EDGE = -1;
+    /*
+     * Edge types, the same values as AnalyzeSkeleton's Edge.
+     */
+    static final int UNDEFINED = Edge.UNDEFINED;
+    static final int TREE = Edge.TREE;
+    static final int BACK = Edge.BACK;
+
+    private final int edgeCount;
+
+    // Per edge
+    private final int[] v1;
+    private final int[] v2;
+    private final int[] zMin;
+    private final int[] zMax;
+    private final int[] voxelCount;
+    private final int[] colorIndex;
+    private final int[] type;
+    private final int[] slabOffsets;
+
+    // Per slab point
+    private final int[] slabX;
+    private final int[] slabY;
+    private final int[] slabZ;
+
+    // Per vertex
+    private final int[] pointOffsets;
+    private final int[] branchOffsets;
+    private final int[] branches;
+
+    // Per vertex point
+    private final int[] pointX;
+    private final int[] pointY;
+    private final int[] pointZ;
+
+    // Per tree
+    private final int[] treeOffsets;
+
+    /**
+     * Number the edges and vertices of the forest and fill in the tables.
+     *
+     * @param forest The trees produced by AnalyzeSkeleton
+     */
+    EdgeTable(Graph[] forest) {
+        this(forest, 0, 0);
+    }
+
+    /**
+     * Number the edges and vertices of the forest and fill in the tables,
+     * leaving out the end branches shorter than minBranchLength and the
+     * trees with fewer than minTreeSize skeleton voxels.
+     *
+     * @param forest The trees produced by AnalyzeSkeleton
+     * @param minBranchLength in calibrated units, as Edge.getLength()
+     * @param minTreeSize in skeleton voxels (slab and vertex points)
+     */
+    EdgeTable(Graph[] forest, double minBranchLength, int minTreeSize) {
+        Map<Edge, Integer> edgeIds = new IdentityHashMap<Edge, Integer>();
+        Map<Vertex, Integer> vertexIds = new IdentityHashMap<Vertex, Integer>();
+        List<Edge> edgeList = new ArrayList<Edge>();
+        List<Vertex> vertexList = new ArrayList<Vertex>();
+        List<Integer> treeStarts = new ArrayList<Integer>();
+        for (Graph tree : forest) {
+            // Skip those trees with no (zero) edges
+            if (tree.getEdges().size() < 1) continue;
+            if (minTreeSize > 0 && skeletonSize(tree) < minTreeSize) continue;
+            int treeStart = edgeList.size();
+            for (Edge edge : tree.getEdges()) {
+                if (edgeIds.containsKey(edge)) continue;
+                if (isShortEndBranch(edge, minBranchLength)) continue;
+                edgeIds.put(edge, edgeList.size());
+                edgeList.add(edge);
+                for (Vertex vertex : new Vertex[]{edge.getV1(), edge.getV2()}) {
+                    if (!vertexIds.containsKey(vertex)) {
+                        vertexIds.put(vertex, vertexList.size());
+                        vertexList.add(vertex);
+                    }
+                }
+            }
+            if (edgeList.size() > treeStart) {
+                treeStarts.add(treeStart);
+            }
+        }
+        edgeCount = edgeList.size();
+        treeOffsets = new int[treeStarts.size() + 1];
+        for (int t = 0; t < treeStarts.size(); t++) {
+            treeOffsets[t] = treeStarts.get(t);
+        }
+        treeOffsets[treeStarts.size()] = edgeCount;
+
+        int nVertices = vertexList.size();
+        pointOffsets = new int[nVertices + 1];
+        branchOffsets = new int[nVertices + 1];
+        for (int v = 0; v < nVertices; v++) {
+            Vertex vertex = vertexList.get(v);
+            pointOffsets[v + 1] = pointOffsets[v] + vertex.getPoints().size();
+            branchOffsets[v + 1] = branchOffsets[v] + vertex.getBranches().size();
+        }
+        pointX = new int[pointOffsets[nVertices]];
+        pointY = new int[pointOffsets[nVertices]];
+        pointZ = new int[pointOffsets[nVertices]];
+        branches = new int[branchOffsets[nVertices]];
+        for (int v = 0; v < nVertices; v++) {
+            Vertex vertex = vertexList.get(v);
+            int next = pointOffsets[v];
+            for (Point point : vertex.getPoints()) {
+                pointX[next] = point.x;
+                pointY[next] = point.y;
+                pointZ[next] = point.z;
+                next++;
+            }
+            next = branchOffsets[v];
+            for (Edge branch : vertex.getBranches()) {
+                Integer id = edgeIds.get(branch);
+                branches[next++] = (id == null) ? NO_EDGE : id;
+            }
+        }
+
+        v1 = new int[edgeCount];
+        v2 = new int[edgeCount];
+        zMin = new int[edgeCount];
+        zMax = new int[edgeCount];
+        voxelCount = new int[edgeCount];
+        colorIndex = new int[edgeCount];
+        Arrays.fill(colorIndex, UserData.INITIAL_COLOR_INDEX);
+        type = new int[edgeCount];
+        Arrays.fill(type, UNDEFINED);
+        slabOffsets = new int[edgeCount + 1];
+        for (int e = 0; e < edgeCount; e++) {
+            slabOffsets[e + 1] = slabOffsets[e] + edgeList.get(e).getSlabs().size();
+        }
+        slabX = new int[slabOffsets[edgeCount]];
+        slabY = new int[slabOffsets[edgeCount]];
+        slabZ = new int[slabOffsets[edgeCount]];
+
+        for (int e = 0; e < edgeCount; e++) {
+            Edge edge = edgeList.get(e);
+            v1[e] = vertexIds.get(edge.getV1());
+            v2[e] = vertexIds.get(edge.getV2());
+            // The range covers all the points of both vertices, not just
+            // their first ones: it is every slice the edge touches.
+            int low = Integer.MAX_VALUE;
+            int high = Integer.MIN_VALUE;
+            for (int vertex : new int[]{v1[e], v2[e]}) {
+                for (int p = pointStart(vertex); p < pointEnd(vertex); p++) {
+                    low = Math.min(low, getPointZ(p));
+                    high = Math.max(high, getPointZ(p));
+                }
+            }
+            int next = slabOffsets[e];
+            for (Point point : edge.getSlabs()) {
+                slabX[next] = point.x;
+                slabY[next] = point.y;
+                slabZ[next] = point.z;
+                next++;
+                low = Math.min(low, point.z);
+                high = Math.max(high, point.z);
+            }
+            zMin[e] = low;
+            zMax[e] = high;
+        }
+    }
+
+    /*
+     * A copy of the table as it was built, sharing the network.
+     */
+    private EdgeTable(EdgeTable other) {
+        edgeCount = other.edgeCount;
+        v1 = other.v1;
+        v2 = other.v2;
+        zMin = other.zMin;
+        zMax = other.zMax;
+        slabOffsets = other.slabOffsets;
+        slabX = other.slabX;
+        slabY = other.slabY;
+        slabZ = other.slabZ;
+        pointOffsets = other.pointOffsets;
+        branchOffsets = other.branchOffsets;
+        branches = other.branches;
+        pointX = other.pointX;
+        pointY = other.pointY;
+        pointZ = other.pointZ;
+        treeOffsets = other.treeOffsets;
+        voxelCount = new int[edgeCount];
+        colorIndex = new int[edgeCount];
+        Arrays.fill(colorIndex, UserData.INITIAL_COLOR_INDEX);
+        type = new int[edgeCount];
+        Arrays.fill(type, UNDEFINED);
+    }
+
+    /**
+     * The same network in a new table, as the constructor left it: no edge
+     * is typed, colored or counted. The vertices, edges and points are not
+     * copied - they never change - so this is cheap.
+     *
+     * @return the new table
+     */
+    EdgeTable copy() {
+        return new EdgeTable(this);
+    }
+
+    /**
+     * Type the edges TREE or BACK the way AnalyzedGraph does as it draws
+     * them, depth first from the first vertex of each tree, but without
+     * drawing anything. The duplicates of an edge - the same vertices -
+     * stay UNDEFINED. The volume engines count only the edges that are
+     * typed, so a network that is not drawn (see VolumeAnalysis) is typed
+     * with this.
+     */
+    void typeEdges() {
+        boolean[] visited = new boolean[vertexCount()];
+        int[] predecessor = new int[vertexCount()];
+        Arrays.fill(predecessor, NO_EDGE);
+        Deque<Integer> stack = new ArrayDeque<Integer>();
+        for (int tree = 0; tree < treeCount(); tree++) {
+            stack.push(getV1(treeStart(tree)));
+            while (!stack.isEmpty()) {
+                int vertex = stack.pop();
+                if (visited[vertex]) continue;
+                if (predecessor[vertex] != NO_EDGE) {
+                    type[predecessor[vertex]] = TREE;
+                }
+                visited[vertex] = true;
+                edgeLoop:
+                for (int b = branchStart(vertex); b < branchEnd(vertex); b++) {
+                    int edge = getBranch(b);
+                    if (edge == NO_EDGE) continue;
+                    for (int p = branchStart(vertex); p < b; p++) {
+                        int previousEdge = getBranch(p);
+                        if (edge == previousEdge) {
+                            continue edgeLoop;
+                        }
+                        if (previousEdge != NO_EDGE && getV1(edge) == getV1(previousEdge)
+                                && getV2(edge) == getV2(previousEdge)) {
+                            continue edgeLoop;
+                        }
+                    }
+                    if (type[edge] != BACK) {
+                        int oppVertex = getOppositeVertex(edge, vertex);
+                        if (!visited[oppVertex]) {
+                            stack.push(oppVertex);
+                            predecessor[oppVertex] = edge;
+                        } else {
+                            type[edge] = BACK;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param tree A tree of AnalyzeSkeleton
+     * @return the number of its skeleton voxels
+     */
+    static int skeletonSize(Graph tree) {
+        int size = 0;
+        for (Vertex vertex : tree.getVertices()) {
+            size += vertex.getPoints().size();
+        }
+        for (Edge edge : tree.getEdges()) {
+            size += edge.getSlabs().size();
+        }
+        return size;
+    }
+
+    /*
+     * A spur: a branch shorter than the minimum from a junction to an end
+     * point. A branch with two end points is a whole tree and is left to
+     * the tree size.
+     */
+    private static boolean isShortEndBranch(Edge edge, double minBranchLength) {
+        if (minBranchLength <= 0 || edge.getLength() >= minBranchLength) {
+            return false;
+        }
+        boolean end1 = edge.getV1().getBranches().size() == 1;
+        boolean end2 = edge.getV2().getBranches().size() == 1;
+        return end1 != end2;
+    }
+
+    /**
+     * @return the number of edges in the table
+     */
+    int size() {
+        return edgeCount;
+    }
+
+    int getV1(int id) {
+        return v1[id];
+    }
+
+    int getV2(int id) {
+        return v2[id];
+    }
+
+    /**
+     * @return the vertex at the other end of the edge
+     */
+    int getOppositeVertex(int id, int vertex) {
+        return (v1[id] == vertex) ? v2[id] : v1[id];
+    }
+
+    int getZMin(int id) {
+        return zMin[id];
+    }
+
+    int getZMax(int id) {
+        return zMax[id];
+    }
+
+    int getVoxelCount(int id) {
+        return voxelCount[id];
+    }
+
+    void setVoxelCount(int id, int count) {
+        voxelCount[id] = count;
+    }
+
+    int getColorIndex(int id) {
+        return colorIndex[id];
+    }
+
+    void setColorIndex(int id, int index) {
+        colorIndex[id] = index;
+    }
+
+    int getType(int id) {
+        return type[id];
+    }
+
+    void setType(int id, int edgeType) {
+        type[id] = edgeType;
+    }
+
+    /**
+     * @return the ids of the edges that were typed by the traversal, the
+     * ones that are counted, in order
+     */
+    int[] typedEdges() {
+        int count = 0;
+        for (int id = 0; id < edgeCount; id++) {
+            if (type[id] != UNDEFINED) count++;
+        }
+        int[] ids = new int[count];
+        for (int id = 0, i = 0; id < edgeCount; id++) {
+            if (type[id] != UNDEFINED) ids[i++] = id;
+        }
+        return ids;
+    }
+
+    /**
+     * The slab points of an edge, in AnalyzeSkeleton's order (from V1 to V2),
+     * occupy [slabStart(id), slabEnd(id)) of the packed slab arrays.
+     */
+    int slabStart(int id) {
+        return slabOffsets[id];
+    }
+
+    int slabEnd(int id) {
+        return slabOffsets[id + 1];
+    }
+
+    int getSlabCount(int id) {
+        return slabOffsets[id + 1] - slabOffsets[id];
+    }
+
+    int getSlabX(int slab) {
+        return slabX[slab];
+    }
+
+    int getSlabY(int slab) {
+        return slabY[slab];
+    }
+
+    int getSlabZ(int slab) {
+        return slabZ[slab];
+    }
+
+    int vertexCount() {
+        return pointOffsets.length - 1;
+    }
+
+    /**
+     * The points of a vertex occupy [pointStart(v), pointEnd(v)) of the
+     * packed vertex point arrays. The first one is the one used for drawing.
+     */
+    int pointStart(int vertex) {
+        return pointOffsets[vertex];
+    }
+
+    int pointEnd(int vertex) {
+        return pointOffsets[vertex + 1];
+    }
+
+    int getPointX(int point) {
+        return pointX[point];
+    }
+
+    int getPointY(int point) {
+        return pointY[point];
+    }
+
+    int getPointZ(int point) {
+        return pointZ[point];
+    }
+
+    int getVertexX(int vertex) {
+        return pointX[pointOffsets[vertex]];
+    }
+
+    int getVertexY(int vertex) {
+        return pointY[pointOffsets[vertex]];
+    }
+
+    int getVertexZ(int vertex) {
+        return pointZ[pointOffsets[vertex]];
+    }
+
+    /**
+     * The edges leaving a vertex are packed one vertex after another in a
+     * single array: they occupy [branchStart(v), branchEnd(v)).
+     */
+    int branchStart(int vertex) {
+        return branchOffsets[vertex];
+    }
+
+    int branchEnd(int vertex) {
+        return branchOffsets[vertex + 1];
+    }
+
+    int getBranch(int index) {
+        return branches[index];
+    }
+
+    /**
+     * @return the number of trees that have at least one edge
+     */
+    int treeCount() {
+        return treeOffsets.length - 1;
+    }
+
+    /**
+     * The edges of a tree occupy the ids [treeStart(t), treeEnd(t)).
+     */
+    int treeStart(int tree) {
+        return treeOffsets[tree];
+    }
+
+    int treeEnd(int tree) {
+        return treeOffsets[tree + 1];
+    }
+
+    /**
+     * @return about how many bytes the table holds
+     */
+    long estimateMemory() {
+        long ints = 0;
+        for (int[] array : new int[][]{v1, v2, zMin, zMax, voxelCount, colorIndex, type,
+            slabOffsets, slabX, slabY, slabZ, pointOffsets, branchOffsets, branches,
+            pointX, pointY, pointZ, treeOffsets}) {
+            ints += array.length;
+        }
+        return 4 * ints;
+    }
+}
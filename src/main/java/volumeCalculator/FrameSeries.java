@@ -0,0 +1,474 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.SaveDialog;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+import ij3d.Content;
+import ij3d.Image3DUniverse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * The frames - channels and time points - of a hyperstack, each analyzed on
+ * its own: skeletonized, turned into a network and given a volume engine.
+ * A plain stack is a series of one frame.
+ * </p><p>
+ * The frames do not depend on each other and are analyzed on a fixed number
+ * of threads (AnalysisOptions.getFramesAtOnce()), which bounds the memory
+ * used: only the frames in the works hold a mask of the box. What they share
+ * - the user's image, the box and its ROI, the options - is only read. The
+ * total volume of each frame goes to a results table.
+ * </p><p>
+ * Every frame is kept once it is analyzed, so that the user can step from
+ * one to the other in the 3D viewer without anything being redone. The 3D
+ * content, the picking behavior and the 2D overlay of a frame are made the
+ * first time the frame is shown; after that the frame is only shown or
+ * hidden.
+ * </p><p>
+ * While the frames are analyzed a preview may be shown: the first frame
+ * analyzed at a fraction of its resolution, which takes a fraction of the
+ * time. It cannot be picked. Showing the first frame replaces it.
+ * </p><p>
+ * A frame that was analyzed before, with the same options and pixels, is
+ * not analyzed again: its network and volume engine are taken from the
+ * AnalysisCache and only its scene is built. A frame's engine may keep its
+ * blobs in a temporary file, which close() lets go of.
+ * </p><p>
+ * The analysis may be cancelled with Esc (see AnalysisStage). The frames
+ * analyzed by then are kept in the cache, as is the skeleton of a frame
+ * that was cancelled after it was skeletonized: analyzing the image again
+ * picks up where it stopped.
+ * </p><p>
+ * A frame too big for this JVM may be analyzed in shards, by other JVMs,
+ * see ShardCoordinator.
+ * </p>
+ */
+class FrameSeries {
+
+    private static final String CONTENT_NAME = "VoCal Network";
+    private static final String TABLE_TITLE = "Volumes per Frame";
+    private static final String PREVIEW_NAME = "VoCal Preview";
+    /* More edges than this are saved to a file rather than shown */
+    private static final int MAX_TABLE_ROWS = 100000;
+
+    private final ImagePlus imagePlus;
+    private final AnalysisOptions options;
+    private final Frame[] frames;
+
+    private Image3DUniverse universe;
+    private Volumes volumes;
+    private VolumesPanel volumesPanel;
+    /* The frame in the 3D viewer; -1 before one is */
+    private int shown = -1;
+    /* The preview in the 3D viewer, if there is one */
+    private Content preview;
+
+    /**
+     * One channel at one time point, and all that was made for it.
+     */
+    private static class Frame {
+        final MaskBuilder region;
+        /* Where the analysis is kept, see AnalysisCache */
+        final String key;
+        AnalyzedGraph graph;
+        VolumeEngine engine;
+        int edgeCount;
+        long voxelCount;
+        EdgeMorphometrics morphometrics;
+        Content content;
+        CustomVolumeBehavior2 behavior;
+        SliceOverlay sliceOverlay;
+
+        Frame(MaskBuilder region, String key) {
+            this.region = region;
+            this.key = key;
+        }
+    }
+
+    /**
+     * @param imagePlus The user's image
+     * @param options The choices the user made, including which frames
+     */
+    FrameSeries(ImagePlus imagePlus, AnalysisOptions options) {
+        this.imagePlus = imagePlus;
+        this.options = options;
+        MaskBuilder region = options.getMaskBuilder();
+        int channels = options.getChannels();
+        int times = options.getFrames();
+        if (channels * times == 1) {
+            frames = new Frame[]{new Frame(region, AnalysisCache.key(imagePlus, region, options))};
+        } else {
+            frames = new Frame[channels * times];
+            for (int t = 0; t < times; t++) {
+                for (int c = 0; c < channels; c++) {
+                    MaskBuilder frameRegion = region.forFrame(c + 1, t + 1);
+                    frames[t * channels + c] = new Frame(frameRegion,
+                            AnalysisCache.key(imagePlus, frameRegion, options));
+                }
+            }
+        }
+    }
+
+    int size() {
+        return frames.length;
+    }
+
+    AnalyzedGraph getGraph(int index) {
+        return frames[index].graph;
+    }
+
+    /**
+     * @return whether every frame was analyzed before, in which case there
+     * is no point in a preview
+     */
+    boolean isCached() {
+        for (Frame frame : frames) {
+            if (!AnalysisCache.contains(frame.key)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Analyze all the frames. A single frame is analyzed on this thread; the
+     * frames of a hyperstack on a pool of options.getFramesAtOnce() threads,
+     * and their volumes are then shown in a table.
+     *
+     * @return false if the analysis failed, was interrupted or cancelled
+     */
+    boolean analyze() {
+        if (frames.length == 1) {
+            try {
+                analyze(frames[0]);
+            } catch (CancellationException e) {
+                cancelled();
+                return false;
+            } catch (IllegalStateException e) {
+                // A shard failed, or the frame does not fit in memory
+                close();
+                IJ.showMessage("Volume Calculator", e.getLocalizedMessage());
+                return false;
+            }
+            AnalysisCache.showStatus();
+            return true;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(options.getFramesAtOnce(), frames.length));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(frames.length);
+            for (final Frame frame : frames) {
+                futures.add(executor.submit(() -> analyze(frame)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                futures.get(i).get();
+                IJ.showProgress(i + 1, frames.length);
+            }
+        } catch (InterruptedException e) {
+            stop(executor);
+            close();
+            Thread.currentThread().interrupt();
+            IJ.showMessage("Volume Calculator", "The analysis was interrupted.");
+            return false;
+        } catch (ExecutionException e) {
+            stop(executor);
+            if (e.getCause() instanceof CancellationException) {
+                cancelled();
+                return false;
+            }
+            close();
+            IJ.showMessage("Volume Calculator", "A frame could not be analyzed: "
+                    + e.getCause().getLocalizedMessage());
+            return false;
+        } finally {
+            executor.shutdownNow();
+        }
+        showTable();
+        AnalysisCache.showStatus();
+        return true;
+    }
+
+    /*
+     * Stop the frames still in the works and wait for them, so that none of
+     * them is left holding a volume engine.
+     */
+    private static void stop(ExecutorService executor) {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Let go of the frames: those that were finished are in the cache.
+     */
+    private void cancelled() {
+        close();
+        for (Frame frame : frames) {
+            frame.graph = null;
+        }
+        IJ.showProgress(1.0);
+        IJ.showStatus("Volume Calculator cancelled; run it again to pick up where it stopped");
+    }
+
+    /**
+     * Analyze the first frame, downsampled, for a preview.
+     *
+     * @param factor How many times smaller the preview's mask is
+     * @return the network of the preview
+     */
+    AnalyzedGraph analyzePreview(int factor) {
+        MaskBuilder region = frames[0].region;
+        AnalyzedGraph graph = new AnalyzedGraph();
+        graph.init(region.buildDownsampled(imagePlus, factor), options, region, factor);
+        AnalysisStage.end();
+        graph.getSceneGraph().compile();
+        return graph;
+    }
+
+    /**
+     * Show a preview until a frame is shown.
+     *
+     * @param graph The network of the preview
+     */
+    synchronized void showPreview(AnalyzedGraph graph) {
+        preview = new Content(PREVIEW_NAME);
+        preview.setUserData(graph);
+        preview.display(graph.getSceneGraph());
+        universe.addContent(preview);
+    }
+
+    /**
+     * Skeletonize and analyze one frame, unless it was analyzed before. Only
+     * the mask made here is the frame's own and it is dropped as soon as the
+     * skeleton is analyzed. The skeleton is kept if the frame is cancelled
+     * afterwards, and taken up again the next time.
+     */
+    private void analyze(Frame frame) {
+        frame.graph = new AnalyzedGraph();
+        AnalysisCache.Entry cached = AnalysisCache.get(frame.key);
+        if (cached != null) {
+            frame.graph.init(cached.edgeTable.copy(), options, frame.region, 1);
+            try {
+                frame.engine = cached.engine.reuse(frame.graph.getEdgeTable());
+            } finally {
+                // get() took the engine for this frame until it was reused
+                cached.engine.close();
+            }
+        } else if (options.getShards() > 1) {
+            ShardCoordinator coordinator = new ShardCoordinator(imagePlus, frame.region, options);
+            coordinator.analyze();
+            coordinator.showTable(getLabel(frame));
+            frame.graph.init(coordinator.getEdgeTable().copy(), options, frame.region, 1);
+            frame.engine = coordinator.getEngine();
+            AnalysisCache.put(frame.key, coordinator.getEdgeTable(), frame.engine);
+        } else {
+            EdgeTable skeleton = AnalysisCache.takeSkeleton(frame.key);
+            if (skeleton == null) {
+                if (options.isPlanMemory()) {
+                    new MemoryPlanner(imagePlus, frame.region, options).checkSkeleton();
+                }
+                ImagePlus mask = frame.region.build(imagePlus);
+                skeleton = AnalyzedGraph.analyzeSkeleton(mask, options);
+            }
+            // The table is kept before it is picked; the engine only reads
+            // what the traversal typed, which is the same in every copy.
+            try {
+                frame.graph.init(skeleton.copy(), options, frame.region, 1);
+                frame.engine = options.createVolumeEngine(imagePlus, frame.region, frame.graph.getEdgeTable());
+            } catch (CancellationException e) {
+                AnalysisCache.putSkeleton(frame.key, skeleton);
+                throw e;
+            }
+            AnalysisCache.put(frame.key, skeleton, frame.engine);
+        }
+        AnalysisStage.end();
+        frame.graph.getSceneGraph().compile();
+        EdgeTable edgeTable = frame.graph.getEdgeTable();
+        if (frames.length > 1) {
+            frame.engine.prepare(edgeTable.typedEdges());
+            for (int edgeId = 0; edgeId < edgeTable.size(); edgeId++) {
+                if (edgeTable.getType(edgeId) == EdgeTable.UNDEFINED) continue;
+                frame.voxelCount += frame.engine.getVoxelCount(edgeId);
+                frame.edgeCount++;
+            }
+        }
+    }
+
+    /**
+     * The number of edges and the volume of the whole network, frame by frame.
+     */
+    private void showTable() {
+        Calibration calibration = imagePlus.getCalibration();
+        double voxelVolume = calibration.pixelWidth * calibration.pixelHeight * calibration.pixelDepth;
+        ResultsTable table = new ResultsTable();
+        for (Frame frame : frames) {
+            table.incrementCounter();
+            table.addValue("Channel", frame.region.getChannel());
+            table.addValue("Frame", frame.region.getFrame());
+            table.addValue("Edges", frame.edgeCount);
+            table.addValue("Voxels", frame.voxelCount);
+            table.addValue("Volume (" + calibration.getUnits() + "^3)", frame.voxelCount * voxelVolume);
+        }
+        table.show(TABLE_TITLE);
+    }
+
+    /**
+     * Measure every edge of the frame shown (see EdgeMorphometrics), the
+     * first time only, and show the measures in a table. A network with too
+     * many edges for a table has its measures saved to a file instead. The
+     * measures are taken with an engine of their own, so that the volumes
+     * the user picks afterwards are those they would have been.
+     */
+    void showMorphometrics() {
+        Frame frame;
+        synchronized (this) {
+            if (shown < 0) return;
+            frame = frames[shown];
+        }
+        EdgeMorphometrics morphometrics;
+        synchronized (frame) {
+            if (frame.morphometrics == null) {
+                EdgeTable edgeTable = frame.graph.getEdgeTable();
+                VolumeEngine engine = frame.engine.reuse(edgeTable);
+                try {
+                    frame.morphometrics = new EdgeMorphometrics(edgeTable, engine,
+                            imagePlus.getCalibration());
+                } finally {
+                    // One that does not depend on the order is the frame's own
+                    if (engine != frame.engine) engine.close();
+                }
+            }
+            morphometrics = frame.morphometrics;
+        }
+        String title = "Edges " + ((frames.length == 1) ? imagePlus.getTitle() : getLabel(frame));
+        if (morphometrics.getEdgeCount() <= MAX_TABLE_ROWS) {
+            morphometrics.toResultsTable().show(title);
+            return;
+        }
+        SaveDialog saveDialog = new SaveDialog("Save Edge Measures", title, ".csv");
+        if (saveDialog.getFileName() == null) return;
+        try {
+            morphometrics.save(new File(saveDialog.getDirectory(), saveDialog.getFileName()));
+        } catch (IOException e) {
+            IJ.showMessage("Volume Calculator", "The measures could not be saved: "
+                    + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Let go of the volume engines of the frames, when the viewer is closed
+     * or the analysis stopped. Those the AnalysisCache keeps stay open until
+     * they are pushed out.
+     */
+    void close() {
+        for (Frame frame : frames) {
+            if (frame.engine != null) {
+                frame.engine.close();
+                frame.engine = null;
+            }
+        }
+    }
+
+    /**
+     * Where the frames are shown and picked.
+     *
+     * @param universe The 3D viewer
+     * @param volumes The volume colors
+     * @param volumesPanel The volumes' GUI
+     */
+    void setViewer(Image3DUniverse universe, Volumes volumes, VolumesPanel volumesPanel) {
+        this.universe = universe;
+        this.volumes = volumes;
+        this.volumesPanel = volumesPanel;
+    }
+
+    /**
+     * @param index A frame
+     * @return how the frame is called in the viewer
+     */
+    String getLabel(int index) {
+        return getLabel(frames[index]);
+    }
+
+    private static String getLabel(Frame frame) {
+        return "c" + frame.region.getChannel() + " t" + frame.region.getFrame();
+    }
+
+    /**
+     * Show a frame in the 3D viewer in place of the one that is shown. The
+     * volumes picked are those of one frame and are cleared.
+     *
+     * @param index The frame
+     */
+    synchronized void show(int index) {
+        if (index == shown) return;
+        Frame frame = frames[index];
+        if (shown >= 0) {
+            frames[shown].content.setVisible(false);
+        }
+        if (frame.content == null) {
+            String name = (frames.length == 1) ? CONTENT_NAME : CONTENT_NAME + " " + getLabel(index);
+            frame.content = new Content(name);
+            frame.content.setUserData(frame.graph);
+            frame.content.display(frame.graph.getSceneGraph());
+            universe.addContent(frame.content);
+            // Create the picking behavior (Controller) for the graphic view
+            // of the frame. The selected volumes go to the Volumes instance.
+            frame.behavior = new CustomVolumeBehavior2(
+                    universe, frame.content, volumes, volumesPanel, imagePlus, frame.engine);
+            // Edges can also be selected on the image window itself, slice
+            // by slice, with the 2D Slices option of the VolumesPanel.
+            frame.sliceOverlay = new SliceOverlay(imagePlus, frame.region,
+                    frame.graph, frame.behavior, volumes, volumesPanel);
+        } else {
+            frame.content.setVisible(true);
+        }
+        // The frame is in the viewer before the preview goes, so that there
+        // is always a network to look at.
+        if (preview != null) {
+            universe.removeContent(PREVIEW_NAME);
+            preview = null;
+        }
+        universe.setInteractiveBehavior(frame.behavior);
+        volumesPanel.setAnalyzedGraph(frame.graph);
+        volumesPanel.setSliceOverlay(frame.sliceOverlay);
+        if (frames.length > 1) {
+            imagePlus.setPosition(frame.region.getChannel(), imagePlus.getSlice(), frame.region.getFrame());
+        }
+        shown = index;
+    }
+}
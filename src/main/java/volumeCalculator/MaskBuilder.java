@@ -0,0 +1,455 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.gui.Roi;
+import ij.io.FileInfo;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Builds the image that is analyzed from the user's image: the box (a
+ * rectangle and a range of slices) that the user chose and, if asked for,
+ * only the part of it inside the ROI - everything outside is cleared to
+ * background. The user's image is left as it is.
+ * </p><p>
+ * The result is always a binary 8-bit mask: foreground 255, background 0.
+ * An 8-bit image is taken to be binary already and is copied as it is; a
+ * 16-bit or 32-bit image is thresholded on the fly, the voxels between the
+ * lower and upper thresholds being foreground. Nothing but the mask itself
+ * is ever made in 8 bits.
+ * </p><p>
+ * The analyzed image is built one slice at a time and is only as big as the
+ * box, so everything that follows - skeletonization, analysis, volumes -
+ * costs in proportion to the region of interest. Its coordinates start at
+ * the corner of the box; getX(), getY() and getZ() map them back to the
+ * user's image.
+ * </p><p>
+ * Only Skeletonize3D_ needs the mask in memory, see build(). The volume
+ * engines read the mask just once, slice by slice, and get it from
+ * maskStack(): a virtual stack that makes each slice from the user's image
+ * when it is asked for. If the user's image is a virtual stack its slices
+ * are read for this straight from the TIFF file (TiffSliceReader), so
+ * nothing but the slice being made is in memory.
+ * </p><p>
+ * A hyperstack is analyzed one channel and time point - a frame - at a
+ * time: forFrame() gives the builder of another frame, with the same box,
+ * ROI and thresholds.
+ * </p>
+ */
+class MaskBuilder {
+
+    /* fingerprint() is a 64 bit FNV-1a hash of the pixels */
+    private static final long FINGERPRINT_BASIS = 0xcbf29ce484222325L;
+    private static final long FINGERPRINT_PRIME = 0x100000001b3L;
+
+    private final int sourceWidth;
+    private final int sourceHeight;
+    private final int sourceDepth;
+    private final int sourceChannels;
+    /* The box, in the user's image; z is 0 based */
+    private final int x, y, z;
+    private final int width, height, depth;
+    /* For every pixel of the box, whether it is inside the ROI; null if
+     * the whole box is analyzed. */
+    private final boolean[] inside;
+    /* Foreground is [lower, upper]; not used for 8-bit images */
+    private double lower = 1;
+    private double upper = Double.MAX_VALUE;
+    /* The frame of a hyperstack that is analyzed, 1 based */
+    private int channel = 1;
+    private int frame = 1;
+
+    /**
+     * @param source The user's image
+     * @param x
+     * @param y
+     * @param z The first slice of the box, 0 based
+     * @param width
+     * @param height
+     * @param depth The number of slices in the box
+     * @param roi Clear what is outside of this ROI, or null
+     */
+    MaskBuilder(ImagePlus source, int x, int y, int z, int width, int height, int depth, Roi roi) {
+        this.sourceWidth = source.getWidth();
+        this.sourceHeight = source.getHeight();
+        this.sourceDepth = source.getNSlices();
+        this.sourceChannels = source.getNChannels();
+        // Keep the box inside the image
+        this.x = Math.max(0, Math.min(x, sourceWidth - 1));
+        this.y = Math.max(0, Math.min(y, sourceHeight - 1));
+        this.z = Math.max(0, Math.min(z, sourceDepth - 1));
+        this.width = Math.max(1, Math.min(width, sourceWidth - this.x));
+        this.height = Math.max(1, Math.min(height, sourceHeight - this.y));
+        this.depth = Math.max(1, Math.min(depth, sourceDepth - this.z));
+        if (roi != null && roi.isArea()) {
+            inside = new boolean[this.width * this.height];
+            for (int row = 0; row < this.height; row++) {
+                for (int column = 0; column < this.width; column++) {
+                    inside[row * this.width + column] = roi.contains(this.x + column, this.y + row);
+                }
+            }
+        } else {
+            inside = null;
+        }
+    }
+
+    /**
+     * @param source The user's image
+     * @return a builder of all of the image
+     */
+    static MaskBuilder wholeImage(ImagePlus source) {
+        return new MaskBuilder(source, 0, 0, 0,
+                source.getWidth(), source.getHeight(), source.getNSlices(), null);
+    }
+
+    /**
+     * A builder of the same box in another frame of a hyperstack. The ROI is
+     * shared, not copied.
+     *
+     * @param channel 1 based
+     * @param frame The time point, 1 based
+     * @return the builder
+     */
+    MaskBuilder forFrame(int channel, int frame) {
+        MaskBuilder builder = new MaskBuilder(this);
+        builder.channel = channel;
+        builder.frame = frame;
+        return builder;
+    }
+
+    private MaskBuilder(MaskBuilder other) {
+        this.sourceWidth = other.sourceWidth;
+        this.sourceHeight = other.sourceHeight;
+        this.sourceDepth = other.sourceDepth;
+        this.sourceChannels = other.sourceChannels;
+        this.x = other.x;
+        this.y = other.y;
+        this.z = other.z;
+        this.width = other.width;
+        this.height = other.height;
+        this.depth = other.depth;
+        this.inside = other.inside;
+        this.lower = other.lower;
+        this.upper = other.upper;
+    }
+
+    /**
+     * Set the range of values that is foreground in 16-bit and 32-bit images.
+     *
+     * @param lower
+     * @param upper
+     */
+    void setThreshold(double lower, double upper) {
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    /**
+     * @return what sets the mask apart from the masks of other boxes, ROIs,
+     * thresholds and frames of the same image
+     */
+    String getKey() {
+        return x + "," + y + "," + z + " " + width + "x" + height + "x" + depth
+                + " c" + channel + " t" + frame + " [" + lower + "," + upper + "]"
+                + " roi" + Arrays.hashCode(inside);
+    }
+
+    /**
+     * A fingerprint of the pixels of the frame, to tell whether the user's
+     * image has been changed since it was analyzed (see AnalysisCache). It
+     * is made from every pixel of every slice of the box: a network is only
+     * reused for pixels that were not changed at all. A virtual stack is not edited in memory: its fingerprint is the time
+     * stamp and size of its file.
+     *
+     * @param source The user's image
+     * @return the fingerprint
+     */
+    long fingerprint(ImagePlus source) {
+        ImageStack sourceStack = source.getStack();
+        if (sourceStack.isVirtual()) {
+            FileInfo fileInfo = source.getOriginalFileInfo();
+            if (fileInfo == null || fileInfo.fileName == null) {
+                return 0;
+            }
+            File file = new File(fileInfo.directory, fileInfo.fileName);
+            return file.lastModified() * 31 + file.length();
+        }
+        long hash = FINGERPRINT_BASIS;
+        for (int slice = 0; slice < depth; slice++) {
+            Object pixels = sourceStack.getPixels(sourceIndex(slice));
+            if (pixels instanceof byte[]) {
+                for (byte value : (byte[]) pixels) {
+                    hash = (hash ^ value) * FINGERPRINT_PRIME;
+                }
+            } else if (pixels instanceof short[]) {
+                for (short value : (short[]) pixels) {
+                    hash = (hash ^ value) * FINGERPRINT_PRIME;
+                }
+            } else if (pixels instanceof float[]) {
+                for (float value : (float[]) pixels) {
+                    hash = (hash ^ Float.floatToIntBits(value)) * FINGERPRINT_PRIME;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Make the mask of the box, slice by slice, in memory. This is the image
+     * that is skeletonized.
+     *
+     * @param source The user's image
+     * @return the image to analyze, with the calibration of the source
+     */
+    ImagePlus build(ImagePlus source) {
+        ImageStack sourceStack = source.getStack();
+        ImageStack stack = new ImageStack(width, height);
+        AnalysisStage.begin(AnalysisStage.MASK);
+        for (int slice = 0; slice < depth; slice++) {
+            AnalysisStage.progress(slice + 1, depth);
+            stack.addSlice("", maskSlice(sourceStack, slice));
+        }
+        ImagePlus analyzed = new ImagePlus(source.getTitle(), stack);
+        analyzed.setCalibration(source.getCalibration().copy());
+        return analyzed;
+    }
+
+    /**
+     * Make a mask of the box that is factor times smaller in each direction,
+     * for a quick look at the network. A voxel of it is foreground if any of
+     * the factor^3 voxels it stands for is, so that thin vessels stay
+     * connected. Its calibration is that of the source, factor times coarser.
+     *
+     * @param source The user's image
+     * @param factor 2, 4...
+     * @return the downsampled image to analyze
+     */
+    ImagePlus buildDownsampled(ImagePlus source, int factor) {
+        ImageStack sourceStack = source.getStack();
+        int smallWidth = (width + factor - 1) / factor;
+        int smallHeight = (height + factor - 1) / factor;
+        ImageStack stack = new ImageStack(smallWidth, smallHeight);
+        for (int slice = 0; slice < depth; slice += factor) {
+            byte[] small = new byte[smallWidth * smallHeight];
+            for (int s = slice; s < Math.min(depth, slice + factor); s++) {
+                byte[] mask = maskSlice(sourceStack, s);
+                for (int row = 0; row < height; row++) {
+                    int smallRow = (row / factor) * smallWidth;
+                    for (int column = 0; column < width; column++) {
+                        if (mask[row * width + column] != 0) {
+                            small[smallRow + column / factor] = (byte) 255;
+                        }
+                    }
+                }
+            }
+            stack.addSlice("", small);
+        }
+        ImagePlus analyzed = new ImagePlus(source.getTitle(), stack);
+        Calibration calibration = source.getCalibration().copy();
+        calibration.pixelWidth *= factor;
+        calibration.pixelHeight *= factor;
+        calibration.pixelDepth *= factor;
+        analyzed.setCalibration(calibration);
+        return analyzed;
+    }
+
+    /**
+     * The mask of the box as a virtual stack: no slice is kept, each one is
+     * made from the user's image when it is asked for.
+     *
+     * @param source The user's image
+     * @return the mask
+     */
+    ImageStack maskStack(ImagePlus source) {
+        ImageStack sourceStack = source.getStack();
+        TiffSliceReader reader = sourceStack.isVirtual() ? TiffSliceReader.open(source) : null;
+        return new MaskStack(sourceStack, reader);
+    }
+
+    /**
+     * Make one slice of the mask.
+     *
+     * @param sourceStack The user's image
+     * @param slice The slice of the box, 0 based
+     * @return the pixels of the mask
+     */
+    byte[] maskSlice(ImageStack sourceStack, int slice) {
+        return maskSlice(sourceStack.getPixels(sourceIndex(slice)));
+    }
+
+    /**
+     * @param slice The slice of the box, 0 based
+     * @return the index of the slice in the user's stack, 1 based
+     */
+    private int sourceIndex(int slice) {
+        // Hyperstacks are in czt order
+        return (frame - 1) * sourceDepth * sourceChannels
+                + (z + slice) * sourceChannels + channel;
+    }
+
+    /**
+     * Make one slice of the mask from a whole slice of the user's image.
+     */
+    private byte[] maskSlice(Object from) {
+        byte[] to = new byte[width * height];
+        if (from instanceof byte[]) {
+            for (int row = 0; row < height; row++) {
+                System.arraycopy(from, (y + row) * sourceWidth + x, to, row * width, width);
+            }
+        } else if (from instanceof short[]) {
+            short[] pixels = (short[]) from;
+            for (int row = 0; row < height; row++) {
+                int offset = (y + row) * sourceWidth + x;
+                for (int column = 0; column < width; column++) {
+                    int value = pixels[offset + column] & 0xffff;
+                    if (value >= lower && value <= upper) to[row * width + column] = (byte) 255;
+                }
+            }
+        } else if (from instanceof float[]) {
+            float[] pixels = (float[]) from;
+            for (int row = 0; row < height; row++) {
+                int offset = (y + row) * sourceWidth + x;
+                for (int column = 0; column < width; column++) {
+                    float value = pixels[offset + column];
+                    if (value >= lower && value <= upper) to[row * width + column] = (byte) 255;
+                }
+            }
+        } else {
+            throw new IllegalArgumentException("Only 8-bit, 16-bit and 32-bit gray images can be analyzed");
+        }
+        if (inside != null) {
+            for (int i = 0; i < to.length; i++) {
+                if (!inside[i]) to[i] = 0;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * The mask, made a slice at a time.
+     */
+    private class MaskStack extends VirtualStack {
+
+        private final ImageStack sourceStack;
+        /* Reads the slices from the file instead, if not null */
+        private final TiffSliceReader reader;
+
+        MaskStack(ImageStack sourceStack, TiffSliceReader reader) {
+            super(width, height, null, null);
+            this.sourceStack = sourceStack;
+            this.reader = reader;
+        }
+
+        private byte[] mask(int n) {
+            if (reader == null) {
+                return maskSlice(sourceStack, n - 1);
+            }
+            return maskSlice(reader.readSlice(sourceIndex(n - 1)));
+        }
+
+        @Override
+        public int getSize() {
+            return depth;
+        }
+
+        @Override
+        public Object getPixels(int n) {
+            return mask(n);
+        }
+
+        @Override
+        public ImageProcessor getProcessor(int n) {
+            return new ByteProcessor(width, height, mask(n));
+        }
+
+        @Override
+        public String getSliceLabel(int n) {
+            return null;
+        }
+
+        @Override
+        public int getBitDepth() {
+            return 8;
+        }
+    }
+
+    double getLower() {
+        return lower;
+    }
+
+    double getUpper() {
+        return upper;
+    }
+
+    int getChannel() {
+        return channel;
+    }
+
+    int getFrame() {
+        return frame;
+    }
+
+    int getX() {
+        return x;
+    }
+
+    int getY() {
+        return y;
+    }
+
+    int getZ() {
+        return z;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+    int getSourceWidth() {
+        return sourceWidth;
+    }
+
+    int getSourceHeight() {
+        return sourceHeight;
+    }
+
+    int getSourceDepth() {
+        return sourceDepth;
+    }
+}
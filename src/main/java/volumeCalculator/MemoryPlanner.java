@@ -0,0 +1,234 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.io.File;
+
+/**
+ * <p>
+ * Works out, before anything big is made, whether an analysis fits in the
+ * heap, rather than finding out from an OutOfMemoryError halfway through.
+ * What a stack takes depends on how much of it is foreground, how many
+ * edges its skeleton has and how big the heap is, so a few slices of the
+ * mask are labeled (see BlobLabels) and what they take is scaled up to the
+ * whole box.
+ * </p><p>
+ * Before the skeletonization the planner checks that the mask, and what
+ * Skeletonize3D_ and AnalyzeSkeleton_ make of it, fit. Afterwards, knowing
+ * the edges, it picks how the blob engine keeps its blobs: the user's
+ * choice if it fits, else the next one down of blobs in memory linked at
+ * start, in memory linked on first pick, on disk linked at start and on
+ * disk linked on first pick. The estimates and the choice are logged. If
+ * nothing fits the analysis fails there and then, with an
+ * IllegalStateException that says so.
+ * </p><p>
+ * A part of the heap is left for ImageJ, the viewer and the garbage
+ * collector, and what is left is shared by the frames analyzed at once.
+ * </p>
+ */
+final class MemoryPlanner {
+
+    /* The part of the heap that is not planned for */
+    private static final double HEADROOM = 0.2;
+    /* The slices of the mask that are labeled to size the blobs */
+    private static final int SAMPLE_SLICES = 16;
+    /*
+     * About what the skeletonization takes per voxel of the box: the mask,
+     * Skeletonize3D_'s copy of it, and AnalyzeSkeleton_'s tagged image,
+     * visited flags and labels. On the high side.
+     */
+    private static final long SKELETON_BYTES_PER_VOXEL = 8;
+    /* What AnalyzeSkeleton_'s graph takes per skeleton voxel: a Point and the references to it */
+    private static final long SKELETON_BYTES_PER_POINT = 64;
+
+    /**
+     * How the blob engine keeps its blobs.
+     */
+    static final class Mode {
+        final String name;
+        /* BlobVolumeEngine.EAGER, LAZY or LAZY_WARM */
+        final int linking;
+        final boolean spill;
+        final long bytes;
+
+        private Mode(String name, int linking, boolean spill, long bytes) {
+            this.name = name;
+            this.linking = linking;
+            this.spill = spill;
+            this.bytes = bytes;
+        }
+    }
+
+    private final AnalysisOptions options;
+    private final long voxels;
+    private final int depth;
+    /* Estimated from the sample */
+    private final long blobs;
+    private final long labelBytes;
+
+    /**
+     * Label a sample of the slices of the mask.
+     *
+     * @param imagePlus The user's image
+     * @param region The part of the image, and the frame, analyzed
+     * @param options The choices the user made
+     */
+    MemoryPlanner(ImagePlus imagePlus, MaskBuilder region, AnalysisOptions options) {
+        this.options = options;
+        depth = region.getDepth();
+        voxels = (long) region.getWidth() * region.getHeight() * depth;
+        // Evenly spaced, the first and last slices included
+        ImageStack sourceStack = imagePlus.getStack();
+        int samples = Math.min(SAMPLE_SLICES, depth);
+        ImageStack sample = new ImageStack(region.getWidth(), region.getHeight());
+        for (int i = 0; i < samples; i++) {
+            int slice = (samples == 1) ? 0 : (int) ((long) i * (depth - 1) / (samples - 1));
+            sample.addSlice("", region.maskSlice(sourceStack, slice));
+        }
+        BlobLabels labels = new BlobLabels(sample);
+        blobs = (long) labels.size() * depth / samples;
+        labelBytes = labels.estimateMemory() * depth / samples;
+    }
+
+    /**
+     * Check that the box can be skeletonized and its skeleton analyzed.
+     *
+     * @throws IllegalStateException if it cannot
+     */
+    void checkSkeleton() {
+        // A vessel crossing a slice has about one skeleton voxel there
+        long bytes = voxels * SKELETON_BYTES_PER_VOXEL + blobs * SKELETON_BYTES_PER_POINT;
+        IJ.log("Volume Calculator memory plan: skeletonizing takes about " + megabytes(bytes)
+                + " of " + megabytes(available()) + " free");
+        if (!fits(bytes)) {
+            throw new IllegalStateException(tooBig(bytes, "skeletonize the box")
+                    + " Analyze a smaller box, split it into shards or give ImageJ more memory"
+                    + " (Edit > Options > Memory & Threads).");
+        }
+    }
+
+    /**
+     * Pick how the blob engine keeps its blobs, given the skeleton. The
+     * nearest edge engine is only checked.
+     *
+     * @param edgeTable The edges of the analyzed graph
+     * @return the way that fits and is nearest the user's choice
+     * @throws IllegalStateException if none fits
+     */
+    Mode planVolumes(EdgeTable edgeTable) {
+        long edges = edgeTable.size();
+        long points = 0;
+        for (int edgeId = 0; edgeId < edgeTable.size(); edgeId++) {
+            int v1 = edgeTable.getV1(edgeId);
+            int v2 = edgeTable.getV2(edgeId);
+            points += edgeTable.getSlabCount(edgeId)
+                    + edgeTable.pointEnd(v1) - edgeTable.pointStart(v1)
+                    + edgeTable.pointEnd(v2) - edgeTable.pointStart(v2);
+        }
+        long available = available();
+        if (options.getVolumeMethod() == AnalysisOptions.NEAREST_EDGE) {
+            // The nearest seed of every voxel, and the seeds
+            long bytes = 4 * voxels + 20 * points + 12 * edges;
+            IJ.log("Volume Calculator memory plan: nearest edge takes about " + megabytes(bytes)
+                    + " of " + megabytes(available) + " free");
+            if (!fits(bytes)) {
+                throw new IllegalStateException(tooBig(bytes, "find the nearest edges")
+                        + " Use the Blobs volume method, analyze a smaller box or give ImageJ"
+                        + " more memory (Edit > Options > Memory & Threads).");
+            }
+            return new Mode("nearest edge", options.getBlobLinking(), false, bytes);
+        }
+
+        // The arrays of edges of every blob and of blobs of every edge,
+        // and the slice index, are made in every mode; an array costs about
+        // 16 bytes and its ints. Linked at start, every blob on a skeleton
+        // point gets its edges.
+        long links = 12 * blobs + 28 * edges + 4 * points;
+        long linked = 20 * Math.min(blobs, points) + 4 * points;
+        // On disk the blobs' sizes and slices stay in memory, as do the
+        // slices read last.
+        long sliceBytes = Math.max(0, labelBytes - 8 * blobs) / Math.max(1, depth);
+        long spilled = 8 * blobs + BlobLabels.MAX_CACHED_SLICES * sliceBytes;
+        int lazy = (options.getBlobLinking() == BlobVolumeEngine.EAGER)
+                ? BlobVolumeEngine.LAZY : options.getBlobLinking();
+        Mode[] modes = {
+            new Mode("blobs in memory, linked at start", BlobVolumeEngine.EAGER, false,
+                    labelBytes + links + linked),
+            new Mode("blobs in memory, linked on first pick", lazy, false, labelBytes + links),
+            new Mode("blobs on disk, linked at start", BlobVolumeEngine.EAGER, true,
+                    spilled + links + linked),
+            new Mode("blobs on disk, linked on first pick", lazy, true, spilled + links)};
+        int first = (options.isSpillBlobs() ? 2 : 0)
+                + (options.getBlobLinking() == BlobVolumeEngine.EAGER ? 0 : 1);
+        boolean diskRoom = new File(System.getProperty("java.io.tmpdir")).getUsableSpace() > labelBytes;
+
+        IJ.log("Volume Calculator memory plan: " + megabytes(available) + " free for the blobs");
+        for (int m = first; m < modes.length; m++) {
+            IJ.log("    " + modes[m].name + ": about " + megabytes(modes[m].bytes)
+                    + ((modes[m].spill && !diskRoom) ? ", no room on disk" : ""));
+        }
+        for (int m = first; m < modes.length; m++) {
+            if (modes[m].spill && !diskRoom) continue;
+            if (fits(modes[m].bytes)) {
+                IJ.log("    chosen: " + modes[m].name);
+                return modes[m];
+            }
+        }
+        long least = modes[modes.length - 1].bytes;
+        throw new IllegalStateException(tooBig(least, "label the blobs")
+                + " Analyze a smaller box, split it into shards or give ImageJ more memory"
+                + " (Edit > Options > Memory & Threads).");
+    }
+
+    /*
+     * What is free of the heap that is planned for, for each of the frames
+     * analyzed at once.
+     */
+    private long available() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        long free = (long) (runtime.maxMemory() * (1 - HEADROOM)) - used;
+        return Math.max(0, free) / Math.max(1, options.getFramesAtOnce());
+    }
+
+    /*
+     * Some of what is used may be garbage: it is collected before giving up.
+     */
+    private boolean fits(long bytes) {
+        if (bytes <= available()) return true;
+        System.gc();
+        return bytes <= available();
+    }
+
+    private String tooBig(long bytes, String what) {
+        return "The analysis needs about " + megabytes(bytes) + " to " + what
+                + " but only " + megabytes(available()) + " of memory are free.";
+    }
+
+    private static String megabytes(long bytes) {
+        return ((bytes + (1 << 20) - 1) >> 20) + " MB";
+    }
+}
@@ -0,0 +1,343 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * <p>
+ * Counts the voxels of an edge by giving every foreground voxel of the
+ * original image to the edge whose skeleton is nearest to it. Every voxel is
+ * counted once and only once, so nothing is lost to dividing shared blobs
+ * and there is nothing to recover.
+ * </p><p>
+ * The skeleton points of the edges (their slabs, or their vertex points for
+ * the edges without slabs) are the seeds of a Euclidean feature transform:
+ * for every voxel, the seed nearest to it. Distances are measured in
+ * calibrated units, so anisotropic voxels are handled. The transform is
+ * separable and is done in one pass along each of x, y and z. Each pass is a
+ * lower envelope of parabolas along every line of the image (Felzenszwalb and
+ * Huttenlocher, Distance Transforms of Sampled Functions) and the lines are
+ * shared out amongst all the cores.
+ * </p><p>
+ * All of this is done once, in the constructor; afterwards the voxel count
+ * of an edge is a table look-up.
+ * </p>
+ */
+class NearestEdgeEngine implements VolumeEngine {
+
+    private static final int NO_SEED = -1;
+
+    private final EdgeTable edgeTable;
+    private final int width;
+    private final int height;
+    private final int depth;
+    /* The squared calibrated size of a voxel along x, y and z */
+    private final double wx, wy, wz;
+
+    // Per seed
+    private final int[] seedX;
+    private final int[] seedY;
+    private final int[] seedZ;
+    private final int[] seedEdge;
+    /* The seeds of edge e are [seedOffsets[e], seedOffsets[e+1]) */
+    private final int[] seedOffsets;
+    /** The number of foreground voxels nearest to each seed */
+    private final int[] seedVoxels;
+
+    // Per edge
+    private final int[] edgeVoxels;
+
+    /**
+     * Assign every foreground voxel of the mask to its nearest edge.
+     *
+     * @param mask The original image (prior to skeletonization), foreground is 255
+     * @param calibration The size of a voxel
+     * @param edgeTable The edges of the analyzed graph
+     * @throws IllegalStateException if the mask has more voxels than an
+     * array can hold
+     */
+    NearestEdgeEngine(ImageStack mask, Calibration calibration, EdgeTable edgeTable) {
+        this.edgeTable = edgeTable;
+        this.width = mask.getWidth();
+        this.height = mask.getHeight();
+        this.depth = mask.getSize();
+        // The transform holds the nearest seed of every voxel in one array
+        long voxels = (long) width * height * depth;
+        if (voxels > Integer.MAX_VALUE) {
+            throw new IllegalStateException("The box has " + voxels
+                    + " voxels, too many for the nearest edge volumes (at most "
+                    + Integer.MAX_VALUE + "). Use the Blobs volume method or analyze a smaller box.");
+        }
+        this.wx = calibration.pixelWidth * calibration.pixelWidth;
+        this.wy = calibration.pixelHeight * calibration.pixelHeight;
+        this.wz = calibration.pixelDepth * calibration.pixelDepth;
+
+        // Collect the seeds of the edges that are drawn
+        seedOffsets = new int[edgeTable.size() + 1];
+        for (int edgeId = 0; edgeId < edgeTable.size(); edgeId++) {
+            seedOffsets[edgeId + 1] = seedOffsets[edgeId];
+            if (edgeTable.getType(edgeId) == EdgeTable.UNDEFINED) continue;
+            seedOffsets[edgeId + 1] += seedCount(edgeTable, edgeId);
+        }
+        int nSeeds = seedOffsets[edgeTable.size()];
+        seedX = new int[nSeeds];
+        seedY = new int[nSeeds];
+        seedZ = new int[nSeeds];
+        seedEdge = new int[nSeeds];
+        int next = 0;
+        for (int edgeId = 0; edgeId < edgeTable.size(); edgeId++) {
+            if (edgeTable.getType(edgeId) == EdgeTable.UNDEFINED) continue;
+            if (edgeTable.getSlabCount(edgeId) > 0) {
+                for (int slab = edgeTable.slabStart(edgeId); slab < edgeTable.slabEnd(edgeId); slab++) {
+                    seedX[next] = edgeTable.getSlabX(slab);
+                    seedY[next] = edgeTable.getSlabY(slab);
+                    seedZ[next] = edgeTable.getSlabZ(slab);
+                    seedEdge[next++] = edgeId;
+                }
+            } else {
+                for (int vertex : new int[]{edgeTable.getV1(edgeId), edgeTable.getV2(edgeId)}) {
+                    for (int p = edgeTable.pointStart(vertex); p < edgeTable.pointEnd(vertex); p++) {
+                        seedX[next] = edgeTable.getPointX(p);
+                        seedY[next] = edgeTable.getPointY(p);
+                        seedZ[next] = edgeTable.getPointZ(p);
+                        seedEdge[next++] = edgeId;
+                    }
+                }
+            }
+        }
+
+        IJ.showStatus("Assigning voxels to their nearest edges...");
+        AnalysisStage.checkCanceled();
+        int[] nearest = featureTransform();
+
+        // Count the foreground voxels nearest to each seed, one slice at a time
+        seedVoxels = new int[nSeeds];
+        SliceStream stream = new SliceStream(mask);
+        try {
+            for (int z = 0; z < depth; z++) {
+                AnalysisStage.progress(z + 1, depth);
+                byte[] pixels = (byte[]) stream.next();
+                int offset = (int) ((long) z * width * height);
+                for (int i = 0; i < pixels.length; i++) {
+                    if (pixels[i] == (byte) 255 && nearest[offset + i] != NO_SEED) {
+                        seedVoxels[nearest[offset + i]]++;
+                    }
+                }
+            }
+        } finally {
+            stream.close();
+        }
+        edgeVoxels = new int[edgeTable.size()];
+        for (int seed = 0; seed < nSeeds; seed++) {
+            edgeVoxels[seedEdge[seed]] += seedVoxels[seed];
+        }
+        IJ.showStatus("");
+    }
+
+    /**
+     * The seeds of an edge are its slab points; an edge without slabs joins
+     * two vertices directly and its vertex points are used instead.
+     */
+    private static int seedCount(EdgeTable edgeTable, int edgeId) {
+        int count = edgeTable.getSlabCount(edgeId);
+        if (count > 0) return count;
+        int v1 = edgeTable.getV1(edgeId);
+        int v2 = edgeTable.getV2(edgeId);
+        return edgeTable.pointEnd(v1) - edgeTable.pointStart(v1)
+                + edgeTable.pointEnd(v2) - edgeTable.pointStart(v2);
+    }
+
+    @Override
+    public int getVoxelCount(int edgeId) {
+        return edgeVoxels[edgeId];
+    }
+
+    /**
+     * The seeds of an edge with slabs are its slabs, in order, so the voxels
+     * nearest to each seed are the profile of the edge.
+     */
+    @Override
+    public int[] getSlabVoxelCounts(int edgeId) {
+        if (edgeTable.getSlabCount(edgeId) == 0
+                || seedOffsets[edgeId] == seedOffsets[edgeId + 1]) {
+            return new int[edgeTable.getSlabCount(edgeId)];
+        }
+        return Arrays.copyOfRange(seedVoxels, seedOffsets[edgeId], seedOffsets[edgeId + 1]);
+    }
+
+    /**
+     * A cross-section is the voxels nearest to the edge's seeds in a slice,
+     * wherever those voxels lie.
+     */
+    @Override
+    public int[] getCrossSections(int edgeId) {
+        int first = seedOffsets[edgeId];
+        long[] bySlice = new long[seedOffsets[edgeId + 1] - first];
+        for (int i = 0; i < bySlice.length; i++) {
+            bySlice[i] = ((long) seedZ[first + i] << 32) | seedVoxels[first + i];
+        }
+        Arrays.sort(bySlice);
+        int[] sections = new int[bySlice.length];
+        int count = 0;
+        for (int i = 0; i < bySlice.length; i++) {
+            if (i > 0 && (bySlice[i] >>> 32) == (bySlice[i - 1] >>> 32)) {
+                sections[count - 1] += (int) bySlice[i];
+            } else {
+                sections[count++] = (int) bySlice[i];
+            }
+        }
+        // The slices whose seeds are nearest to no voxel have no section
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (sections[i] > 0) sections[kept++] = sections[i];
+        }
+        return Arrays.copyOf(sections, kept);
+    }
+
+    @Override
+    public long estimateMemory() {
+        return 4L * (seedX.length + seedY.length + seedZ.length + seedEdge.length
+                + seedOffsets.length + seedVoxels.length + edgeVoxels.length);
+    }
+
+    /**
+     * @return for every voxel (x + y*width + z*width*height) the nearest seed,
+     * NO_SEED if there are no seeds at all.
+     */
+    private int[] featureTransform() {
+        final int sliceSize = width * height;
+        final int[] nearest = new int[(int) ((long) sliceSize * depth)];
+        Arrays.fill(nearest, NO_SEED);
+        // Where two seeds fall on the same voxel, the first one (the edge
+        // with the lowest id) keeps it.
+        for (int seed = seedX.length - 1; seed >= 0; seed--) {
+            nearest[seedX[seed] + seedY[seed] * width + seedZ[seed] * sliceSize] = seed;
+        }
+        // Along x and then y, slice by slice
+        IntStream.range(0, depth).parallel().forEach(z -> {
+            LineBuffers buffers = new LineBuffers(Math.max(width, height));
+            for (int y = 0; y < height; y++) {
+                transformLine(nearest, z * sliceSize + y * width, 1, width, wx, buffers);
+            }
+            for (int x = 0; x < width; x++) {
+                transformLine(nearest, z * sliceSize + x, width, height, wy, buffers);
+            }
+        });
+        // Along z, row by row
+        IntStream.range(0, height).parallel().forEach(y -> {
+            LineBuffers buffers = new LineBuffers(depth);
+            for (int x = 0; x < width; x++) {
+                transformLine(nearest, y * width + x, sliceSize, depth, wz, buffers);
+            }
+        });
+        return nearest;
+    }
+
+    /**
+     * Working storage for one line, one per task.
+     */
+    private static class LineBuffers {
+        final int[] seeds;          // the seed at each position of the line
+        final int[] apex;           // positions of the parabolas of the envelope
+        final double[] bound;       // where each parabola starts to be lowest
+        final double[] height;      // the parabola heights at their apexes
+
+        LineBuffers(int length) {
+            seeds = new int[length];
+            apex = new int[length];
+            bound = new double[length + 1];
+            height = new double[length];
+        }
+    }
+
+    /**
+     * <p>
+     * One pass of the feature transform along a line of voxels. Before the
+     * pass, the seed found for the voxel at position i lies in the plane
+     * through i perpendicular to the line, at squared distance h(i) from the
+     * voxel. So the squared distance from the voxel at position j to that
+     * seed is the parabola w*(j-i)^2 + h(i), and the nearest seed to j is that
+     * of the lowest parabola at j.
+     * </p>
+     *
+     * @param nearest The nearest seeds, updated in place
+     * @param start index of the first voxel of the line
+     * @param stride distance between two voxels of the line
+     * @param length number of voxels in the line
+     * @param w squared voxel size along the line
+     */
+    private void transformLine(int[] nearest, int start, int stride, int length,
+            double w, LineBuffers buffers) {
+        int[] seeds = buffers.seeds;
+        int[] apex = buffers.apex;
+        double[] bound = buffers.bound;
+        double[] height = buffers.height;
+        // Build the lower envelope of the parabolas
+        int k = -1;
+        for (int q = 0; q < length; q++) {
+            int index = start + q * stride;
+            int seed = nearest[index];
+            seeds[q] = seed;
+            if (seed == NO_SEED) continue;
+            double h = distance2(index, seed);
+            double s = Double.NEGATIVE_INFINITY;
+            while (k >= 0) {
+                int v = apex[k];
+                s = ((h + w * q * q) - (height[k] + w * v * v)) / (2 * w * (q - v));
+                if (s > bound[k]) break;
+                k--;
+            }
+            if (k < 0) s = Double.NEGATIVE_INFINITY;
+            k++;
+            apex[k] = q;
+            height[k] = h;
+            bound[k] = s;
+        }
+        if (k < 0) return;          // No seeds on this line
+        bound[k + 1] = Double.POSITIVE_INFINITY;
+        // Read it back
+        int e = 0;
+        for (int j = 0; j < length; j++) {
+            while (bound[e + 1] < j) e++;
+            nearest[start + j * stride] = seeds[apex[e]];
+        }
+    }
+
+    /**
+     * @return the squared calibrated distance between a voxel and a seed
+     */
+    private double distance2(int index, int seed) {
+        int x = index % width;
+        int y = (index / width) % height;
+        int z = index / (width * height);
+        double dx = x - seedX[seed];
+        double dy = y - seedY[seed];
+        double dz = z - seedZ[seed];
+        return wx * dx * dx + wy * dy * dy + wz * dz * dz;
+    }
+}
@@ -0,0 +1,242 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * The network of an analyzed image, for scripts: its trees, edges and
+ * vertices and where they lie in the image. It cannot be changed - nothing
+ * else holds the edges it is made of - so it may be read from any number of
+ * threads at once.
+ * </p><p>
+ * Edges are numbered 0 .. getEdgeCount()-1, tree after tree, vertices
+ * 0 .. getVertexCount()-1. Coordinates are pixels of the user's image.
+ * Edges that could not be placed in a tree (see isMeasured()) have no
+ * volume.
+ * </p>
+ */
+public final class NetworkSnapshot {
+
+    private final EdgeTable edgeTable;
+    /* Where the analyzed box lies in the image */
+    private final int offsetX, offsetY, offsetZ;
+    private final double pixelWidth, pixelHeight, pixelDepth;
+
+    NetworkSnapshot(EdgeTable edgeTable, MaskBuilder region,
+            double pixelWidth, double pixelHeight, double pixelDepth) {
+        this.edgeTable = edgeTable;
+        this.offsetX = region.getX();
+        this.offsetY = region.getY();
+        this.offsetZ = region.getZ();
+        this.pixelWidth = pixelWidth;
+        this.pixelHeight = pixelHeight;
+        this.pixelDepth = pixelDepth;
+    }
+
+    public int getEdgeCount() {
+        return edgeTable.size();
+    }
+
+    public int getVertexCount() {
+        return edgeTable.vertexCount();
+    }
+
+    public int getTreeCount() {
+        return edgeTable.treeCount();
+    }
+
+    /**
+     * @param tree A tree
+     * @return its edges
+     */
+    public int[] getTreeEdges(int tree) {
+        int[] edges = new int[edgeTable.treeEnd(tree) - edgeTable.treeStart(tree)];
+        for (int i = 0; i < edges.length; i++) {
+            edges[i] = edgeTable.treeStart(tree) + i;
+        }
+        return edges;
+    }
+
+    /**
+     * @param edge An edge
+     * @return the tree it belongs to
+     */
+    public int getTree(int edge) {
+        int low = 0;
+        int high = edgeTable.treeCount() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (edgeTable.treeStart(mid) <= edge) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param edge An edge
+     * @return false if the edge is not in a tree and has no volume
+     */
+    public boolean isMeasured(int edge) {
+        return edgeTable.getType(edge) != EdgeTable.UNDEFINED;
+    }
+
+    public int getV1(int edge) {
+        return edgeTable.getV1(edge);
+    }
+
+    public int getV2(int edge) {
+        return edgeTable.getV2(edge);
+    }
+
+    /**
+     * @param vertex A vertex
+     * @return the edges that meet at it
+     */
+    public int[] getVertexEdges(int vertex) {
+        int count = 0;
+        int[] edges = new int[edgeTable.branchEnd(vertex) - edgeTable.branchStart(vertex)];
+        for (int b = edgeTable.branchStart(vertex); b < edgeTable.branchEnd(vertex); b++) {
+            if (edgeTable.getBranch(b) != EdgeTable.NO_EDGE) {
+                edges[count++] = edgeTable.getBranch(b);
+            }
+        }
+        return Arrays.copyOf(edges, count);
+    }
+
+    /**
+     * @param vertex A vertex
+     * @return {x, y, z} of the point that stands for the vertex
+     */
+    public int[] getVertexPoint(int vertex) {
+        return new int[]{edgeTable.getVertexX(vertex) + offsetX,
+            edgeTable.getVertexY(vertex) + offsetY, edgeTable.getVertexZ(vertex) + offsetZ};
+    }
+
+    /**
+     * @param edge An edge
+     * @return the number of skeleton points between its vertices
+     */
+    public int getSlabCount(int edge) {
+        return edgeTable.getSlabCount(edge);
+    }
+
+    /**
+     * @param edge An edge
+     * @param index 0 .. getSlabCount(edge)-1, from V1 to V2
+     * @return {x, y, z} of the skeleton point
+     */
+    public int[] getSlabPoint(int edge, int index) {
+        int slab = edgeTable.slabStart(edge) + index;
+        return new int[]{edgeTable.getSlabX(slab) + offsetX,
+            edgeTable.getSlabY(slab) + offsetY, edgeTable.getSlabZ(slab) + offsetZ};
+    }
+
+    /**
+     * @param edge An edge
+     * @return the calibrated length of the line from V1 through the skeleton
+     * points to V2
+     */
+    public double getLength(int edge) {
+        double length = 0;
+        int[] last = getVertexPoint(getV1(edge));
+        for (int index = 0; index <= getSlabCount(edge); index++) {
+            int[] point = (index < getSlabCount(edge))
+                    ? getSlabPoint(edge, index) : getVertexPoint(getV2(edge));
+            double dx = (point[0] - last[0]) * pixelWidth;
+            double dy = (point[1] - last[1]) * pixelHeight;
+            double dz = (point[2] - last[2]) * pixelDepth;
+            length += Math.sqrt(dx * dx + dy * dy + dz * dz);
+            last = point;
+        }
+        return length;
+    }
+
+    /**
+     * The edges joining two edges: the fewest edges that lead from one to
+     * the other, both included. In a tree without loops this is the one
+     * path there is, the same as is selected by clicking the two edges.
+     *
+     * @param fromEdge
+     * @param toEdge
+     * @return the edges of the path in order, or null if the two edges are
+     * not connected
+     */
+    public int[] getPath(int fromEdge, int toEdge) {
+        if (fromEdge == toEdge) {
+            return new int[]{fromEdge};
+        }
+        // Breadth first from both vertices of the first edge; the edge by
+        // which each vertex was reached is kept.
+        int[] reachedBy = new int[edgeTable.vertexCount()];
+        Arrays.fill(reachedBy, -2);
+        int[] queue = new int[edgeTable.vertexCount()];
+        int head = 0;
+        int tail = 0;
+        for (int vertex : new int[]{edgeTable.getV1(fromEdge), edgeTable.getV2(fromEdge)}) {
+            if (reachedBy[vertex] == -2) {
+                reachedBy[vertex] = fromEdge;
+                queue[tail++] = vertex;
+            }
+        }
+        int target = -1;
+        while (head < tail && target < 0) {
+            int vertex = queue[head++];
+            if (vertex == edgeTable.getV1(toEdge) || vertex == edgeTable.getV2(toEdge)) {
+                target = vertex;
+                break;
+            }
+            for (int b = edgeTable.branchStart(vertex); b < edgeTable.branchEnd(vertex); b++) {
+                int edge = edgeTable.getBranch(b);
+                if (edge == EdgeTable.NO_EDGE || edge == fromEdge) continue;
+                int next = edgeTable.getOppositeVertex(edge, vertex);
+                if (reachedBy[next] == -2) {
+                    reachedBy[next] = edge;
+                    queue[tail++] = next;
+                }
+            }
+        }
+        if (target < 0) {
+            return null;
+        }
+        // Back from the target to the first edge
+        int[] path = new int[tail + 2];
+        int count = 0;
+        path[count++] = toEdge;
+        int vertex = target;
+        while (reachedBy[vertex] != fromEdge) {
+            int edge = reachedBy[vertex];
+            path[count++] = edge;
+            vertex = edgeTable.getOppositeVertex(edge, vertex);
+        }
+        path[count++] = fromEdge;
+        int[] result = new int[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = path[count - 1 - i];
+        }
+        return result;
+    }
+}
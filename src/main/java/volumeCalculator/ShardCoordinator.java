@@ -0,0 +1,724 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+import ij3d.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jogamp.java3d.BranchGroup;
+import org.jogamp.vecmath.Color3f;
+
+import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
+import sc.fiji.analyzeSkeleton.Edge;
+import sc.fiji.analyzeSkeleton.Graph;
+import sc.fiji.analyzeSkeleton.Point;
+import sc.fiji.analyzeSkeleton.Vertex;
+import sc.fiji.skeletonize3D.Skeletonize3D_;
+
+/**
+ * <p>
+ * Analyzes a frame too big for this JVM: its slices are split into shards,
+ * each analyzed - skeletonized and counted - by a ShardWorker in a JVM of
+ * its own, and the shards' networks are stitched into one. The workers are
+ * given their jobs, and give back their networks, in files in a temporary
+ * directory; they open the image's file themselves.
+ * </p><p>
+ * Each shard owns a core of slices and reaches shardOverlap slices into its
+ * neighbors, so that its skeleton near the core's faces is the same as that
+ * of the whole image. Of a shard's network only the points in its core are
+ * kept - every point of the image is kept by one shard and its voxel count
+ * counted once - and each edge is cut into the pieces that lie in the core.
+ * Where a piece leaves the core it ends in a port; the ports on the two
+ * sides of a face are paired, nearest first, and a pair joins two pieces
+ * into one edge again. A port that finds no partner closer than
+ * MATCH_DISTANCE becomes an end point.
+ * </p><p>
+ * The ROI of the region, if there is one, is not passed on: the shards are
+ * analyzed in its box. Cycles are pruned by each worker. End branches and
+ * small trees are dropped once the network is stitched: a shard's box cuts
+ * the vessels that cross it into false end branches, whose junctions may
+ * lie deep in its core.
+ * </p>
+ */
+final class ShardCoordinator {
+
+    /* How far apart, in pixels, two ports may be and still be joined */
+    private static final double MATCH_DISTANCE = 3;
+    private static final int LOWER = 0;
+    private static final int UPPER = 1;
+
+    private final ImagePlus imagePlus;
+    private final MaskBuilder region;
+    private final AnalysisOptions options;
+
+    /* The stitched network: nodes, joined by pieces of edges */
+    private final List<Piece> pieces = new ArrayList<Piece>();
+    /* The ports on each face between shards: [face][LOWER or UPPER side] */
+    private List<Port>[][] ports;
+
+    private EdgeTable edgeTable;
+    private VolumeEngine engine;
+
+    /**
+     * A vertex of a shard, or the end of a piece at a core's face. The
+     * nodes that are joined are one set (union-find).
+     */
+    private static final class Node {
+        Node parent = this;
+        /* A vertex of a shard rather than an end at a face */
+        boolean real;
+        /* x, y, z of its points */
+        int[] points;
+        /* The pieces that end at it, once it is the root of its set */
+        List<Piece> pieces = new ArrayList<Piece>(2);
+        Vertex vertex;
+        int tree = -1;
+        /* The ends of stitched edges at it */
+        int degree;
+
+        Node(boolean real, int[] points) {
+            this.real = real;
+            this.points = points;
+        }
+
+        Node find() {
+            Node root = this;
+            while (root.parent != root) {
+                root = root.parent;
+            }
+            for (Node node = this; node != root; ) {
+                Node next = node.parent;
+                node.parent = root;
+                node = next;
+            }
+            return root;
+        }
+    }
+
+    /**
+     * The points of an edge that lie in one core, in order, with their
+     * voxel counts.
+     */
+    private static final class Piece {
+        Node from;
+        Node to;
+        int[] x, y, z, count;
+        boolean used;
+    }
+
+    /**
+     * Where a piece leaves its core.
+     */
+    private static final class Port {
+        final Node node;
+        final int x, y, z;
+        boolean matched;
+
+        Port(Node node, int x, int y, int z) {
+            this.node = node;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+    }
+
+    /**
+     * @param imagePlus The user's image; it must have a file
+     * @param region The box and frame to analyze
+     * @param options The choices the user made
+     */
+    ShardCoordinator(ImagePlus imagePlus, MaskBuilder region, AnalysisOptions options) {
+        this.imagePlus = imagePlus;
+        this.region = region;
+        this.options = options;
+    }
+
+    /**
+     * @param imagePlus
+     * @return the file the image was opened from, or null if it has none
+     * that a worker could open
+     */
+    static String getImagePath(ImagePlus imagePlus) {
+        FileInfo fileInfo = imagePlus.getOriginalFileInfo();
+        if (fileInfo == null || fileInfo.fileName == null || fileInfo.directory == null) {
+            return null;
+        }
+        File file = new File(fileInfo.directory, fileInfo.fileName);
+        return file.isFile() ? file.getPath() : null;
+    }
+
+    /**
+     * Analyze the shards in worker JVMs and stitch their networks.
+     *
+     * @throws IllegalStateException if a worker failed or could not be run
+     */
+    @SuppressWarnings("unchecked")
+    void analyze() {
+        int shards = Math.min(options.getShards(), region.getDepth());
+        int coreDepth = (region.getDepth() + shards - 1) / shards;
+        shards = (region.getDepth() + coreDepth - 1) / coreDepth;
+        ports = new List[shards][2];
+        for (List<Port>[] face : ports) {
+            face[LOWER] = new ArrayList<Port>();
+            face[UPPER] = new ArrayList<Port>();
+        }
+        File directory;
+        try {
+            directory = Files.createTempDirectory("vocal-shards").toFile();
+        } catch (IOException e) {
+            throw new IllegalStateException("No room for the shards: " + e.getLocalizedMessage(), e);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(options.getWorkersAtOnce(), shards));
+        try {
+            List<Future<File>> results = new ArrayList<Future<File>>(shards);
+            for (int shard = 0; shard < shards; shard++) {
+                final int coreStart = region.getZ() + shard * coreDepth;
+                final int coreEnd = Math.min(region.getZ() + region.getDepth(), coreStart + coreDepth);
+                final File jobFile = writeJob(directory, shard, coreStart, coreEnd);
+                results.add(executor.submit(() -> runWorker(jobFile)));
+            }
+            // The shards are stitched in order, as they come in
+            for (int shard = 0; shard < shards; shard++) {
+                File output = awaitShard(results.get(shard));
+                int coreStart = region.getZ() + shard * coreDepth;
+                int coreEnd = Math.min(region.getZ() + region.getDepth(), coreStart + coreDepth);
+                readShard(output, shard, coreStart, coreEnd);
+                IJ.showProgress(shard + 1, shards);
+            }
+        } catch (CancellationException e) {
+            // The workers are stopped below; what they left is not needed
+            executor.shutdownNow();
+            deleteShards(directory);
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("The analysis was interrupted.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause().getLocalizedMessage(), e.getCause());
+        } catch (IOException e) {
+            throw new IllegalStateException("A shard could not be read: " + e.getLocalizedMessage(), e);
+        } finally {
+            executor.shutdownNow();
+        }
+        // Only the logs of the workers that failed are left behind
+        deleteShards(directory);
+        joinPorts();
+        build();
+    }
+
+    /*
+     * Wait for a worker, looking now and then whether the user cancelled.
+     */
+    private static File awaitShard(Future<File> result) throws InterruptedException, ExecutionException {
+        while (true) {
+            AnalysisStage.checkCanceled();
+            try {
+                return result.get(1, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                // Still at work
+            }
+        }
+    }
+
+    private static void deleteShards(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * @return the stitched network, neither traversed nor picked
+     */
+    EdgeTable getEdgeTable() {
+        return edgeTable;
+    }
+
+    VolumeEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Show the volume of every edge of the stitched network in a table.
+     *
+     * @param label The frame
+     */
+    void showTable(String label) {
+        Calibration calibration = imagePlus.getCalibration();
+        double voxelVolume = calibration.pixelWidth * calibration.pixelHeight * calibration.pixelDepth;
+        ResultsTable table = new ResultsTable();
+        for (int tree = 0; tree < edgeTable.treeCount(); tree++) {
+            for (int edge = edgeTable.treeStart(tree); edge < edgeTable.treeEnd(tree); edge++) {
+                table.incrementCounter();
+                table.addValue("Edge", edge);
+                table.addValue("Tree", tree);
+                table.addValue("V1", edgeTable.getV1(edge));
+                table.addValue("V2", edgeTable.getV2(edge));
+                table.addValue("Slabs", edgeTable.getSlabCount(edge));
+                table.addValue("Voxels", engine.getVoxelCount(edge));
+                table.addValue("Volume (" + calibration.getUnits() + "^3)",
+                        engine.getVoxelCount(edge) * voxelVolume);
+            }
+        }
+        table.show("Volumes per Edge " + label);
+    }
+
+    private File writeJob(File directory, int shard, int coreStart, int coreEnd) {
+        int start = Math.max(region.getZ(), coreStart - options.getShardOverlap());
+        int end = Math.min(region.getZ() + region.getDepth(), coreEnd + options.getShardOverlap());
+        Properties job = new Properties();
+        job.setProperty("image", getImagePath(imagePlus));
+        job.setProperty("channel", String.valueOf(region.getChannel()));
+        job.setProperty("frame", String.valueOf(region.getFrame()));
+        job.setProperty("x", String.valueOf(region.getX()));
+        job.setProperty("y", String.valueOf(region.getY()));
+        job.setProperty("z", String.valueOf(start));
+        job.setProperty("width", String.valueOf(region.getWidth()));
+        job.setProperty("height", String.valueOf(region.getHeight()));
+        job.setProperty("depth", String.valueOf(end - start));
+        job.setProperty("lower", String.valueOf(region.getLower()));
+        job.setProperty("upper", String.valueOf(region.getUpper()));
+        job.setProperty("pruneCycles", String.valueOf(options.getPruneCycles()));
+        job.setProperty("volumeMethod", String.valueOf(options.getVolumeMethod()));
+        job.setProperty("output", new File(directory, "shard" + shard + ".bin").getPath());
+        File jobFile = new File(directory, "shard" + shard + ".properties");
+        try (OutputStream out = new FileOutputStream(jobFile)) {
+            job.store(out, "Volume Calculator shard " + shard);
+        } catch (IOException e) {
+            throw new IllegalStateException("The job of shard " + shard
+                    + " could not be written: " + e.getLocalizedMessage(), e);
+        }
+        return jobFile;
+    }
+
+    /*
+     * Run a worker JVM on a job and wait for it.
+     *
+     * @return the worker's output
+     */
+    private File runWorker(File jobFile) throws IOException, InterruptedException {
+        String name = jobFile.getName().replace(".properties", "");
+        File log = new File(jobFile.getParentFile(), name + ".log");
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java,
+                "-Xmx" + options.getWorkerMemory() + "m", "-Djava.awt.headless=true",
+                "-cp", workerClassPath(), ShardWorker.class.getName(), jobFile.getPath());
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(log);
+        Process process = builder.start();
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("The worker of " + name + " failed, see " + log);
+            }
+        } finally {
+            process.destroy();
+        }
+        log.delete();
+        return new File(jobFile.getParentFile(), name + ".bin");
+    }
+
+    /*
+     * The jars (or directories) of this plugin and of the plugins it uses.
+     * Fiji loads its plugins itself, so java.class.path is of no help.
+     */
+    private static String workerClassPath() {
+        Set<String> entries = new LinkedHashSet<String>();
+        for (Class<?> c : new Class<?>[]{ShardWorker.class, ImagePlus.class, AnalyzeSkeleton_.class,
+            Skeletonize3D_.class, BranchGroup.class, Color3f.class, Utils.class}) {
+            CodeSource source = c.getProtectionDomain().getCodeSource();
+            if (source == null) continue;
+            try {
+                entries.add(new File(source.getLocation().toURI()).getPath());
+            } catch (URISyntaxException e) {
+                entries.add(source.getLocation().getPath());
+            }
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+    /*
+     * Read a shard's network and cut its edges into the pieces in the core.
+     */
+    private void readShard(File file, int shard, int coreStart, int coreEnd) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != ShardWorker.MAGIC || in.readInt() != ShardWorker.VERSION) {
+                throw new IOException(file + " is not a shard");
+            }
+            int vertexCount = in.readInt();
+            int[][] vertexPoints = new int[vertexCount][];
+            for (int vertex = 0; vertex < vertexCount; vertex++) {
+                vertexPoints[vertex] = new int[3 * in.readInt()];
+                for (int i = 0; i < vertexPoints[vertex].length; i++) {
+                    vertexPoints[vertex][i] = in.readInt();
+                }
+            }
+            // The nodes of the vertices that lie in the core, made as needed
+            Node[] vertexNodes = new Node[vertexCount];
+            int edgeCount = in.readInt();
+            for (int edge = 0; edge < edgeCount; edge++) {
+                int v1 = in.readInt();
+                int v2 = in.readInt();
+                int type = in.readInt();
+                int voxelCount = in.readInt();
+                int n = in.readInt() + 2;
+                // The edge's points: the first point of V1, the slabs, the
+                // first point of V2
+                int[] x = new int[n];
+                int[] y = new int[n];
+                int[] z = new int[n];
+                int[] count = new int[n];
+                for (int k = 1; k < n - 1; k++) {
+                    x[k] = in.readInt();
+                    y[k] = in.readInt();
+                    z[k] = in.readInt();
+                    count[k] = in.readInt();
+                }
+                if (type == EdgeTable.UNDEFINED) continue;
+                x[0] = vertexPoints[v1][0];
+                y[0] = vertexPoints[v1][1];
+                z[0] = vertexPoints[v1][2];
+                x[n - 1] = vertexPoints[v2][0];
+                y[n - 1] = vertexPoints[v2][1];
+                z[n - 1] = vertexPoints[v2][2];
+                if (n == 2) {
+                    // An edge without slabs: its voxels go with the lower
+                    // vertex, which every shard agrees on
+                    count[isBelow(x[1], y[1], z[1], x[0], y[0], z[0]) ? 1 : 0] = voxelCount;
+                }
+                for (int a = 0; a < n; ) {
+                    if (z[a] < coreStart || z[a] >= coreEnd) {
+                        a++;
+                        continue;
+                    }
+                    int b = a;
+                    while (b + 1 < n && z[b + 1] >= coreStart && z[b + 1] < coreEnd) {
+                        b++;
+                    }
+                    Piece piece = new Piece();
+                    piece.x = Arrays.copyOfRange(x, a, b + 1);
+                    piece.y = Arrays.copyOfRange(y, a, b + 1);
+                    piece.z = Arrays.copyOfRange(z, a, b + 1);
+                    piece.count = Arrays.copyOfRange(count, a, b + 1);
+                    if (a == 0) {
+                        piece.from = vertexNode(vertexNodes, vertexPoints, v1);
+                    } else {
+                        piece.from = portNode(shard, x[a], y[a], z[a], z[a - 1] < coreStart);
+                    }
+                    if (b == n - 1) {
+                        piece.to = vertexNode(vertexNodes, vertexPoints, v2);
+                    } else {
+                        piece.to = portNode(shard, x[b], y[b], z[b], z[b + 1] < coreStart);
+                    }
+                    pieces.add(piece);
+                    a = b + 1;
+                }
+            }
+        }
+    }
+
+    /*
+     * Whether a point comes before another one in the order of the slices,
+     * rows and columns.
+     */
+    private static boolean isBelow(int x, int y, int z, int otherX, int otherY, int otherZ) {
+        if (z != otherZ) return z < otherZ;
+        if (y != otherY) return y < otherY;
+        return x < otherX;
+    }
+
+    private static Node vertexNode(Node[] vertexNodes, int[][] vertexPoints, int vertex) {
+        if (vertexNodes[vertex] == null) {
+            vertexNodes[vertex] = new Node(true, vertexPoints[vertex]);
+        }
+        return vertexNodes[vertex];
+    }
+
+    /*
+     * The end of a piece at the lower or upper face of a shard's core.
+     */
+    private Node portNode(int shard, int x, int y, int z, boolean lower) {
+        Node node = new Node(false, new int[]{x, y, z});
+        if (lower) {
+            ports[shard - 1][UPPER].add(new Port(node, x, y, z));
+        } else {
+            ports[shard][LOWER].add(new Port(node, x, y, z));
+        }
+        return node;
+    }
+
+    /*
+     * Pair the ports on the two sides of each face, nearest first. The ports
+     * of face f are ports[f][LOWER], in shard f, and ports[f][UPPER], in
+     * shard f + 1.
+     */
+    private void joinPorts() {
+        double limit = MATCH_DISTANCE * MATCH_DISTANCE;
+        for (List<Port>[] face : ports) {
+            List<long[]> pairs = new ArrayList<long[]>();
+            for (int i = 0; i < face[LOWER].size(); i++) {
+                Port lower = face[LOWER].get(i);
+                for (int j = 0; j < face[UPPER].size(); j++) {
+                    Port upper = face[UPPER].get(j);
+                    long dx = lower.x - upper.x;
+                    long dy = lower.y - upper.y;
+                    long dz = lower.z - upper.z;
+                    long distance2 = dx * dx + dy * dy + dz * dz;
+                    if (distance2 <= limit) {
+                        pairs.add(new long[]{distance2, i, j});
+                    }
+                }
+            }
+            Collections.sort(pairs, (p, q) -> Long.compare(p[0], q[0]));
+            for (long[] pair : pairs) {
+                Port lower = face[LOWER].get((int) pair[1]);
+                Port upper = face[UPPER].get((int) pair[2]);
+                if (lower.matched || upper.matched) continue;
+                lower.matched = true;
+                upper.matched = true;
+                Node a = lower.node.find();
+                Node b = upper.node.find();
+                if (a != b) {
+                    b.parent = a;
+                    a.real |= b.real;
+                    int[] points = Arrays.copyOf(a.points, a.points.length + b.points.length);
+                    System.arraycopy(b.points, 0, points, a.points.length, b.points.length);
+                    a.points = points;
+                }
+            }
+        }
+    }
+
+    /*
+     * Join the pieces through the nodes that only pass them on - two ends
+     * at a face that were paired - into edges, group the edges into trees
+     * and build the EdgeTable and the engine.
+     */
+    private void build() {
+        for (Piece piece : pieces) {
+            piece.from = piece.from.find();
+            piece.to = piece.to.find();
+            piece.from.pieces.add(piece);
+            piece.to.pieces.add(piece);
+        }
+        List<int[][]> edges = new ArrayList<int[][]>();
+        List<Node[]> ends = new ArrayList<Node[]>();
+        // From the nodes that stay, then round the loops that are left
+        for (int pass = 0; pass < 2; pass++) {
+            for (Piece piece : pieces) {
+                if (piece.used) continue;
+                Node start;
+                if (!passesOn(piece.from)) {
+                    start = piece.from;
+                } else if (!passesOn(piece.to)) {
+                    start = piece.to;
+                } else if (pass == 1) {
+                    start = piece.from;
+                } else {
+                    continue;
+                }
+                chain(piece, start, edges, ends);
+            }
+        }
+
+        // The trees: the sets of nodes that the edges connect
+        List<List<Integer>> trees = new ArrayList<List<Integer>>();
+        for (int e = 0; e < edges.size(); e++) {
+            Node[] pair = ends.get(e);
+            pair[0].degree++;
+            pair[1].degree++;
+            if (pair[0].tree < 0 && pair[1].tree < 0) {
+                trees.add(new ArrayList<Integer>());
+                markTree(pair[0], trees.size() - 1);
+            }
+            int tree = (pair[0].tree >= 0) ? pair[0].tree : pair[1].tree;
+            trees.get(tree).add(e);
+        }
+
+        Calibration calibration = imagePlus.getCalibration();
+        int dx = region.getX();
+        int dy = region.getY();
+        int dz = region.getZ();
+        List<Graph> forest = new ArrayList<Graph>();
+        List<Integer> order = new ArrayList<Integer>();
+        for (List<Integer> treeEdges : trees) {
+            Graph graph = new Graph();
+            List<Integer> kept = new ArrayList<Integer>();
+            for (int e : treeEdges) {
+                int[][] points = edges.get(e);
+                Node[] pair = ends.get(e);
+                // End branches are pruned as the workers would have, had
+                // they seen the whole network
+                boolean end1 = pair[0].degree == 1;
+                boolean end2 = pair[1].degree == 1;
+                if (options.isPruneEnds() && (end1 || end2)) continue;
+                ArrayList<Point> slabs = new ArrayList<Point>();
+                double length = 0;
+                int n = points[0].length;
+                for (int k = 1; k < n; k++) {
+                    if (k < n - 1) {
+                        slabs.add(new Point(points[0][k] - dx, points[1][k] - dy, points[2][k] - dz));
+                    }
+                    double ddx = (points[0][k] - points[0][k - 1]) * calibration.pixelWidth;
+                    double ddy = (points[1][k] - points[1][k - 1]) * calibration.pixelHeight;
+                    double ddz = (points[2][k] - points[2][k - 1]) * calibration.pixelDepth;
+                    length += Math.sqrt(ddx * ddx + ddy * ddy + ddz * ddz);
+                }
+                // A spur, as EdgeTable drops them
+                if (length < options.getMinBranchLength() && end1 != end2) continue;
+                Vertex v1 = vertex(pair[0], graph, dx, dy, dz);
+                Vertex v2 = vertex(pair[1], graph, dx, dy, dz);
+                Edge edge = new Edge(v1, v2, slabs, length);
+                graph.addEdge(edge);
+                if (!v1.getBranches().contains(edge)) v1.setBranch(edge);
+                if (v2 != v1 && !v2.getBranches().contains(edge)) v2.setBranch(edge);
+                kept.add(e);
+            }
+            // Small trees are dropped here, as EdgeTable would, so that the
+            // edges keep the ids counted below
+            if (kept.isEmpty()) continue;
+            if (options.getMinTreeSize() > 0
+                    && EdgeTable.skeletonSize(graph) < options.getMinTreeSize()) continue;
+            forest.add(graph);
+            order.addAll(kept);
+        }
+        edgeTable = new EdgeTable(forest.toArray(new Graph[forest.size()]));
+
+        // The voxel counts, by the ids the EdgeTable gave the edges. The
+        // counts of the end points go to the slab points next to them.
+        int[] voxelCounts = new int[order.size()];
+        int[][] slabVoxelCounts = new int[order.size()][];
+        for (int id = 0; id < order.size(); id++) {
+            int[] counts = edges.get(order.get(id))[3];
+            int n = counts.length;
+            for (int count : counts) {
+                voxelCounts[id] += count;
+            }
+            slabVoxelCounts[id] = (n > 2) ? Arrays.copyOfRange(counts, 1, n - 1) : new int[0];
+            if (n > 2) {
+                slabVoxelCounts[id][0] += counts[0];
+                slabVoxelCounts[id][n - 3] += counts[n - 1];
+            }
+        }
+        engine = new StitchedVolumeEngine(edgeTable, voxelCounts, slabVoxelCounts);
+    }
+
+    /*
+     * A node that two pieces pass through, which is no vertex.
+     */
+    private static boolean passesOn(Node node) {
+        return !node.real && node.pieces.size() == 2 && node.pieces.get(0) != node.pieces.get(1);
+    }
+
+    /*
+     * Follow the pieces from a node through the nodes that pass them on,
+     * gluing their points together into one edge.
+     */
+    private static void chain(Piece first, Node start, List<int[][]> edges, List<Node[]> ends) {
+        int[][] points = new int[4][];
+        for (int i = 0; i < 4; i++) points[i] = new int[0];
+        Piece piece = first;
+        Node at = start;
+        do {
+            piece.used = true;
+            boolean forward = piece.from == at;
+            int[][] add = {piece.x, piece.y, piece.z, piece.count};
+            for (int i = 0; i < 4; i++) {
+                int[] joined = Arrays.copyOf(points[i], points[i].length + add[i].length);
+                for (int k = 0; k < add[i].length; k++) {
+                    joined[points[i].length + k] = add[i][forward ? k : add[i].length - 1 - k];
+                }
+                points[i] = joined;
+            }
+            at = forward ? piece.to : piece.from;
+            if (at == start || !passesOn(at)) break;
+            piece = (at.pieces.get(0) == piece) ? at.pieces.get(1) : at.pieces.get(0);
+        } while (!piece.used);
+        edges.add(points);
+        ends.add(new Node[]{start, at});
+    }
+
+    /*
+     * Mark the nodes reached from a node by the pieces as one tree.
+     */
+    private static void markTree(Node root, int tree) {
+        List<Node> stack = new ArrayList<Node>();
+        root.tree = tree;
+        stack.add(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.remove(stack.size() - 1);
+            for (Piece piece : node.pieces) {
+                for (Node next : new Node[]{piece.from, piece.to}) {
+                    if (next.tree < 0) {
+                        next.tree = tree;
+                        stack.add(next);
+                    }
+                }
+            }
+        }
+    }
+
+    private static Vertex vertex(Node node, Graph graph, int dx, int dy, int dz) {
+        if (node.vertex == null) {
+            node.vertex = new Vertex();
+            for (int i = 0; i < node.points.length; i += 3) {
+                node.vertex.addPoint(new Point(node.points[i] - dx,
+                        node.points[i + 1] - dy, node.points[i + 2] - dz));
+            }
+            graph.addVertex(node.vertex);
+        }
+        return node.vertex;
+    }
+}
@@ -0,0 +1,160 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * <p>
+ * Analyzes one shard - a run of slices - of an image in a JVM of its own,
+ * for the ShardCoordinator. The job is read from a properties file and the
+ * shard's network, with the voxel count of every skeleton point, is written
+ * to a file for the coordinator to stitch:
+ * </p>
+ * <pre>
+ * int MAGIC, int VERSION
+ * int vertexCount, per vertex: int pointCount, per point: int x, y, z
+ * int edgeCount, per edge: int v1, v2, type, voxelCount, slabCount,
+ *                          per slab point: int x, y, z, voxelCount
+ * </pre>
+ * <p>
+ * Coordinates are those of the user's image. The worker exits with status 1
+ * if the shard could not be analyzed; the reason is on its standard error.
+ * </p>
+ */
+public final class ShardWorker {
+
+    static final int MAGIC = 0x566f4361;
+    static final int VERSION = 1;
+
+    private ShardWorker() {
+    }
+
+    /**
+     * @param args The job's properties file
+     */
+    public static void main(String[] args) {
+        try {
+            run(new File(args[0]));
+            System.exit(0);
+        } catch (Throwable e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void run(File jobFile) throws IOException {
+        Properties job = new Properties();
+        try (InputStream in = new FileInputStream(jobFile)) {
+            job.load(in);
+        }
+        String path = job.getProperty("image");
+        // A TIFF is opened virtually: only the shard's slices are read
+        ImagePlus imagePlus = path.toLowerCase().matches(".*\\.tiff?$")
+                ? IJ.openVirtual(path) : IJ.openImage(path);
+        if (imagePlus == null) {
+            throw new IOException("Cannot open " + path);
+        }
+        MaskBuilder region = new MaskBuilder(imagePlus,
+                intProperty(job, "x"), intProperty(job, "y"), intProperty(job, "z"),
+                intProperty(job, "width"), intProperty(job, "height"), intProperty(job, "depth"), null);
+        region.setThreshold(doubleProperty(job, "lower"), doubleProperty(job, "upper"));
+        region = region.forFrame(intProperty(job, "channel"), intProperty(job, "frame"));
+
+        AnalysisOptions options = new AnalysisOptions();
+        options.setRegion(region);
+        // End branches and small trees are left to the coordinator: where
+        // the shard cuts a vessel the piece ends in a false end point, and a
+        // tree cut by the shard is smaller than it is.
+        options.setPruning(intProperty(job, "pruneCycles"), false, 0, 0);
+        options.setVolumeMethod(intProperty(job, "volumeMethod"));
+
+        // A shard too big for the worker's memory fails here, with a message
+        // in its log
+        new MemoryPlanner(imagePlus, region, options).checkSkeleton();
+        EdgeTable edgeTable = AnalyzedGraph.analyzeSkeleton(region.build(imagePlus), options);
+        edgeTable.typeEdges();
+        VolumeEngine engine = options.createVolumeEngine(imagePlus, region, edgeTable);
+        try {
+            write(edgeTable, engine, region, new File(job.getProperty("output")));
+        } finally {
+            engine.close();
+        }
+    }
+
+    private static void write(EdgeTable edgeTable, VolumeEngine engine, MaskBuilder region,
+            File file) throws IOException {
+        int dx = region.getX();
+        int dy = region.getY();
+        int dz = region.getZ();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(edgeTable.vertexCount());
+            for (int vertex = 0; vertex < edgeTable.vertexCount(); vertex++) {
+                out.writeInt(edgeTable.pointEnd(vertex) - edgeTable.pointStart(vertex));
+                for (int p = edgeTable.pointStart(vertex); p < edgeTable.pointEnd(vertex); p++) {
+                    out.writeInt(edgeTable.getPointX(p) + dx);
+                    out.writeInt(edgeTable.getPointY(p) + dy);
+                    out.writeInt(edgeTable.getPointZ(p) + dz);
+                }
+            }
+            out.writeInt(edgeTable.size());
+            for (int edge = 0; edge < edgeTable.size(); edge++) {
+                boolean typed = edgeTable.getType(edge) != EdgeTable.UNDEFINED;
+                out.writeInt(edgeTable.getV1(edge));
+                out.writeInt(edgeTable.getV2(edge));
+                out.writeInt(edgeTable.getType(edge));
+                out.writeInt(typed ? engine.getVoxelCount(edge) : 0);
+                int[] slabCounts = typed ? engine.getSlabVoxelCounts(edge)
+                        : new int[edgeTable.getSlabCount(edge)];
+                out.writeInt(edgeTable.getSlabCount(edge));
+                for (int k = 0; k < edgeTable.getSlabCount(edge); k++) {
+                    int slab = edgeTable.slabStart(edge) + k;
+                    out.writeInt(edgeTable.getSlabX(slab) + dx);
+                    out.writeInt(edgeTable.getSlabY(slab) + dy);
+                    out.writeInt(edgeTable.getSlabZ(slab) + dz);
+                    out.writeInt(slabCounts[k]);
+                }
+            }
+        }
+    }
+
+    private static int intProperty(Properties job, String name) {
+        return Integer.parseInt(job.getProperty(name));
+    }
+
+    private static double doubleProperty(Properties job, String name) {
+        return Double.parseDouble(job.getProperty(name));
+    }
+}
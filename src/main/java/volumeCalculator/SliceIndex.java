@@ -0,0 +1,147 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * An index over the range of slices [zMin, zMax] that each edge of an
+ * EdgeTable passes through. It answers "which edges cross slices a..b".
+ * </p><p>
+ * The ranges are kept in sorted arrays that are read as an implicit, balanced
+ * interval tree: the edges are sorted by their first slice, the middle element
+ * of any sub-range is the root of that sub-range, and for every element the
+ * largest last slice in the subtree below it is recorded. A query descends
+ * only into subtrees that can hold a crossing edge, so it costs O(log n + k)
+ * for k answers. Four ints per edge are all the memory it needs.
+ * </p><p>
+ * A slab follows the skeleton from voxel to neighboring voxel, so an edge
+ * passes through every slice of its range.
+ * </p>
+ */
+class SliceIndex {
+
+    private static final int[] NONE = new int[0];
+
+    /* Edge ids, sorted by their first slice */
+    private final int[] edges;
+    private final int[] starts;
+    private final int[] ends;
+    /* The largest last slice found in the subtree rooted at each element */
+    private final int[] maxEnd;
+
+    /* Used while collecting the results of a query */
+    private int[] hits;
+    private int hitCount;
+
+    SliceIndex(EdgeTable edgeTable) {
+        int n = edgeTable.size();
+        // Sort the ids by first slice: the slice is in the high half, the
+        // id in the low half of each key.
+        long[] keys = new long[n];
+        for (int id = 0; id < n; id++) {
+            keys[id] = ((long) edgeTable.getZMin(id) << 32) | id;
+        }
+        Arrays.sort(keys);
+        edges = new int[n];
+        starts = new int[n];
+        ends = new int[n];
+        maxEnd = new int[n];
+        for (int i = 0; i < n; i++) {
+            int id = (int) keys[i];
+            edges[i] = id;
+            starts[i] = edgeTable.getZMin(id);
+            ends[i] = edgeTable.getZMax(id);
+        }
+        buildMaxEnd(0, n);
+    }
+
+    private int buildMaxEnd(int low, int high) {
+        if (low >= high) {
+            return Integer.MIN_VALUE;
+        }
+        int mid = (low + high) >>> 1;
+        int max = Math.max(ends[mid],
+                Math.max(buildMaxEnd(low, mid), buildMaxEnd(mid + 1, high)));
+        maxEnd[mid] = max;
+        return max;
+    }
+
+    /**
+     * @param slice a slice number (0 based, as in the EdgeTable)
+     * @return the ids, in increasing order, of the edges that pass through
+     *         the slice
+     */
+    int[] getEdgesAt(int slice) {
+        return getEdgesCrossing(slice, slice);
+    }
+
+    /**
+     * @param fromSlice first slice (0 based, inclusive)
+     * @param toSlice last slice (0 based, inclusive)
+     * @return the ids, in increasing order, of the edges that pass through
+     *         at least one of the slices
+     */
+    synchronized int[] getEdgesCrossing(int fromSlice, int toSlice) {
+        if (fromSlice > toSlice) {
+            return NONE;
+        }
+        hits = new int[16];
+        hitCount = 0;
+        collect(0, edges.length, fromSlice, toSlice);
+        int[] result = Arrays.copyOf(hits, hitCount);
+        hits = null;
+        Arrays.sort(result);
+        return result;
+    }
+
+    private void collect(int low, int high, int fromSlice, int toSlice) {
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            // Nothing in this subtree reaches the first slice asked for
+            if (maxEnd[mid] < fromSlice) {
+                return;
+            }
+            collect(low, mid, fromSlice, toSlice);
+            // Everything from here on starts after the last slice asked for
+            if (starts[mid] > toSlice) {
+                return;
+            }
+            if (ends[mid] >= fromSlice) {
+                if (hitCount == hits.length) {
+                    hits = Arrays.copyOf(hits, 2 * hitCount);
+                }
+                hits[hitCount++] = edges[mid];
+            }
+            // Carry on with the right subtree
+            low = mid + 1;
+        }
+    }
+
+    /**
+     * @return the number of edges in the index
+     */
+    int size() {
+        return edges.length;
+    }
+}
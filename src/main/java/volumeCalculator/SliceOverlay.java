@@ -0,0 +1,353 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.gui.ImageCanvas;
+import ij.gui.Overlay;
+import ij.gui.PointRoi;
+
+import java.awt.Color;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseListener;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * A 2D alternative to picking edges in the 3D view. The skeleton edges that
+ * cross the current slice of the image are drawn as an ImageJ overlay on the
+ * image window and the user selects a path by clicking two of them, just as
+ * in the 3D view. The selections go to the same Volumes model through
+ * CustomVolumeBehavior2.
+ * </p><p>
+ * The skeleton points of a slice (its "raster") are found with the slice
+ * index of the AnalyzedGraph when the slice is first shown and are then kept
+ * in a small LRU cache, so that scrolling back and forth through a huge stack
+ * does not keep searching the graph. Only the overlay colors are redone when
+ * the selection changes.
+ * </p>
+ */
+class SliceOverlay implements ImageListener, MouseListener {
+
+    /* The number of slice rasters kept around */
+    private static final int MAX_CACHED_SLICES = 64;
+    private static final Color EDGE_COLOR = Color.yellow;
+    /* How far (in pixels) from an edge point a click may be */
+    private static final int PICK_RADIUS = 4;
+    /* Slices above the analyzed box are negative: none is ever this one */
+    private static final int NO_SLICE = Integer.MIN_VALUE;
+
+    private final ImagePlus imagePlus;
+    /* Where the analyzed box lies in the image */
+    private final int offsetX, offsetY, offsetZ;
+    private final AnalyzedGraph analyzedGraph;
+    private final EdgeTable edgeTable;
+    private final CustomVolumeBehavior2 behavior;
+    private final Volumes volumes;
+    private final VolumesPanel volumesPanel;
+
+    private final Map<Integer, SliceRaster> rasters =
+            new LinkedHashMap<Integer, SliceRaster>(MAX_CACHED_SLICES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, SliceRaster> eldest) {
+                    return size() > MAX_CACHED_SLICES;
+                }
+            };
+
+    private boolean active = false;
+    private ImageCanvas canvas;
+    private int shownSlice = NO_SLICE;
+    private int firstEdge = EdgeTable.NO_EDGE;
+    private int firstSlab;
+
+    /**
+     * The skeleton points of one slice, the edge each one belongs to and
+     * which slab point of the edge it is (vertex points count as the first
+     * or last slab).
+     */
+    private static class SliceRaster {
+        final int[] x;
+        final int[] y;
+        final int[] edge;
+        final int[] slab;
+
+        SliceRaster(int[] x, int[] y, int[] edge, int[] slab) {
+            this.x = x;
+            this.y = y;
+            this.edge = edge;
+            this.slab = slab;
+        }
+    }
+
+    /**
+     * @param imagePlus The image on whose window the edges are drawn
+     * @param region The part of the image that was analyzed
+     * @param analyzedGraph The analyzed network
+     * @param behavior Where the selections are made
+     * @param volumes The volume colors
+     * @param volumesPanel Where messages are shown
+     */
+    SliceOverlay(ImagePlus imagePlus, MaskBuilder region, AnalyzedGraph analyzedGraph,
+            CustomVolumeBehavior2 behavior, Volumes volumes, VolumesPanel volumesPanel) {
+        this.imagePlus = imagePlus;
+        this.offsetX = region.getX();
+        this.offsetY = region.getY();
+        this.offsetZ = region.getZ();
+        this.analyzedGraph = analyzedGraph;
+        this.edgeTable = analyzedGraph.getEdgeTable();
+        this.behavior = behavior;
+        this.volumes = volumes;
+        this.volumesPanel = volumesPanel;
+    }
+
+    /**
+     * Turn the 2D selection mode on or off.
+     *
+     * @param on true to draw the edges and accept clicks on the image
+     */
+    synchronized void setActive(boolean on) {
+        if (on == active) return;
+        if (on) {
+            canvas = imagePlus.getCanvas();
+            if (canvas == null) {
+                volumesPanel.showStatus("The image is not shown");
+                return;
+            }
+            active = true;
+            ImagePlus.addImageListener(this);
+            canvas.addMouseListener(this);
+            shownSlice = NO_SLICE;
+            showSlice();
+        } else {
+            active = false;
+            ImagePlus.removeImageListener(this);
+            if (canvas != null) {
+                canvas.removeMouseListener(this);
+            }
+            canvas = null;
+            firstEdge = EdgeTable.NO_EDGE;
+            imagePlus.setOverlay(null);
+        }
+    }
+
+    /**
+     * Redraw the current slice, for instance because edges changed color.
+     */
+    synchronized void refresh() {
+        if (active) {
+            shownSlice = NO_SLICE;
+            showSlice();
+        }
+    }
+
+    /**
+     * More edges are drawn than before: forget the rasters and redraw.
+     */
+    synchronized void graphChanged() {
+        rasters.clear();
+        refresh();
+    }
+
+    private void showSlice() {
+        int slice = imagePlus.getSlice() - 1 - offsetZ;
+        if (slice == shownSlice) return;
+        shownSlice = slice;
+        SliceRaster raster = getRaster(slice);
+
+        // One PointRoi per color: edges that have not been selected plus
+        // one for each volume color in use.
+        Overlay overlay = new Overlay();
+        int[] colorOf = new int[raster.edge.length];
+        for (int p = 0; p < colorOf.length; p++) {
+            colorOf[p] = edgeTable.getColorIndex(raster.edge[p]);
+        }
+        boolean[] done = new boolean[colorOf.length];
+        float[] xs = new float[colorOf.length];
+        float[] ys = new float[colorOf.length];
+        for (int p = 0; p < colorOf.length; p++) {
+            if (done[p]) continue;
+            int colorIndex = colorOf[p];
+            int n = 0;
+            for (int q = p; q < colorOf.length; q++) {
+                if (colorOf[q] == colorIndex) {
+                    done[q] = true;
+                    xs[n] = raster.x[q] + offsetX;
+                    ys[n] = raster.y[q] + offsetY;
+                    n++;
+                }
+            }
+            PointRoi points = new PointRoi(Arrays.copyOf(xs, n), Arrays.copyOf(ys, n), n);
+            points.setStrokeColor(colorIndex == UserData.INITIAL_COLOR_INDEX ?
+                    EDGE_COLOR : volumes.getColorAt(colorIndex).get());
+            overlay.add(points);
+        }
+        imagePlus.setOverlay(overlay);
+    }
+
+    /*
+     * The cached raster of a slice, found with the slice index the first time
+     * it is needed.
+     */
+    private SliceRaster getRaster(int slice) {
+        SliceRaster raster = rasters.get(slice);
+        if (raster != null) {
+            return raster;
+        }
+        int[] edges = analyzedGraph.getSliceGuide().getEdgesAt(slice);
+        int n = 0;
+        int[] x = new int[64];
+        int[] y = new int[64];
+        int[] edge = new int[64];
+        int[] slabs = new int[64];
+        for (int id : edges) {
+            // Only the edges that are drawn can be selected
+            if (analyzedGraph.getEdgeShape(id) == null) continue;
+            int[] vertices = {edgeTable.getV1(id), edgeTable.getV2(id)};
+            for (int v = 0; v < vertices.length; v++) {
+                int vertex = vertices[v];
+                if (edgeTable.getVertexZ(vertex) == slice) {
+                    if (n == x.length) {
+                        x = Arrays.copyOf(x, 2 * x.length);
+                        y = Arrays.copyOf(y, 2 * y.length);
+                        edge = Arrays.copyOf(edge, 2 * edge.length);
+                        slabs = Arrays.copyOf(slabs, 2 * slabs.length);
+                    }
+                    x[n] = edgeTable.getVertexX(vertex);
+                    y[n] = edgeTable.getVertexY(vertex);
+                    slabs[n] = (v == 0) ? 0 : Math.max(edgeTable.getSlabCount(id) - 1, 0);
+                    edge[n++] = id;
+                }
+            }
+            for (int slab = edgeTable.slabStart(id); slab < edgeTable.slabEnd(id); slab++) {
+                if (edgeTable.getSlabZ(slab) != slice) continue;
+                if (n == x.length) {
+                    x = Arrays.copyOf(x, 2 * x.length);
+                    y = Arrays.copyOf(y, 2 * y.length);
+                    edge = Arrays.copyOf(edge, 2 * edge.length);
+                    slabs = Arrays.copyOf(slabs, 2 * slabs.length);
+                }
+                x[n] = edgeTable.getSlabX(slab);
+                y[n] = edgeTable.getSlabY(slab);
+                slabs[n] = slab - edgeTable.slabStart(id);
+                edge[n++] = id;
+            }
+        }
+        raster = new SliceRaster(Arrays.copyOf(x, n), Arrays.copyOf(y, n),
+                Arrays.copyOf(edge, n), Arrays.copyOf(slabs, n));
+        rasters.put(slice, raster);
+        return raster;
+    }
+
+    /*
+     * The raster point closest to (x, y) in this slice, if it is close
+     * enough; -1 otherwise.
+     */
+    private int pointNear(SliceRaster raster, int x, int y) {
+        int nearest = -1;
+        int nearestDistance = PICK_RADIUS * PICK_RADIUS + 1;
+        for (int p = 0; p < raster.edge.length; p++) {
+            int dx = raster.x[p] - x;
+            int dy = raster.y[p] - y;
+            int distance = dx * dx + dy * dy;
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearest = p;
+            }
+        }
+        return nearest;
+    }
+
+    /////
+    // ImageListener
+    /////
+    @Override
+    public void imageOpened(ImagePlus imp) {
+    }
+
+    @Override
+    public void imageClosed(ImagePlus imp) {
+        if (imp == imagePlus) {
+            setActive(false);
+        }
+    }
+
+    @Override
+    public synchronized void imageUpdated(ImagePlus imp) {
+        if (imp == imagePlus && active) {
+            showSlice();
+        }
+    }
+
+    /////
+    // MouseListener: two clicks select a path, as in the 3D view
+    /////
+    @Override
+    public void mouseClicked(MouseEvent e) {
+        int edge = EdgeTable.NO_EDGE;
+        int slab = 0;
+        synchronized (this) {
+            if (!active) return;
+            SliceRaster raster = getRaster(imagePlus.getSlice() - 1 - offsetZ);
+            int p = pointNear(raster, canvas.offScreenX(e.getX()) - offsetX,
+                    canvas.offScreenY(e.getY()) - offsetY);
+            if (p >= 0) {
+                edge = raster.edge[p];
+                slab = raster.slab[p];
+            }
+        }
+        if (edge == EdgeTable.NO_EDGE) {
+            firstEdge = EdgeTable.NO_EDGE;        // Turn off - bail out
+            volumesPanel.showStatus("");
+            return;
+        }
+        if (firstEdge == EdgeTable.NO_EDGE) {
+            firstEdge = edge;
+            firstSlab = slab;
+            volumesPanel.showStatus("First Click");
+        } else {
+            volumesPanel.showStatus("Second Click");
+            int first = firstEdge;
+            firstEdge = EdgeTable.NO_EDGE;
+            behavior.selectPath(first, firstSlab, edge, slab);
+            volumesPanel.showStatus("           ");
+        }
+    }
+
+    @Override
+    public void mousePressed(MouseEvent e) {
+    }
+
+    @Override
+    public void mouseReleased(MouseEvent e) {
+    }
+
+    @Override
+    public void mouseEntered(MouseEvent e) {
+    }
+
+    @Override
+    public void mouseExited(MouseEvent e) {
+    }
+}
@@ -0,0 +1,100 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import ij.ImageStack;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * <p>
+ * The slices of a stack, in order, read ahead on a thread of their own.
+ * </p><p>
+ * A pass over a stack that reads each slice just once (the blob labeling,
+ * the nearest edge counts) spends much of its time getting the slices: when
+ * the stack is virtual or made on the fly (MaskBuilder) they are read from
+ * disk or thresholded. With this the next few slices are made while the
+ * current one is worked on. No more than WINDOW slices are ever waiting, so
+ * the memory used does not grow with the depth of the stack.
+ * </p>
+ */
+class SliceStream {
+
+    /* The number of slices that may be read ahead */
+    static final int WINDOW = 4;
+
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(WINDOW);
+    private final Thread loader;
+
+    /**
+     * Start reading the stack.
+     *
+     * @param stack The stack to read
+     */
+    SliceStream(final ImageStack stack) {
+        loader = new Thread(() -> {
+            try {
+                for (int n = 1; n <= stack.getSize(); n++) {
+                    queue.put(stack.getPixels(n));
+                }
+            } catch (InterruptedException e) {
+                // Closed before the end
+            } catch (RuntimeException e) {
+                // Passed on to the reader, in place of the slice
+                try {
+                    queue.put(e);
+                } catch (InterruptedException closed) {
+                    // Nobody is reading any more
+                }
+            }
+        }, "Volume Calculator slice loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * @return the pixels of the next slice, waiting for them if they are
+     * not read yet
+     */
+    Object next() {
+        Object slice;
+        try {
+            slice = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading the image", e);
+        }
+        if (slice instanceof RuntimeException) {
+            throw (RuntimeException) slice;
+        }
+        return slice;
+    }
+
+    /**
+     * Stop reading ahead. The stream must be closed if it is not read to the
+     * end.
+     */
+    void close() {
+        loader.interrupt();
+    }
+}
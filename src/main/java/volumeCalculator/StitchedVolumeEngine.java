@@ -0,0 +1,95 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * The volumes of a network that was analyzed in shards by worker JVMs (see
+ * ShardCoordinator). Every edge was counted by the workers, so nothing is
+ * left to do but to look the counts up.
+ * </p>
+ */
+class StitchedVolumeEngine implements VolumeEngine {
+
+    private final EdgeTable edgeTable;
+    private final int[] voxelCounts;
+    private final int[][] slabVoxelCounts;
+
+    /**
+     * @param edgeTable The stitched network
+     * @param voxelCounts By edge id
+     * @param slabVoxelCounts By edge id, the counts of its slab points
+     */
+    StitchedVolumeEngine(EdgeTable edgeTable, int[] voxelCounts, int[][] slabVoxelCounts) {
+        this.edgeTable = edgeTable;
+        this.voxelCounts = voxelCounts;
+        this.slabVoxelCounts = slabVoxelCounts;
+    }
+
+    @Override
+    public int getVoxelCount(int edgeId) {
+        return voxelCounts[edgeId];
+    }
+
+    @Override
+    public int[] getSlabVoxelCounts(int edgeId) {
+        return slabVoxelCounts[edgeId].clone();
+    }
+
+    /**
+     * Only the counts of the slab points were kept: a cross-section is those
+     * of the points in a slice. An edge without slabs is one section.
+     */
+    @Override
+    public int[] getCrossSections(int edgeId) {
+        int[] counts = slabVoxelCounts[edgeId];
+        if (counts.length == 0) {
+            return (voxelCounts[edgeId] > 0) ? new int[]{voxelCounts[edgeId]} : new int[0];
+        }
+        long[] bySlice = new long[counts.length];
+        for (int k = 0; k < counts.length; k++) {
+            bySlice[k] = ((long) edgeTable.getSlabZ(edgeTable.slabStart(edgeId) + k) << 32) | counts[k];
+        }
+        Arrays.sort(bySlice);
+        int[] sections = new int[bySlice.length];
+        int count = 0;
+        for (int i = 0; i < bySlice.length; i++) {
+            if (i > 0 && (bySlice[i] >>> 32) == (bySlice[i - 1] >>> 32)) {
+                sections[count - 1] += (int) bySlice[i];
+            } else {
+                sections[count++] = (int) bySlice[i];
+            }
+        }
+        return Arrays.copyOf(sections, count);
+    }
+
+    @Override
+    public long estimateMemory() {
+        long bytes = 4L * voxelCounts.length;
+        for (int[] counts : slabVoxelCounts) {
+            bytes += 16 + 4L * counts.length;
+        }
+        return bytes;
+    }
+}
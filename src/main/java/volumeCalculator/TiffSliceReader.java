@@ -0,0 +1,168 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <p>
+ * Reads the slices of an image straight from its TIFF file, one at a time,
+ * with a positional NIO read of the slice's bytes. Only what is asked for is
+ * ever in memory.
+ * </p><p>
+ * This is how the slices of a virtual stack are read for the volume
+ * engines: ImageJ's virtual stacks go through an Opener for every slice,
+ * this reads the pixels and nothing else. Only uncompressed 8-bit, 16-bit
+ * and 32-bit (float) TIFF files whose slices are contiguous in the file can
+ * be read this way - ImageJ writes them so - see open().
+ * </p>
+ */
+class TiffSliceReader {
+
+    private final Path path;
+    /* Where each slice starts in the file */
+    private final long[] offsets;
+    private final int fileType;
+    private final int width;
+    private final int height;
+    private final int bytesPerPixel;
+    private final ByteOrder order;
+
+    private TiffSliceReader(Path path, long[] offsets, FileInfo info) {
+        this.path = path;
+        this.offsets = offsets;
+        this.fileType = info.fileType;
+        this.width = info.width;
+        this.height = info.height;
+        this.bytesPerPixel = info.getBytesPerPixel();
+        this.order = info.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+    }
+
+    /**
+     * @param imagePlus An image
+     * @return a reader of the image's file, or null if the slices cannot be
+     * read from the file as they are in the image: the image was not opened
+     * from a TIFF file, has been changed since or is not stored as this
+     * class expects.
+     */
+    static TiffSliceReader open(ImagePlus imagePlus) {
+        FileInfo original = imagePlus.getOriginalFileInfo();
+        if (original == null || original.directory == null || original.fileName == null
+                || imagePlus.changes) {
+            return null;
+        }
+        FileInfo[] info;
+        try {
+            info = new TiffDecoder(original.directory, original.fileName).getTiffInfo();
+        } catch (IOException e) {
+            return null;
+        }
+        if (info == null || info.length == 0) return null;
+        FileInfo first = info[0];
+        if (first.fileType != FileInfo.GRAY8 && first.fileType != FileInfo.GRAY16_UNSIGNED
+                && first.fileType != FileInfo.GRAY32_FLOAT) {
+            return null;
+        }
+        if (first.width != imagePlus.getWidth() || first.height != imagePlus.getHeight()) {
+            return null;
+        }
+        long sliceBytes = (long) first.width * first.height * first.getBytesPerPixel();
+        long[] offsets;
+        if (info.length == 1 && first.nImages > 1) {
+            // ImageJ's own stacks: one header, the slices one after the other
+            if (!isContiguous(first)) return null;
+            offsets = new long[first.nImages];
+            for (int n = 0; n < offsets.length; n++) {
+                offsets[n] = first.getOffset() + n * (sliceBytes + first.gap);
+            }
+        } else {
+            offsets = new long[info.length];
+            for (int n = 0; n < info.length; n++) {
+                if (info[n].fileType != first.fileType || info[n].width != first.width
+                        || info[n].height != first.height
+                        || info[n].intelByteOrder != first.intelByteOrder
+                        || !isContiguous(info[n])) {
+                    return null;
+                }
+                offsets[n] = info[n].getOffset();
+            }
+        }
+        if (offsets.length != imagePlus.getStackSize()) return null;
+        return new TiffSliceReader(Paths.get(original.directory, original.fileName), offsets, first);
+    }
+
+    /* Uncompressed, and the strips (if any) follow each other */
+    private static boolean isContiguous(FileInfo info) {
+        if (info.compression > FileInfo.COMPRESSION_NONE) return false;
+        if (info.stripOffsets == null) return true;
+        for (int k = 0; k + 1 < info.stripOffsets.length; k++) {
+            if (info.stripOffsets[k + 1] != info.stripOffsets[k] + info.stripLengths[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read one slice. Slices may be read from several threads at once.
+     *
+     * @param n The slice (stack index), 1 based
+     * @return its pixels: byte[], short[] or float[]
+     */
+    Object readSlice(int n) {
+        ByteBuffer buffer = ByteBuffer.allocate(width * height * bytesPerPixel).order(order);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long position = offsets[n - 1];
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("The file " + path + " is shorter than its header says");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffer.flip();
+        switch (fileType) {
+            case FileInfo.GRAY16_UNSIGNED:
+                short[] shorts = new short[width * height];
+                buffer.asShortBuffer().get(shorts);
+                return shorts;
+            case FileInfo.GRAY32_FLOAT:
+                float[] floats = new float[width * height];
+                buffer.asFloatBuffer().get(floats);
+                return floats;
+            default:
+                return buffer.array();
+        }
+    }
+}
@@ -47,8 +47,9 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
  */
 /**
- * A structure that contains the Graphic information and the color index
- * of an edge or node.
+ * A structure that contains the Graphic information of a node and, for
+ * an edge, its id in the EdgeTable. The color index of an edge is kept in
+ * the EdgeTable.
  * 
  * @author pcmarks
  */
@@ -57,16 +58,16 @@ class UserData {
     public static final int INITIAL_COLOR_INDEX = 99;
 
     public UserData() {
-        this(null, INITIAL_COLOR_INDEX);
+        this(null, EdgeTable.NO_EDGE);
     }
     
     public UserData(Object graphInfo) {
-        this(graphInfo,INITIAL_COLOR_INDEX);
+        this(graphInfo, EdgeTable.NO_EDGE);
     }
 
-    public UserData(Object graphInfo, int colorIndex) {
+    public UserData(Object graphInfo, int edgeId) {
         this.graphInfo = graphInfo;
-        this.colorIndex = colorIndex;
+        this.edgeId = edgeId;
     }
 
     protected Object graphInfo;
@@ -88,24 +89,24 @@ class UserData {
     public void setGraphInfo(Object graphInfo) {
         this.graphInfo = graphInfo;
     }
-    protected int colorIndex;
+    protected int edgeId;
 
     /**
-     * Get the value of colorIndex
+     * Get the id of the edge, EdgeTable.NO_EDGE if this is not an edge
      *
-     * @return the value of colorIndex
+     * @return the value of edgeId
      */
-    public int getColorIndex() {
-        return colorIndex;
+    public int getEdgeId() {
+        return edgeId;
     }
 
     /**
-     * Set the value of colorIndex
+     * Set the value of edgeId
      *
-     * @param colorIndex new value of colorIndex
+     * @param edgeId new value of edgeId
      */
-    public void setColorIndex(int colorIndex) {
-        this.colorIndex = colorIndex;
+    public void setEdgeId(int edgeId) {
+        this.edgeId = edgeId;
     }
 
     public boolean v1Used = false;
@@ -117,6 +118,6 @@ class UserData {
      */
     @Override
      public String toString() {
-         return graphInfo +"/"+colorIndex;
+         return graphInfo +"/"+edgeId;
      }
 }
@@ -0,0 +1,269 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+
+import java.util.BitSet;
+
+import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
+
+/**
+ * <p>
+ * The volumes of a network, worked out without the 3D viewer: for scripts,
+ * batch runs and other plugins. For example
+ * </p>
+ * <pre>
+ * VolumeAnalysis analysis = VolumeAnalysis.analyze(imp,
+ *         new VolumeAnalysis.Settings().pruneEnds(true));
+ * int[] path = analysis.getNetwork().getPath(12, 40);
+ * double volume = analysis.getVolume(path);
+ * </pre>
+ * <p>
+ * The current channel and frame of the image is analyzed, all of it. Every
+ * edge is measured once, in id order, as the analysis is made, so the
+ * results are the same from run to run and an analysis may be queried from
+ * any number of threads.
+ * </p>
+ */
+public final class VolumeAnalysis {
+
+    /**
+     * <p>
+     * The choices the user makes in the dialog, for scripts. The defaults
+     * are the dialog's.
+     * </p>
+     */
+    public static final class Settings {
+
+        private int volumeMethod = AnalysisOptions.BLOBS;
+        private int pruneCycles = AnalyzeSkeleton_.NONE;
+        private boolean pruneEnds = false;
+        private double minBranchLength = 0;
+        private int minTreeSize = 0;
+        private double lower = 1;
+        private double upper = Float.MAX_VALUE;
+
+        /**
+         * @param nearestEdge true to give each voxel to the nearest edge,
+         * false to share out the blobs of each slice (the default)
+         * @return these settings
+         */
+        public Settings nearestEdge(boolean nearestEdge) {
+            volumeMethod = nearestEdge ? AnalysisOptions.NEAREST_EDGE : AnalysisOptions.BLOBS;
+            return this;
+        }
+
+        /**
+         * @param pruneCycles true to break each loop at its shortest branch
+         * @return these settings
+         */
+        public Settings pruneCycles(boolean pruneCycles) {
+            this.pruneCycles = pruneCycles ? AnalyzeSkeleton_.SHORTEST_BRANCH : AnalyzeSkeleton_.NONE;
+            return this;
+        }
+
+        /**
+         * @param pruneEnds true to prune the end branches of the skeleton
+         * @return these settings
+         */
+        public Settings pruneEnds(boolean pruneEnds) {
+            this.pruneEnds = pruneEnds;
+            return this;
+        }
+
+        /**
+         * @param minBranchLength End branches shorter than this (calibrated)
+         * are dropped
+         * @return these settings
+         */
+        public Settings minBranchLength(double minBranchLength) {
+            this.minBranchLength = minBranchLength;
+            return this;
+        }
+
+        /**
+         * @param minTreeSize Trees with fewer skeleton voxels are dropped
+         * @return these settings
+         */
+        public Settings minTreeSize(int minTreeSize) {
+            this.minTreeSize = minTreeSize;
+            return this;
+        }
+
+        /**
+         * The foreground of a 16-bit or 32-bit image. 8-bit images are
+         * taken to be binary.
+         *
+         * @param lower
+         * @param upper
+         * @return these settings
+         */
+        public Settings threshold(double lower, double upper) {
+            this.lower = lower;
+            this.upper = upper;
+            return this;
+        }
+
+        AnalysisOptions toOptions(ImagePlus imagePlus) {
+            AnalysisOptions options = new AnalysisOptions();
+            options.setImage(imagePlus, lower, upper);
+            options.setPruning(pruneCycles, pruneEnds, minBranchLength, minTreeSize);
+            options.setVolumeMethod(volumeMethod);
+            return options;
+        }
+    }
+
+    private final NetworkSnapshot network;
+    private final EdgeMorphometrics morphometrics;
+    private final long[] voxelCounts;
+    private final long totalVoxelCount;
+    private final double voxelVolume;
+    private final String units;
+
+    private VolumeAnalysis(NetworkSnapshot network, EdgeMorphometrics morphometrics,
+            Calibration calibration) {
+        this.network = network;
+        this.morphometrics = morphometrics;
+        this.voxelCounts = new long[morphometrics.getEdgeCount()];
+        for (int edge = 0; edge < voxelCounts.length; edge++) {
+            voxelCounts[edge] = morphometrics.getVoxelCount(edge);
+        }
+        long total = 0;
+        for (long count : voxelCounts) {
+            total += count;
+        }
+        this.totalVoxelCount = total;
+        this.voxelVolume = calibration.pixelWidth * calibration.pixelHeight * calibration.pixelDepth;
+        this.units = calibration.getUnits();
+    }
+
+    /**
+     * Analyze the current channel and frame of an image. Nothing is shown:
+     * this may be run headless.
+     *
+     * @param imagePlus The image; it is not changed
+     * @param settings
+     * @return the analysis
+     * @throws java.util.concurrent.CancellationException if the user pressed
+     * Esc after the analysis started, or the thread was interrupted
+     * meanwhile
+     * @throws IllegalStateException if the analysis does not fit in memory
+     */
+    public static VolumeAnalysis analyze(ImagePlus imagePlus, Settings settings) {
+        // An Esc pressed before, anywhere in ImageJ, is not for this analysis
+        IJ.resetEscape();
+        AnalysisOptions options = settings.toOptions(imagePlus);
+        MaskBuilder region = options.getMaskBuilder();
+        new MemoryPlanner(imagePlus, region, options).checkSkeleton();
+        EdgeTable edgeTable = AnalyzedGraph.analyzeSkeleton(region.build(imagePlus), options);
+        edgeTable.typeEdges();
+        VolumeEngine engine = options.createVolumeEngine(imagePlus, region, edgeTable);
+        AnalysisStage.end();
+        Calibration calibration = imagePlus.getCalibration();
+        // The edges are counted, and measured, in this one pass
+        EdgeMorphometrics morphometrics;
+        try {
+            morphometrics = new EdgeMorphometrics(edgeTable, engine, calibration);
+        } finally {
+            engine.close();
+        }
+        return new VolumeAnalysis(new NetworkSnapshot(edgeTable, region,
+                calibration.pixelWidth, calibration.pixelHeight, calibration.pixelDepth),
+                morphometrics, calibration);
+    }
+
+    /**
+     * @return the network that was analyzed
+     */
+    public NetworkSnapshot getNetwork() {
+        return network;
+    }
+
+    /**
+     * @return the length, cross-sections and tortuosity of every edge
+     */
+    public EdgeMorphometrics getMorphometrics() {
+        return morphometrics;
+    }
+
+    /**
+     * @param edge
+     * @return the number of voxels the edge represents
+     */
+    public long getVoxelCount(int edge) {
+        return voxelCounts[edge];
+    }
+
+    /**
+     * @param edges Any edges; an edge given twice is counted once
+     * @return their calibrated volume
+     */
+    public double getVolume(int... edges) {
+        BitSet counted = new BitSet(voxelCounts.length);
+        long count = 0;
+        for (int edge : edges) {
+            if (!counted.get(edge)) {
+                counted.set(edge);
+                count += voxelCounts[edge];
+            }
+        }
+        return count * voxelVolume;
+    }
+
+    /**
+     * @param fromEdge
+     * @param toEdge
+     * @return the calibrated volume of the edges joining the two, both
+     * included, or NaN if they are not connected (see
+     * NetworkSnapshot.getPath())
+     */
+    public double getPathVolume(int fromEdge, int toEdge) {
+        int[] path = network.getPath(fromEdge, toEdge);
+        return (path == null) ? Double.NaN : getVolume(path);
+    }
+
+    /**
+     * @param tree
+     * @return the calibrated volume of the tree
+     */
+    public double getTreeVolume(int tree) {
+        return getVolume(network.getTreeEdges(tree));
+    }
+
+    /**
+     * @return the calibrated volume of the whole network
+     */
+    public double getTotalVolume() {
+        return totalVoxelCount * voxelVolume;
+    }
+
+    /**
+     * @return the units of the image's calibration; volumes are in these
+     * units cubed
+     */
+    public String getUnits() {
+        return units;
+    }
+}
@@ -0,0 +1,85 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import ij.ImagePlus;
+
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+/**
+ * <p>
+ * The analysis as a headless command, for scripts and batch runs: the
+ * volume of the whole network, and the analysis itself for further
+ * queries. The interactive plugin is Volume_Calculator.
+ * </p>
+ */
+@Plugin(type = Command.class, headless = true)
+public class VolumeCalculatorCommand implements Command {
+
+    @Parameter
+    private VolumeCalculatorService volumeCalculatorService;
+
+    @Parameter(label = "Image")
+    private ImagePlus imagePlus;
+
+    @Parameter(label = "Volume method", choices = {"Blobs", "Nearest edge"})
+    private String volumeMethod = "Blobs";
+
+    @Parameter(label = "Prune cycles")
+    private boolean pruneCycles = false;
+
+    @Parameter(label = "Prune ends")
+    private boolean pruneEnds = false;
+
+    @Parameter(label = "Min branch length", min = "0")
+    private double minBranchLength = 0;
+
+    @Parameter(label = "Min tree size", min = "0")
+    private int minTreeSize = 0;
+
+    @Parameter(label = "Lower threshold", required = false)
+    private double lowerThreshold = 1;
+
+    @Parameter(label = "Upper threshold", required = false)
+    private double upperThreshold = Float.MAX_VALUE;
+
+    @Parameter(type = ItemIO.OUTPUT)
+    private VolumeAnalysis analysis;
+
+    @Parameter(label = "Total volume", type = ItemIO.OUTPUT)
+    private double totalVolume;
+
+    @Override
+    public void run() {
+        analysis = volumeCalculatorService.analyze(imagePlus, new VolumeAnalysis.Settings()
+                .nearestEdge("Nearest edge".equals(volumeMethod))
+                .pruneCycles(pruneCycles)
+                .pruneEnds(pruneEnds)
+                .minBranchLength(minBranchLength)
+                .minTreeSize(minTreeSize)
+                .threshold(lowerThreshold, upperThreshold));
+        totalVolume = analysis.getTotalVolume();
+    }
+}
@@ -0,0 +1,60 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import ij.ImagePlus;
+
+import org.scijava.service.SciJavaService;
+
+/**
+ * <p>
+ * Network volumes for other plugins and scripts, without the 3D viewer. In
+ * a script: <code>#@ VolumeCalculatorService volumes</code>. See
+ * VolumeAnalysis.
+ * </p>
+ */
+public interface VolumeCalculatorService extends SciJavaService {
+
+    /**
+     * @param imagePlus
+     * @return the analysis of the current channel and frame of the image,
+     * with the default settings
+     */
+    VolumeAnalysis analyze(ImagePlus imagePlus);
+
+    /**
+     * @param imagePlus
+     * @param settings
+     * @return the analysis of the current channel and frame of the image
+     */
+    VolumeAnalysis analyze(ImagePlus imagePlus, VolumeAnalysis.Settings settings);
+
+    /**
+     * Open an image file and analyze it; the image is not shown.
+     *
+     * @param path
+     * @param settings
+     * @return the analysis of the image's first channel and frame
+     * @throws IllegalArgumentException if the file cannot be opened
+     */
+    VolumeAnalysis analyze(String path, VolumeAnalysis.Settings settings);
+}
@@ -0,0 +1,107 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+/**
+ * <p>
+ * Counts the voxels of the original image (prior to skeletonization) that
+ * belong to an edge of the analyzed graph. The edges are addressed by their
+ * ids in the EdgeTable.
+ * </p><p>
+ * There is more than one way to decide which voxels belong to which edge;
+ * the user chooses one before the analysis starts (see AnalysisOptions).
+ * </p>
+ */
+interface VolumeEngine {
+
+    /**
+     * @param edgeId
+     * @return the number of voxels in the original image that this edge represents.
+     */
+    int getVoxelCount(int edgeId);
+
+    /**
+     * How the voxels of an edge are spread along it: one count for each of
+     * its slab points, in their order from V1 to V2. The counts add up to
+     * getVoxelCount(edgeId). An edge without slabs has no counts.
+     *
+     * @param edgeId
+     * @return the voxel count of each slab point of the edge
+     */
+    int[] getSlabVoxelCounts(int edgeId);
+
+    /**
+     * The cross-sections of an edge: for every slice that it has voxels in,
+     * in order, the number of its voxels in the slice. They are found from
+     * what was worked out to count the edge's voxels, see EdgeMorphometrics,
+     * not by reading the image again.
+     *
+     * @param edgeId
+     * @return the area of each cross-section, in voxels
+     */
+    int[] getCrossSections(int edgeId);
+
+    /**
+     * Get edges ready to be counted, in this order: the edges of a path,
+     * say. An engine that can do the work for several edges at once, on
+     * several threads, does it here; the counts are those of counting the
+     * edges one after the other. Nothing need be done.
+     *
+     * @param edgeIds
+     */
+    default void prepare(int[] edgeIds) {
+    }
+
+    /**
+     * An engine for another run on the same network (see AnalysisCache),
+     * or for a sweep that should leave this one as it is (see
+     * EdgeMorphometrics), made from what this one worked out that does not
+     * depend on which edges were counted or in which order.
+     *
+     * @param edgeTable The run's own copy of the network, typed
+     * @return the engine for the run: this one if its counts do not depend
+     * on the order
+     */
+    default VolumeEngine reuse(EdgeTable edgeTable) {
+        return this;
+    }
+
+    /**
+     * Take the engine for one more holder: the frame that counts with it
+     * and the AnalysisCache that keeps it, say. Each holder closes it.
+     */
+    default void retain() {
+    }
+
+    /**
+     * Let go of the engine for a holder. Once all of them, and the engines
+     * made from it by reuse(), have, what it keeps on disk is closed.
+     */
+    default void close() {
+    }
+
+    /**
+     * @return about how many bytes the engine holds in memory; what it keeps
+     * on disk is not counted
+     */
+    long estimateMemory();
+}
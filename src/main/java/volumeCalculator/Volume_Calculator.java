@@ -49,14 +49,16 @@ import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
 import ij.measure.Calibration;
-import ij.plugin.Duplicator;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
-import ij3d.Content;
 import ij3d.Image3DUniverse;
 
 import java.awt.BorderLayout;
 import java.awt.Color;
+import java.awt.EventQueue;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.concurrent.CancellationException;
 
 import ij3d.Utils;
 import org.jogamp.vecmath.Color3f;
@@ -84,15 +86,21 @@ public class Volume_Calculator implements PlugInFilter {
     public static final Vector3d INITIAL_SCALING = new Vector3d(.05d,.05d,.05d);
     public static final float   TRANSPARENCY = 0.4f;
     public static final Color3f TRANSPARENCY_COLOR = Utils.toColor3f(Color.gray);
+    static final String STATUS_REFINING = "Preview - refining...";
 
 
     private AnalyzedGraph vasculature;
     private Image3DUniverse universe;
     private ImagePlus imagePlus;
     private ImageProcessor ip;
-    private Content content;
+    private FrameSeries frameSeries;
     private VolumesPanel volumesPanel;
-    private ImagePlus originalImage;
+    private AnalysisOptions options = new AnalysisOptions();
+    /* Works out the full resolution network behind a preview */
+    private volatile Thread refinement;
+    /* Whether the refinement is still running, and the viewer was closed */
+    private volatile boolean refining = false;
+    private volatile boolean closed = false;
 
     /////
     // Implementation of the PlugInFilter interface
@@ -100,12 +108,10 @@ public class Volume_Calculator implements PlugInFilter {
     @Override
     public int setup(String string, ImagePlus imagePlus) {
         this.imagePlus = imagePlus;
-        if (null != imagePlus) {
-            this.originalImage = (new Duplicator()).run(imagePlus);
-        }
-        // NB: This plugin runs Skeletonize3D_ which accepts 8-bit images only.
+        // NB: This plugin runs Skeletonize3D_ which accepts 8-bit images only:
+        // 16-bit and 32-bit images are thresholded into an 8-bit mask first.
         // And we gotta have a stack!
-        return DOES_8G + STACK_REQUIRED;
+        return DOES_8G + DOES_16 + DOES_32 + STACK_REQUIRED;
     }
 
     /**
@@ -119,23 +125,36 @@ public class Volume_Calculator implements PlugInFilter {
     public void run(ImageProcessor ip) {
 
         this.ip = ip;
-        vasculature = new AnalyzedGraph();
-        vasculature.init(imagePlus);
-        vasculature.getSceneGraph().compile();
+        if (!options.showDialog(imagePlus)) return;
+        // Only the region that the user chose is analyzed. Its mask is made
+        // out of the user's image, which is left alone, and skeletonized.
+        // The volumes are taken from the mask too, made again slice by slice.
+        // Each frame of a hyperstack is analyzed this way.
+        // With a preview only a downsampled mask is analyzed now: the full
+        // resolution network is worked out in the background, see below.
+        // The analysis goes in stages, any of which Esc cancels (see
+        // AnalysisStage).
+        IJ.resetEscape();
+        frameSeries = new FrameSeries(imagePlus, options);
+        AnalyzedGraph preview = null;
+        if (options.getPreviewFactor() > 1 && !frameSeries.isCached()) {
+            try {
+                preview = frameSeries.analyzePreview(options.getPreviewFactor());
+            } catch (CancellationException e) {
+                IJ.showStatus("Volume Calculator cancelled");
+                return;
+            }
+            vasculature = preview;
+        } else {
+            if (!frameSeries.analyze()) return;
+            vasculature = frameSeries.getGraph(0);
+        }
 
         // Create a universe and show it. Don't remember why, but this must
         // occur before the contents are added to the universe.
         universe = new Image3DUniverse();
         universe.show();
 
-        // Ask AnalyzedGraph for a Java 3D version of the network -
-        // Package it all up for ij3d use.
-        GraphContentNode contentNode = vasculature.getSceneGraph();
-        content = new Content("VoCal Network");
-        content.setUserData(vasculature);
-        content.display(contentNode);
-        universe.addContent(content);
-        
         // We need this image's Calibration info from the image in order to
         // calculate the volumes accurately. Given to Volumes.
         Calibration calibration = imagePlus.getCalibration();
@@ -159,11 +178,16 @@ public class Volume_Calculator implements PlugInFilter {
         // VolumePanel is placed to the SOUTH of what's in 3D Viewer
         Volumes volumes = new Volumes(calibration);
         volumesPanel = new VolumesPanel(volumes, vasculature, universe);
-        // Create the picking behavior (Controller) for the graphic view of
-        // the vasculature. This controller also needs a Volumes instance in which to store
-        // the selected volumes.
-        universe.setInteractiveBehavior(
-                new CustomVolumeBehavior2(universe, content, volumes, volumesPanel, imagePlus, originalImage));
+        // Ask each frame's AnalyzedGraph for a Java 3D version of its
+        // network, packaged for ij3d use, when the frame is first shown. The
+        // first frame is shown now; the VolumesPanel steps through the rest.
+        frameSeries.setViewer(universe, volumes, volumesPanel);
+        if (preview != null) {
+            frameSeries.showPreview(preview);
+        } else {
+            frameSeries.show(0);
+            volumesPanel.setFrameSeries(frameSeries);
+        }
 //        universe.addContent(content);
         // Make sure that the bounding box is not displayed upon selection; user
         // can reset this.
@@ -171,8 +195,56 @@ public class Volume_Calculator implements PlugInFilter {
 
         universe.getWindow().add(volumesPanel,BorderLayout.SOUTH);
         universe.getWindow().pack();
+        if (preview != null) {
+            refining = true;
+        }
+        // The volume engines may keep their blobs in temporary files. While
+        // the refinement runs its frames are its own: it is stopped, and
+        // closes them when it is done.
+        universe.getWindow().addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                closed = true;
+                if (refining) {
+                    // One not started yet sees that the viewer is closed
+                    Thread thread = refinement;
+                    if (thread != null) thread.interrupt();
+                } else {
+                    frameSeries.close();
+                }
+            }
+        });
 
+        if (preview != null) {
+            refineInBackground();
+        }
+    }
 
+    /**
+     * Analyze the image at full resolution while the preview is looked at.
+     * When it is done the full resolution network takes the place of the
+     * preview, on the event dispatch thread, in one go: only then can edges
+     * be picked and volumes measured. Closing the viewer interrupts it,
+     * which AnalysisStage takes as a cancel.
+     */
+    private void refineInBackground() {
+        volumesPanel.showStatus(STATUS_REFINING);
+        refinement = new Thread(() -> {
+            boolean analyzed = !closed && frameSeries.analyze();
+            EventQueue.invokeLater(() -> {
+                refining = false;
+                if (closed) {
+                    frameSeries.close();
+                    return;
+                }
+                if (analyzed) {
+                    frameSeries.show(0);
+                    volumesPanel.setFrameSeries(frameSeries);
+                }
+                volumesPanel.showStatus("");
+            });
+        }, "Volume Calculator refinement");
+        refinement.start();
     }
 
     /**
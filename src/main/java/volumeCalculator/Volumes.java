@@ -49,6 +49,7 @@ import ij.measure.Calibration;
 
 import java.awt.Color;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import ij3d.Utils;
@@ -67,6 +68,14 @@ import org.jogamp.vecmath.Color3f;
  * MVC: An instance of Volumes (the Model) is shared by CustomValueBehavior (the
  * Controller) and VolumePanel (the View).
  * </p>
+ * <p>
+ * Every change to an edge - its color and the voxels it credits to it - is
+ * written to a journal: the edge, its old color and count and its new color
+ * and count. The changes are grouped in picks (a path selected, a color
+ * cleared) so that a whole pick can be undone, and redone, by going over its
+ * records: nothing is counted again. The journal is kept in packed int
+ * arrays, as are the voxel counts of the colors.
+ * </p>
  * 
  * @author pcmarks
  */
@@ -77,10 +86,32 @@ public class Volumes {
 
     private int                     currentColorIndex = 0;
 
-    private List<Double>             volumes = new ArrayList<Double>();
-    private List<Integer>           voxelCounts = new ArrayList<Integer>();
+    private long[]                  voxelCounts = new long[8];
     private List<Color3f>           colors = new ArrayList<Color3f>();
 
+    /*
+     * The journal. Record r changed edge journalEdge[r] from journalOldColor[r]
+     * with journalOldCount[r] voxels to journalNewColor[r] with
+     * journalNewCount[r]. Records [0, journalTop) may be redone; those before
+     * pickStart[pickCount] are in effect.
+     */
+    private int[] journalEdge = new int[64];
+    private int[] journalOldColor = new int[64];
+    private int[] journalOldCount = new int[64];
+    private int[] journalNewColor = new int[64];
+    private int[] journalNewCount = new int[64];
+    private int journalTop = 0;
+    /*
+     * Pick p is the records [pickStart[p], pickStart[p + 1]). Picks
+     * [0, pickCount) are in effect, [pickCount, pickTop) have been undone.
+     */
+    private int[] pickStart = new int[16];
+    private int pickCount = 0;
+    private int pickTop = 0;
+    private boolean pickOpen = false;
+    /* Whether the open pick has changed an edge yet */
+    private boolean pickRecorded = false;
+
     public Volumes (Calibration calibration) {
         this.calibrationUnits = calibration.getUnits();
         this.volumeMultiplier = calibration.pixelDepth *
@@ -96,15 +127,16 @@ public class Volumes {
      * @param chosenColor
      * @return
      */
-    public boolean addVolumeColor(Color chosenColor) {
-        volumes.add(new Double(0));
-        voxelCounts.add(new Integer(0));
+    public synchronized boolean addVolumeColor(Color chosenColor) {
         Color3f newColor = Utils.toColor3f(chosenColor);
         for (Color3f color : colors) {
             if (newColor.equals(color)) return false;   // Already used
         }
-        colors.add(Utils.toColor3f(chosenColor));
-        currentColorIndex = volumes.size()-1;
+        colors.add(newColor);
+        if (colors.size() > voxelCounts.length) {
+            voxelCounts = Arrays.copyOf(voxelCounts, 2 * voxelCounts.length);
+        }
+        currentColorIndex = colors.size()-1;
         return true;
     }
 
@@ -120,16 +152,13 @@ public class Volumes {
         currentColorIndex = index;
     }
 
-    void updateVoxelCount(int colorIndex, int count) {
+    synchronized void updateVoxelCount(int colorIndex, int count) {
         if (colorIndex == UserData.INITIAL_COLOR_INDEX) return;
-        int voxelCount = voxelCounts.get(colorIndex) + count;
-        voxelCounts.set(colorIndex, voxelCount);
-        Double volume = volumes.get(colorIndex);
-        volumes.set(colorIndex, voxelCount * volumeMultiplier);
+        voxelCounts[colorIndex] += count;
     }
 
-    Double getVolumeAt(int colorIndex) {
-        return volumes.get(colorIndex);
+    synchronized double getVolumeAt(int colorIndex) {
+        return voxelCounts[colorIndex] * volumeMultiplier;
     }
 
     public String getCalibrationUnits() {
@@ -140,8 +169,155 @@ public class Volumes {
         return colors.get(colorIndex);
     }
 
-    void clearVoxelCount(int colorIndex) {
-        updateVoxelCount(colorIndex, -voxelCounts.get(colorIndex));
+    synchronized void clearVoxelCount(int colorIndex) {
+        voxelCounts[colorIndex] = 0;
+    }
+
+    /////
+    // The journal
+    /////
+
+    /**
+     * Start a pick: the edge changes that follow, up to endPick(), are undone
+     * and redone together. Once the pick changes an edge, what was undone
+     * can no longer be redone; a pick that changes nothing leaves it. Picks
+     * come from the 3D view and from the slice view, on different threads:
+     * the lock on this Volumes is held from beginPick() to endPick() so that
+     * a pick cannot start while another is open.
+     */
+    synchronized void beginPick() {
+        pickOpen = true;
+        pickRecorded = false;
+    }
+
+    /**
+     * Move an edge from one color to another, with the voxels credited to
+     * it, and write it down.
+     *
+     * @param edgeId The edge
+     * @param oldColor Its color until now
+     * @param oldCount The voxels it credited to its old color
+     * @param newColor Its new color
+     * @param newCount The voxels it credits to its new color
+     */
+    synchronized void recordEdge(int edgeId, int oldColor, int oldCount, int newColor, int newCount) {
+        boolean single = !pickOpen;
+        if (single) beginPick();
+        if (!pickRecorded) {
+            // The picks undone are dropped
+            pickRecorded = true;
+            pickTop = pickCount;
+            journalTop = pickStart[pickCount];
+        }
+        if (journalTop == journalEdge.length) {
+            int length = 2 * journalTop;
+            journalEdge = Arrays.copyOf(journalEdge, length);
+            journalOldColor = Arrays.copyOf(journalOldColor, length);
+            journalOldCount = Arrays.copyOf(journalOldCount, length);
+            journalNewColor = Arrays.copyOf(journalNewColor, length);
+            journalNewCount = Arrays.copyOf(journalNewCount, length);
+        }
+        journalEdge[journalTop] = edgeId;
+        journalOldColor[journalTop] = oldColor;
+        journalOldCount[journalTop] = oldCount;
+        journalNewColor[journalTop] = newColor;
+        journalNewCount[journalTop] = newCount;
+        journalTop++;
+        updateVoxelCount(oldColor, -oldCount);
+        updateVoxelCount(newColor, newCount);
+        if (single) endPick();
+    }
+
+    /**
+     * Close the pick started by beginPick(). A pick that changed nothing is
+     * not kept.
+     */
+    synchronized void endPick() {
+        pickOpen = false;
+        if (!pickRecorded) return;
+        pickRecorded = false;
+        pickCount++;
+        pickTop = pickCount;
+        if (pickCount + 1 > pickStart.length) {
+            pickStart = Arrays.copyOf(pickStart, 2 * pickStart.length);
+        }
+        pickStart[pickCount] = journalTop;
+    }
+
+    /**
+     * Move all the edges of a color back to no color, as one pick.
+     *
+     * @param colorIndex The color
+     * @param edgeTable The edges
+     */
+    synchronized void clearColor(int colorIndex, EdgeTable edgeTable) {
+        beginPick();
+        for (int edgeId = 0; edgeId < edgeTable.size(); edgeId++) {
+            if (edgeTable.getColorIndex(edgeId) == colorIndex) {
+                recordEdge(edgeId, colorIndex, edgeTable.getVoxelCount(edgeId),
+                        UserData.INITIAL_COLOR_INDEX, 0);
+                edgeTable.setColorIndex(edgeId, UserData.INITIAL_COLOR_INDEX);
+                edgeTable.setVoxelCount(edgeId, 0);
+            }
+        }
+        endPick();
+    }
+
+    /**
+     * Undo the last pick: its edges get back their old colors and counts.
+     *
+     * @param edgeTable The edges that were picked
+     * @return the edges that changed, to be repainted, or null if there is
+     * nothing to undo
+     */
+    synchronized int[] undo(EdgeTable edgeTable) {
+        if (pickOpen || pickCount == 0) return null;
+        pickCount--;
+        int from = pickStart[pickCount];
+        int to = pickStart[pickCount + 1];
+        int[] edges = new int[to - from];
+        for (int r = to - 1; r >= from; r--) {
+            updateVoxelCount(journalNewColor[r], -journalNewCount[r]);
+            updateVoxelCount(journalOldColor[r], journalOldCount[r]);
+            edgeTable.setColorIndex(journalEdge[r], journalOldColor[r]);
+            edgeTable.setVoxelCount(journalEdge[r], journalOldCount[r]);
+            edges[r - from] = journalEdge[r];
+        }
+        return edges;
+    }
+
+    /**
+     * Redo the last pick undone.
+     *
+     * @param edgeTable The edges that were picked
+     * @return the edges that changed, to be repainted, or null if there is
+     * nothing to redo
+     */
+    synchronized int[] redo(EdgeTable edgeTable) {
+        if (pickOpen || pickCount == pickTop) return null;
+        int from = pickStart[pickCount];
+        int to = pickStart[pickCount + 1];
+        int[] edges = new int[to - from];
+        for (int r = from; r < to; r++) {
+            updateVoxelCount(journalOldColor[r], -journalOldCount[r]);
+            updateVoxelCount(journalNewColor[r], journalNewCount[r]);
+            edgeTable.setColorIndex(journalEdge[r], journalNewColor[r]);
+            edgeTable.setVoxelCount(journalEdge[r], journalNewCount[r]);
+            edges[r - from] = journalEdge[r];
+        }
+        pickCount++;
+        return edges;
+    }
+
+    /**
+     * Forget all the picks: they were made on edges that are no longer
+     * shown.
+     */
+    synchronized void clearJournal() {
+        pickCount = 0;
+        pickTop = 0;
+        journalTop = 0;
+        pickOpen = false;
+        pickRecorded = false;
     }
-    
 }
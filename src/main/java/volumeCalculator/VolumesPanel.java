@@ -64,6 +64,7 @@ import java.awt.Checkbox;
 import java.awt.CheckboxGroup;
 import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.EventQueue;
 import java.awt.GridBagConstraints;
 import java.awt.Insets;
 import java.awt.Label;
@@ -72,7 +73,9 @@ import java.awt.event.ActionListener;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
+import javax.swing.Timer;
 
 /**
  *
@@ -86,6 +89,8 @@ public class VolumesPanel extends java.awt.Panel {
     static final String TITLE_COLOR_CHOOSER = "Volume Color Chooser";
     static final String VOLUME_IN_CUBIC = "Volume in cubic ";
     static final String VOLUME_FORMAT = " %8.3f ";
+    /* The volumes are shown again at most this often (ms) while counting */
+    static final int REFRESH_INTERVAL = 100;
 
     private final GridBagConstraints constraints;
     private ColorChooser colorChooser;
@@ -95,6 +100,19 @@ public class VolumesPanel extends java.awt.Panel {
     private List<Label> volumeLabels;
     private AnalyzedGraph analyzedGraph;
     private Image3DUniverse universe;
+    /** The 2D selection mode on the image window, if there is one. */
+    private SliceOverlay sliceOverlay;
+    /**
+     * The colors whose volumes have changed since they were last shown.
+     * Picks change them from the Java 3D behavior thread, edge after edge;
+     * they are shown together, on the event dispatch thread, no more than
+     * once every REFRESH_INTERVAL.
+     */
+    private final BitSet staleColors = new BitSet();
+    private boolean refreshScheduled = false;
+    private volatile long lastRefresh = 0;
+    /** The frames of a hyperstack, if there are several. */
+    private FrameSeries frameSeries;
 
     /** Creates new form VolumesPanel */
     public VolumesPanel(Volumes volumes, AnalyzedGraph analyzedGraph, Image3DUniverse universe) {
@@ -142,8 +160,15 @@ public class VolumesPanel extends java.awt.Panel {
         statusLabel = new java.awt.Label();
         boundingBoxCheckbox = new java.awt.Checkbox();
         keyNavigationOnlyCheckbox = new java.awt.Checkbox();
+        sliceSelectionCheckbox = new java.awt.Checkbox();
+        partialEdgesCheckbox = new java.awt.Checkbox();
+        drawSmallTreesButton = new java.awt.Button();
+        measureEdgesButton = new java.awt.Button();
+        frameChoice = new java.awt.Choice();
         panel2 = new java.awt.Panel();
         addColorVolumeButton = new java.awt.Button();
+        undoButton = new java.awt.Button();
+        redoButton = new java.awt.Button();
 
         setLayout(new java.awt.BorderLayout());
 
@@ -172,6 +197,41 @@ public class VolumesPanel extends java.awt.Panel {
         keyNavigationOnlyCheckbox.setLabel("Key Nav. Only");
         keyNavigationOnlyCheckbox.setState(true);
         panel1.add(keyNavigationOnlyCheckbox);
+
+        sliceSelectionCheckbox.setLabel("2D Slices");
+        sliceSelectionCheckbox.addItemListener(new java.awt.event.ItemListener() {
+            public void itemStateChanged(java.awt.event.ItemEvent evt) {
+                sliceSelectionCheckboxItemStateChanged(evt);
+            }
+        });
+        panel1.add(sliceSelectionCheckbox);
+
+        partialEdgesCheckbox.setLabel("Partial Edges");
+        panel1.add(partialEdgesCheckbox);
+
+        drawSmallTreesButton.setLabel("Draw Small Trees");
+        drawSmallTreesButton.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                drawSmallTreesButtonActionPerformed(evt);
+            }
+        });
+        panel1.add(drawSmallTreesButton);
+
+        measureEdgesButton.setLabel("Measure Edges");
+        measureEdgesButton.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                measureEdgesButtonActionPerformed(evt);
+            }
+        });
+        panel1.add(measureEdgesButton);
+
+        frameChoice.setVisible(false);
+        frameChoice.addItemListener(new java.awt.event.ItemListener() {
+            public void itemStateChanged(java.awt.event.ItemEvent evt) {
+                frameChoiceItemStateChanged(evt);
+            }
+        });
+        panel1.add(frameChoice);
         panel1.add(panel2);
 
         addColorVolumeButton.setCursor(new java.awt.Cursor(java.awt.Cursor.DEFAULT_CURSOR));
@@ -184,6 +244,22 @@ public class VolumesPanel extends java.awt.Panel {
         panel1.add(addColorVolumeButton);
         addColorVolumeButton.getAccessibleContext().setAccessibleName("");
 
+        undoButton.setLabel("Undo");
+        undoButton.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                undoButtonActionPerformed(evt);
+            }
+        });
+        panel1.add(undoButton);
+
+        redoButton.setLabel("Redo");
+        redoButton.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                redoButtonActionPerformed(evt);
+            }
+        });
+        panel1.add(redoButton);
+
         add(panel1, java.awt.BorderLayout.SOUTH);
     }// </editor-fold>//GEN-END:initComponents
 
@@ -209,6 +285,140 @@ public class VolumesPanel extends java.awt.Panel {
 
     }//GEN-LAST:event_boundingBoxCheckboxItemStateChanged
 
+    private void undoButtonActionPerformed(java.awt.event.ActionEvent evt) {
+        edgesChanged(volumes.undo(analyzedGraph.getEdgeTable()));
+    }
+
+    private void redoButtonActionPerformed(java.awt.event.ActionEvent evt) {
+        edgesChanged(volumes.redo(analyzedGraph.getEdgeTable()));
+    }
+
+    /**
+     * A pick was undone or redone: repaint its edges in the colors they
+     * have now and show the volumes again.
+     *
+     * @param edges The edges of the pick, or null if nothing was done
+     */
+    private void edgesChanged(int[] edges) {
+        if (edges == null) return;
+        EdgeTable edgeTable = analyzedGraph.getEdgeTable();
+        for (int edgeId : edges) {
+            int colorIndex = edgeTable.getColorIndex(edgeId);
+            analyzedGraph.paintEdge(edgeId, (colorIndex == UserData.INITIAL_COLOR_INDEX)
+                    ? null : volumes.getColorAt(colorIndex));
+        }
+        for (int colorIndex = 0; colorIndex < volumeLabels.size(); colorIndex++) {
+            updateVoxelCount(colorIndex);
+        }
+        selectionChanged();
+    }
+
+    private void drawSmallTreesButtonActionPerformed(java.awt.event.ActionEvent evt) {
+        analyzedGraph.drawAllSmallTrees();
+        graphChanged();
+    }
+
+    /**
+     * Measuring every edge may take a while: it is done on a thread of its
+     * own, and the button stays disabled until it is done.
+     */
+    private void measureEdgesButtonActionPerformed(java.awt.event.ActionEvent evt) {
+        if (frameSeries == null) return;
+        measureEdgesButton.setEnabled(false);
+        showStatus("Measuring edges...");
+        Thread measurement = new Thread(() -> {
+            try {
+                frameSeries.showMorphometrics();
+            } finally {
+                EventQueue.invokeLater(() -> {
+                    measureEdgesButton.setEnabled(true);
+                    showStatus("");
+                });
+            }
+        }, "Volume Calculator measurement");
+        measurement.start();
+    }
+
+    private void frameChoiceItemStateChanged(java.awt.event.ItemEvent evt) {
+        if (frameSeries != null) {
+            frameSeries.show(frameChoice.getSelectedIndex());
+        }
+    }
+
+    private void sliceSelectionCheckboxItemStateChanged(java.awt.event.ItemEvent evt) {
+        if (sliceOverlay == null) {
+            sliceSelectionCheckbox.setState(false);
+            return;
+        }
+        sliceOverlay.setActive(sliceSelectionCheckbox.getState());
+    }
+
+    /**
+     * Make the 2D selection mode available.
+     *
+     * @param sliceOverlay draws the edges on the image window and takes clicks
+     */
+    void setSliceOverlay(SliceOverlay sliceOverlay) {
+        if (this.sliceOverlay != null && this.sliceOverlay != sliceOverlay) {
+            this.sliceOverlay.setActive(false);
+            if (sliceOverlay != null) {
+                sliceOverlay.setActive(sliceSelectionCheckbox.getState());
+            }
+        }
+        this.sliceOverlay = sliceOverlay;
+    }
+
+    /**
+     * Let the user step through the frames of a hyperstack.
+     *
+     * @param frameSeries The analyzed frames
+     */
+    void setFrameSeries(FrameSeries frameSeries) {
+        this.frameSeries = frameSeries;
+        if (frameSeries.size() < 2) return;
+        for (int i = 0; i < frameSeries.size(); i++) {
+            frameChoice.add(frameSeries.getLabel(i));
+        }
+        frameChoice.setVisible(true);
+        validate();
+    }
+
+    /**
+     * Another frame is shown. The volumes picked so far were picked on the
+     * frame that was, so they are cleared.
+     *
+     * @param analyzedGraph The network of the frame shown
+     */
+    void setAnalyzedGraph(AnalyzedGraph analyzedGraph) {
+        if (analyzedGraph == this.analyzedGraph) return;
+        for (int colorIndex = 0; colorIndex < volumeLabels.size(); colorIndex++) {
+            this.analyzedGraph.resetColor(volumes.getColorAt(colorIndex));
+            volumes.clearVoxelCount(colorIndex);
+            updateVoxelCount(colorIndex);
+        }
+        volumes.clearJournal();
+        this.analyzedGraph = analyzedGraph;
+    }
+
+    /**
+     * Edges have been drawn that were not before: the 2D view has to look
+     * for them again.
+     */
+    void graphChanged() {
+        if (sliceOverlay != null) {
+            sliceOverlay.graphChanged();
+        }
+    }
+
+    /**
+     * Edges have been selected or cleared: bring the 2D view up to date.
+     */
+    void selectionChanged() {
+        if (sliceOverlay != null) {
+            sliceOverlay.refresh();
+        }
+    }
+
     private void addVolumeDisplayLine(Color chosenColor, boolean isOn) {
         constraints.insets = new Insets(1, 1, 6, 1);
         constraints.gridx = 0;
@@ -248,9 +458,11 @@ public class VolumesPanel extends java.awt.Panel {
 
             public void actionPerformed(ActionEvent ae) {
                 int colorIndex = Integer.parseInt(ae.getActionCommand());
+                // Clearing is a pick of its own: it can be undone
+                volumes.clearColor(colorIndex, analyzedGraph.getEdgeTable());
                 analyzedGraph.resetColor(volumes.getColorAt(colorIndex));
-                volumes.clearVoxelCount(colorIndex);
                 updateVoxelCount(colorIndex);
+                selectionChanged();
             }
         });
         constraints.gridx++;
@@ -266,6 +478,48 @@ public class VolumesPanel extends java.awt.Panel {
 
     }
 
+    /**
+     * The volume of a color has changed. It is shown again soon, along with
+     * all the other changes made by then. May be called from any thread.
+     *
+     * @param colorIndex
+     */
+    void volumeChanged(int colorIndex) {
+        if (colorIndex == UserData.INITIAL_COLOR_INDEX) {
+            return;
+        }
+        synchronized (staleColors) {
+            staleColors.set(colorIndex);
+            if (refreshScheduled) return;
+            refreshScheduled = true;
+        }
+        long wait = lastRefresh + REFRESH_INTERVAL - System.currentTimeMillis();
+        if (wait <= 0) {
+            EventQueue.invokeLater(this::refreshVolumes);
+        } else {
+            Timer timer = new Timer((int) wait, event -> refreshVolumes());
+            timer.setRepeats(false);
+            timer.start();
+        }
+    }
+
+    /**
+     * Show the volumes of all the colors that have changed.
+     */
+    private void refreshVolumes() {
+        BitSet stale;
+        synchronized (staleColors) {
+            stale = (BitSet) staleColors.clone();
+            staleColors.clear();
+            refreshScheduled = false;
+        }
+        for (int colorIndex = stale.nextSetBit(0); colorIndex >= 0;
+                colorIndex = stale.nextSetBit(colorIndex + 1)) {
+            updateVoxelCount(colorIndex);
+        }
+        lastRefresh = System.currentTimeMillis();
+    }
+
     /**
      * Re show the volume amount for this volume color
      *
@@ -298,14 +552,31 @@ public class VolumesPanel extends java.awt.Panel {
         return keyNavigationOnlyCheckbox.getState();
     }
 
+    /**
+     * Does the user want the paths to start and end where the edges are
+     * clicked, rather than count the whole of the end edges?
+     *
+     * @return selected or not
+     */
+    boolean getPartialEdgesCheckBoxState() {
+        return partialEdgesCheckbox.getState();
+    }
+
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private java.awt.Button addColorVolumeButton;
     private java.awt.Checkbox boundingBoxCheckbox;
+    private java.awt.Button drawSmallTreesButton;
+    private java.awt.Choice frameChoice;
     private java.awt.Checkbox keyNavigationOnlyCheckbox;
+    private java.awt.Button measureEdgesButton;
     private java.awt.Panel panel1;
     private java.awt.Panel panel2;
+    private java.awt.Button redoButton;
+    private java.awt.Checkbox partialEdgesCheckbox;
     private java.awt.ScrollPane scrollPane1;
+    private java.awt.Checkbox sliceSelectionCheckbox;
     private java.awt.Label statusLabel;
+    private java.awt.Button undoButton;
     private java.awt.Label volumeUnitsLabel;
     private java.awt.Panel volumesPanel;
     // End of variables declaration//GEN-END:variables
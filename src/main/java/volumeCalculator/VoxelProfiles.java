@@ -0,0 +1,88 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2012 - 2024 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package volumeCalculator;
+
+import java.util.BitSet;
+
+/**
+ * <p>
+ * The voxel profiles of the edges: for every edge, a running (prefix) sum of
+ * the voxels credited to its slab points, in their order from V1 to V2. With
+ * it the volume of any stretch of an edge, [fromSlab, toSlab), is one
+ * subtraction, so a path may start and end anywhere along an edge.
+ * </p><p>
+ * The sums of all the edges are packed into one array. An edge with n slabs
+ * has n+1 sums, starting at slabStart(id) + id. The profile of an edge is
+ * built from its VolumeEngine's slab counts the first time the edge is asked
+ * for a stretch.
+ * </p>
+ */
+class VoxelProfiles {
+
+    private final EdgeTable edgeTable;
+    private final VolumeEngine volumeEngine;
+    private final int[] prefix;
+    private final BitSet built;
+
+    /**
+     * @param edgeTable The edges of the analyzed graph
+     * @param volumeEngine Where the voxel counts come from
+     */
+    VoxelProfiles(EdgeTable edgeTable, VolumeEngine volumeEngine) {
+        this.edgeTable = edgeTable;
+        this.volumeEngine = volumeEngine;
+        int size = edgeTable.size();
+        this.prefix = new int[(size == 0) ? 0 : edgeTable.slabEnd(size - 1) + size];
+        this.built = new BitSet(size);
+    }
+
+    /**
+     * The number of voxels credited to slab points fromSlab (inclusive) to
+     * toSlab (exclusive) of an edge, the slabs being numbered 0 .. n-1 from
+     * V1 to V2. The whole of an edge without slabs is always counted.
+     *
+     * @param edgeId
+     * @param fromSlab
+     * @param toSlab
+     * @return the number of voxels in the stretch
+     */
+    synchronized int getVoxelCount(int edgeId, int fromSlab, int toSlab) {
+        int nSlabs = edgeTable.getSlabCount(edgeId);
+        fromSlab = Math.max(fromSlab, 0);
+        toSlab = Math.min(toSlab, nSlabs);
+        if (nSlabs == 0 || (fromSlab == 0 && toSlab == nSlabs)) {
+            return volumeEngine.getVoxelCount(edgeId);
+        }
+        if (fromSlab >= toSlab) {
+            return 0;
+        }
+        int start = edgeTable.slabStart(edgeId) + edgeId;
+        if (!built.get(edgeId)) {
+            int[] counts = volumeEngine.getSlabVoxelCounts(edgeId);
+            for (int k = 0; k < nSlabs; k++) {
+                prefix[start + k + 1] = prefix[start + k] + counts[k];
+            }
+            built.set(edgeId);
+        }
+        return prefix[start + toSlab] - prefix[start + fromSlab];
+    }
+}